@@ -0,0 +1,285 @@
+package com.opswat.metadefender.core.benchmark;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process imitation of the Metadefender Core v4 REST API for benchmarks.
+ *
+ * Serves /login, /version, /file, /file/{data_id}, /hash/{hash} and /stat/engines. A scan takes scanDelay millis,
+ * its progress_percentage follows the configured ProgressCurve, answers carry one scan_details entry per engine.
+ * Uploads are read completely and hashed, so /hash/{hash} finds files uploaded before.
+ */
+public class FakeCoreServer implements Closeable {
+
+	public enum ProgressCurve {
+		/** progress grows evenly with the elapsed time */
+		LINEAR,
+		/** progress jumps quickly and then crawls, like a scan waiting for a slow engine */
+		FRONT_LOADED,
+		/** 0% until the scan is done */
+		STEP;
+
+		int progress(long elapsed, long scanDelay) {
+			if(elapsed >= scanDelay) {
+				return 100;
+			}
+			double done = (double) elapsed / scanDelay;
+			switch (this) {
+				case LINEAR:
+					return (int) (done * 99);
+				case FRONT_LOADED:
+					return (int) (Math.sqrt(done) * 99);
+				default:
+					return 0;
+			}
+		}
+	}
+
+	private static final String ENGINE_DEF_TIME = "2017-01-01T00:00:00.000Z";
+
+	static {
+		// the JDK server writes headers and body separately, with Nagle on every answer waits ~40 ms for a delayed ACK
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+	}
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+
+	private final long scanDelay;
+	private final ProgressCurve progressCurve;
+	private final String scanDetailsJson;
+	private final String enginesJson;
+	private final int engines;
+
+	private final ConcurrentMap<String, Long> scanStarts = new ConcurrentHashMap<String, Long>();
+	private final ConcurrentMap<String, String> dataIdsByHash = new ConcurrentHashMap<String, String>();
+	private final AtomicLong nextDataId = new AtomicLong(1);
+
+	private final AtomicLong uploads = new AtomicLong(0);
+	private final AtomicLong polls = new AtomicLong(0);
+
+
+	/**
+	 * @param scanDelay millis from the upload to the finished result
+	 * @param progressCurve progress reported while the scan runs
+	 * @param engines number of engines in scan_details and /stat/engines
+	 */
+	public FakeCoreServer(long scanDelay, ProgressCurve progressCurve, int engines) throws IOException {
+		this.scanDelay = scanDelay;
+		this.progressCurve = progressCurve;
+		this.engines = engines;
+		this.scanDetailsJson = scanDetailsJson(engines);
+		this.enginesJson = enginesJson(engines);
+
+		this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+		this.executor = Executors.newFixedThreadPool(32);
+		server.setExecutor(executor);
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					route(exchange);
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		server.start();
+	}
+
+	/**
+	 * @return api end point url of the server, like http://127.0.0.1:54321
+	 */
+	public String getApiEndPointUrl() {
+		return "http://127.0.0.1:" + server.getAddress().getPort();
+	}
+
+	public long getUploads() {
+		return uploads.get();
+	}
+
+	public long getPolls() {
+		return polls.get();
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Body of a /file/{data_id} answer with a total_time of one second, also used by the parsing benchmarks.
+	 *
+	 * @param dataId data_id of the scan
+	 * @param progress progress_percentage
+	 * @param scanDetailsJson scan_details object, see scanDetailsJson
+	 * @param engines number of engines in scanDetailsJson
+	 * @return JSON answer
+	 */
+	public static String scanResultJson(String dataId, int progress, String scanDetailsJson, int engines) {
+		return scanResultJson(dataId, progress, scanDetailsJson, engines, 1000);
+	}
+
+	/**
+	 * Same as scanResultJson(dataId, progress, scanDetailsJson, engines), with the given total_time.
+	 *
+	 * @param totalTime total_time in millis reported once the scan is done
+	 */
+	public static String scanResultJson(String dataId, int progress, String scanDetailsJson, int engines, long totalTime) {
+		boolean finished = progress >= 100;
+		return "{\"data_id\":\"" + dataId + "\"," +
+				"\"scan_results\":{" +
+				"\"data_id\":\"" + dataId + "\"," +
+				"\"progress_percentage\":" + progress + "," +
+				"\"scan_all_result_a\":\"" + (finished ? "No Threat Detected" : "In Progress") + "\"," +
+				"\"scan_all_result_i\":" + (finished ? 0 : 255) + "," +
+				"\"start_time\":\"" + ENGINE_DEF_TIME + "\"," +
+				"\"total_avs\":" + engines + "," +
+				"\"total_time\":" + (finished ? totalTime : 0) + "," +
+				"\"scan_details\":" + scanDetailsJson + "}," +
+				"\"process_info\":{" +
+				"\"progress_percentage\":" + progress + "," +
+				"\"result\":\"" + (finished ? "Allowed" : "Processing") + "\"," +
+				"\"blocked_reason\":\"\"}}";
+	}
+
+	/**
+	 * @param engines number of engines
+	 * @return scan_details object with one clean result per engine
+	 */
+	public static String scanDetailsJson(int engines) {
+		StringBuilder sb = new StringBuilder("{");
+		for(int i = 0; i < engines; i++) {
+			if(i > 0) {
+				sb.append(',');
+			}
+			sb.append("\"Engine").append(i).append("\":{")
+					.append("\"def_time\":\"").append(ENGINE_DEF_TIME).append("\",")
+					.append("\"location\":\"local\",")
+					.append("\"scan_result_i\":0,")
+					.append("\"scan_time\":").append(10 + i).append(',')
+					.append("\"threat_found\":\"\"}");
+		}
+		return sb.append('}').toString();
+	}
+
+
+	private static String enginesJson(int engines) {
+		StringBuilder sb = new StringBuilder("[");
+		for(int i = 0; i < engines; i++) {
+			if(i > 0) {
+				sb.append(',');
+			}
+			sb.append("{\"eng_id\":\"engine").append(i).append("\",")
+					.append("\"eng_name\":\"Engine").append(i).append("\",")
+					.append("\"eng_ver\":\"1.0.").append(i).append("\",")
+					.append("\"def_time\":\"").append(ENGINE_DEF_TIME).append("\",")
+					.append("\"active\":true}");
+		}
+		return sb.append(']').toString();
+	}
+
+	private void route(HttpExchange exchange) throws IOException {
+		String method = exchange.getRequestMethod();
+		String path = exchange.getRequestURI().getPath();
+
+		if("POST".equals(method) && "/login".equals(path)) {
+			drain(exchange.getRequestBody(), null);
+			respond(exchange, 200, "{\"session_id\":\"fake-session\"}");
+		} else if("GET".equals(method) && "/version".equals(path)) {
+			respond(exchange, 200, "{\"product_id\":\"MSCL\",\"version\":\"4.0.0\"}");
+		} else if("GET".equals(method) && "/stat/engines".equals(path)) {
+			respond(exchange, 200, enginesJson);
+		} else if("POST".equals(method) && "/file".equals(path)) {
+			upload(exchange);
+		} else if("GET".equals(method) && path.startsWith("/file/")) {
+			poll(exchange, path.substring("/file/".length()));
+		} else if("GET".equals(method) && path.startsWith("/hash/")) {
+			lookup(exchange, path.substring("/hash/".length()));
+		} else {
+			respond(exchange, 404, "{\"err\":\"Not found: " + method + " " + path + "\"}");
+		}
+	}
+
+	private void upload(HttpExchange exchange) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		drain(exchange.getRequestBody(), digest);
+
+		String dataId = Long.toHexString(nextDataId.getAndIncrement());
+		scanStarts.put(dataId, System.currentTimeMillis());
+		dataIdsByHash.put(toHex(digest.digest()), dataId);
+		uploads.incrementAndGet();
+		respond(exchange, 200, "{\"data_id\":\"" + dataId + "\"}");
+	}
+
+	private void poll(HttpExchange exchange, String dataId) throws IOException {
+		polls.incrementAndGet();
+		respond(exchange, 200, resultOf(dataId));
+	}
+
+	private void lookup(HttpExchange exchange, String hash) throws IOException {
+		String dataId = dataIdsByHash.get(hash.toLowerCase());
+		respond(exchange, 200, dataId == null ? "{\"" + hash + "\":\"Not Found\"}" : resultOf(dataId));
+	}
+
+	private String resultOf(String dataId) {
+		Long start = scanStarts.get(dataId);
+		if(start == null) {
+			return "{\"" + dataId + "\":\"Not Found\"}";
+		}
+		int progress = progressCurve.progress(System.currentTimeMillis() - start, scanDelay);
+		// the real scan time, AdaptivePollingPolicy learns its first poll delay from it
+		return scanResultJson(dataId, progress, scanDetailsJson, engines, scanDelay);
+	}
+
+	private static void drain(InputStream body, MessageDigest digest) throws IOException {
+		byte[] buffer = new byte[8192];
+		int read;
+		while((read = body.read(buffer)) != -1) {
+			if(digest != null) {
+				digest.update(buffer, 0, read);
+			}
+		}
+	}
+
+	private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+		byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(bytes);
+		out.close();
+	}
+
+	private static String toHex(byte[] bytes) {
+		char[] digits = "0123456789abcdef".toCharArray();
+		char[] hex = new char[bytes.length * 2];
+		for(int i = 0; i < bytes.length; i++) {
+			hex[2 * i] = digits[(bytes[i] >> 4) & 0xf];
+			hex[2 * i + 1] = digits[bytes[i] & 0xf];
+		}
+		return new String(hex);
+	}
+}
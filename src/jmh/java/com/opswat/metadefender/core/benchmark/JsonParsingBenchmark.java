@@ -0,0 +1,88 @@
+package com.opswat.metadefender.core.benchmark;
+
+import com.opswat.metadefender.core.client.HttpConnector;
+import com.opswat.metadefender.core.client.MetadefenderCoreClient;
+import com.opswat.metadefender.core.client.ScanProgress;
+import com.opswat.metadefender.core.client.responses.FileScanResult;
+import com.opswat.metadefender.core.service.ScanVerdict;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of /file/{data_id} answers with large scan_details maps, without any network: the client's
+ * HttpConnector returns a prepared body.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonParsingBenchmark {
+
+	private static final String DATA_ID = "benchmark";
+
+	@Param({"10", "40", "200"})
+	public int engines;
+
+	@Param({"50", "100"})
+	public int progress;
+
+	private MetadefenderCoreClient client;
+	private FileScanResult finishedResult;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		final String body = FakeCoreServer.scanResultJson(DATA_ID, progress, FakeCoreServer.scanDetailsJson(engines), engines);
+		final String finishedBody = FakeCoreServer.scanResultJson(DATA_ID, 100, FakeCoreServer.scanDetailsJson(engines), engines);
+
+		client = new MetadefenderCoreClient("http://benchmark");
+		client.setHttpConnector(new HttpConnector() {
+			@Override
+			public HttpResponse sendRequest(String url, String method) {
+				return new HttpResponse(body, 200);
+			}
+		});
+
+		MetadefenderCoreClient finishedClient = new MetadefenderCoreClient("http://benchmark");
+		finishedClient.setHttpConnector(new HttpConnector() {
+			@Override
+			public HttpResponse sendRequest(String url, String method) {
+				return new HttpResponse(finishedBody, 200);
+			}
+		});
+		finishedResult = finishedClient.fetchScanResult(DATA_ID);
+	}
+
+	@Benchmark
+	public FileScanResult fullBinding() throws Exception {
+		return client.fetchScanResult(DATA_ID);
+	}
+
+	@Benchmark
+	public ScanProgress progressOnly() throws Exception {
+		return client.fetchScanProgress(DATA_ID);
+	}
+
+	@Benchmark
+	public boolean verdict() {
+		return ScanVerdict.of("benchmark.bin", finishedResult).isAllowed();
+	}
+
+	@Benchmark
+	public String verdictReport() {
+		return ScanVerdict.of("benchmark.bin", finishedResult).toText();
+	}
+}
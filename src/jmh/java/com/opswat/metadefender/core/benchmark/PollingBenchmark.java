@@ -0,0 +1,67 @@
+package com.opswat.metadefender.core.benchmark;
+
+import com.opswat.metadefender.core.client.MetadefenderCoreClient;
+import com.opswat.metadefender.core.client.ScanProgress;
+import com.opswat.metadefender.core.client.responses.FileScanResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of a single poll of a running scan over HTTP: the progress-only fast path against full result binding.
+ * The scan never finishes during the benchmark.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PollingBenchmark {
+
+	// long enough to never finish while measuring
+	private static final long SCAN_DELAY = TimeUnit.DAYS.toMillis(1);
+
+	@Param({"10", "100"})
+	public int engines;
+
+	private FakeCoreServer server;
+	private MetadefenderCoreClient client;
+	private String dataId;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		server = new FakeCoreServer(SCAN_DELAY, FakeCoreServer.ProgressCurve.LINEAR, engines);
+		client = new MetadefenderCoreClient(server.getApiEndPointUrl());
+		dataId = client.scanFile(new ByteArrayInputStream(new byte[1024]), null);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		client.close();
+		server.close();
+	}
+
+	@Benchmark
+	public ScanProgress pollProgress() throws Exception {
+		return client.fetchScanProgress(dataId);
+	}
+
+	@Benchmark
+	public FileScanResult pollFullResult() throws Exception {
+		return client.fetchScanResult(dataId);
+	}
+}
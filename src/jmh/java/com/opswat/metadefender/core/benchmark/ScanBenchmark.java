@@ -0,0 +1,100 @@
+package com.opswat.metadefender.core.benchmark;
+
+import com.opswat.metadefender.core.client.AdaptivePollingPolicy;
+import com.opswat.metadefender.core.client.MetadefenderCoreClient;
+import com.opswat.metadefender.core.client.PollingPolicy;
+import com.opswat.metadefender.core.client.responses.FileScanResult;
+import com.opswat.metadefender.core.service.ContentHasher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End to end scans against FakeCoreServer: upload, polling through the ScanResultPoller and result binding.
+ * With scanDelay 0 the numbers are the client overhead, with a delay they show how well polling follows the scan.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScanBenchmark {
+
+	private static final int SCAN_TIMEOUT = 60000;
+
+	@Param({"0", "200"})
+	public long scanDelay;
+
+	@Param({"LINEAR", "STEP"})
+	public FakeCoreServer.ProgressCurve progressCurve;
+
+	@Param({"20"})
+	public int engines;
+
+	@Param({"65536"})
+	public int fileSize;
+
+	private FakeCoreServer server;
+	private MetadefenderCoreClient client;
+	private PollingPolicy pollingPolicy;
+	private byte[] file;
+	private String knownHash;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		server = new FakeCoreServer(scanDelay, progressCurve, engines);
+		client = new MetadefenderCoreClient(server.getApiEndPointUrl());
+		pollingPolicy = new AdaptivePollingPolicy();
+
+		file = new byte[fileSize];
+		new Random(42).nextBytes(file);
+		client.scanFile(new ByteArrayInputStream(file), null);
+		knownHash = ContentHasher.sha256(new ByteArrayInputStream(file));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		client.close();
+		server.close();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public FileScanResult singleScanLatency() throws Exception {
+		return scan();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	@Threads(32)
+	public FileScanResult concurrentScanThroughput() throws Exception {
+		return scan();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public FileScanResult hashLookupLatency() throws Exception {
+		return client.findScanResultByHash(knownHash);
+	}
+
+	private FileScanResult scan() throws Exception {
+		return client.scanFileSync(new ByteArrayInputStream(file), null, pollingPolicy.newSchedule("benchmark.bin", file.length), SCAN_TIMEOUT);
+	}
+}
@@ -0,0 +1,176 @@
+package com.opswat.metadefender.core.client;
+
+import com.opswat.metadefender.core.client.responses.FileScanResult;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Polling policy driven by the scan progress and by the scan times seen so far.
+ *
+ * The remaining scan time is estimated from progress_percentage and from the average total_time of recent
+ * scans of similar files (same file extension, same power of two size bucket). The next poll is scheduled at
+ * half of the estimated remaining time, clamped between the min and max interval: almost finished scans are
+ * polled fast, large archives are polled rarely.
+ */
+public class AdaptivePollingPolicy implements PollingPolicy {
+
+	public static final int DEFAULT_MIN_INTERVAL = 50;
+	public static final int DEFAULT_MAX_INTERVAL = 2000;
+
+	// upper bound of learned buckets, file extensions are client provided
+	private static final int MAX_BUCKETS = 1024;
+
+	// weight of the newest sample in the moving average
+	private static final double SMOOTHING = 0.2;
+
+	private final int minInterval;
+	private final int maxInterval;
+
+	private final ConcurrentMap<String, ScanTimeAverage> scanTimes = new ConcurrentHashMap<String, ScanTimeAverage>();
+
+
+	public AdaptivePollingPolicy() {
+		this(DEFAULT_MIN_INTERVAL, DEFAULT_MAX_INTERVAL);
+	}
+
+	/**
+	 * @param minInterval shortest polling time in millis
+	 * @param maxInterval longest polling time in millis
+	 */
+	public AdaptivePollingPolicy(int minInterval, int maxInterval) {
+		if(minInterval <= 0 || maxInterval < minInterval) {
+			throw new IllegalArgumentException("0 < minInterval <= maxInterval is required");
+		}
+		this.minInterval = minInterval;
+		this.maxInterval = maxInterval;
+	}
+
+	@Override
+	public PollingSchedule newSchedule(String fileName, long fileSize) {
+		return new AdaptiveSchedule(getBucket(fileName, fileSize));
+	}
+
+	/**
+	 * @param fileName name of the file, can be NULL
+	 * @param fileSize size of the file in bytes, negative if unknown
+	 * @return average scan time in millis of similar files, -1 if no such scan was seen yet
+	 */
+	public long getExpectedScanTime(String fileName, long fileSize) {
+		ScanTimeAverage average = scanTimes.get(getBucket(fileName, fileSize));
+		return average == null ? -1 : average.get();
+	}
+
+
+	private void recordScanTime(String bucket, long scanTime) {
+		ScanTimeAverage average = scanTimes.get(bucket);
+		if(average == null) {
+			if(scanTimes.size() >= MAX_BUCKETS) {
+				return;
+			}
+			ScanTimeAverage created = new ScanTimeAverage();
+			average = scanTimes.putIfAbsent(bucket, created);
+			if(average == null) {
+				average = created;
+			}
+		}
+		average.add(scanTime);
+	}
+
+	private long clamp(long delay) {
+		return Math.max(minInterval, Math.min(maxInterval, delay));
+	}
+
+	private static String getBucket(String fileName, long fileSize) {
+		String extension = "";
+		if(fileName != null) {
+			int dot = fileName.lastIndexOf('.');
+			if(dot >= 0 && dot < fileName.length() - 1) {
+				extension = fileName.substring(dot + 1).toLowerCase(Locale.ROOT);
+			}
+		}
+		int sizeBucket = fileSize < 0 ? -1 : 64 - Long.numberOfLeadingZeros(fileSize);
+		return extension + ":" + sizeBucket;
+	}
+
+
+	private class AdaptiveSchedule implements PollingSchedule {
+
+		private final String bucket;
+		// the poller calls a schedule from one fetch at a time, possibly on different threads
+		private volatile int polls = 0;
+
+		AdaptiveSchedule(String bucket) {
+			this.bucket = bucket;
+		}
+
+		@Override
+		public long nextDelay(FileScanResult lastResult, long elapsed) {
+			if(lastResult == null) {
+				// first poll: wait for half of the typical scan time, poll at once if nothing is known yet
+				long expected = getExpectedScanTime();
+				return expected > 0 ? clamp(expected / 2) : 0;
+			}
+			return delay(lastResult.scan_results == null ? 0 : lastResult.scan_results.progress_percentage, elapsed);
+		}
+
+		@Override
+		public long nextDelayAfter(ScanProgress lastProgress, long elapsed) {
+			return delay(lastProgress.getProgressPercentage(), elapsed);
+		}
+
+		private long getExpectedScanTime() {
+			ScanTimeAverage average = scanTimes.get(bucket);
+			return average == null ? -1 : average.get();
+		}
+
+		private long delay(int progress, long elapsed) {
+			long expected = getExpectedScanTime();
+			polls++;
+
+			long byHistory = expected > 0 ? Math.max(expected - elapsed, 0) : -1;
+
+			long byProgress = -1;
+			if(progress > 0 && progress < 100) {
+				byProgress = elapsed * (100 - progress) / progress;
+			}
+
+			long remaining;
+			if(byHistory >= 0 && byProgress >= 0) {
+				remaining = (byHistory + byProgress) / 2;
+			} else if(byProgress >= 0) {
+				remaining = byProgress;
+			} else if(byHistory >= 0) {
+				remaining = byHistory;
+			} else {
+				// no information at all, plain exponential backoff
+				return clamp((long) minInterval << Math.min(polls, 16));
+			}
+
+			return clamp(remaining / 2);
+		}
+
+		@Override
+		public void finished(FileScanResult result, long elapsed) {
+			long scanTime = elapsed;
+			if(result.scan_results != null && result.scan_results.total_time > 0) {
+				scanTime = result.scan_results.total_time;
+			}
+			recordScanTime(bucket, scanTime);
+		}
+	}
+
+	private static class ScanTimeAverage {
+
+		private double average = -1;
+
+		synchronized void add(long scanTime) {
+			average = average < 0 ? scanTime : average + SMOOTHING * (scanTime - average);
+		}
+
+		synchronized long get() {
+			return (long) average;
+		}
+	}
+}
@@ -0,0 +1,109 @@
+package com.opswat.metadefender.core.client;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongSupplier;
+
+/**
+ * Circuit breaker of a single api end point.
+ *
+ * CLOSED: requests pass, consecutive failures are counted. After failureThreshold failures the breaker opens.
+ * OPEN: requests fail fast until openDuration elapsed, then the breaker is half-open.
+ * HALF_OPEN: a single trial request passes; its success closes the breaker, its failure opens it again.
+ */
+public class CircuitBreaker {
+
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+	public static final long DEFAULT_OPEN_DURATION = 10000;
+
+	private static final LongSupplier SYSTEM_CLOCK = new LongSupplier() {
+		@Override
+		public long getAsLong() {
+			return System.currentTimeMillis();
+		}
+	};
+
+	private final int failureThreshold;
+	private final long openDuration;
+	private final LongSupplier clock;
+
+	// guarded by this
+	private int consecutiveFailures = 0;
+	private long openedAt = 0;
+	private State state = State.CLOSED;
+
+	private final AtomicBoolean trialInProgress = new AtomicBoolean(false);
+
+
+	public CircuitBreaker() {
+		this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_DURATION);
+	}
+
+	/**
+	 * @param failureThreshold consecutive failures opening the breaker
+	 * @param openDuration millis the breaker stays open before a trial request is let through
+	 */
+	public CircuitBreaker(int failureThreshold, long openDuration) {
+		this(failureThreshold, openDuration, SYSTEM_CLOCK);
+	}
+
+	/**
+	 * @param clock current time in millis
+	 */
+	CircuitBreaker(int failureThreshold, long openDuration, LongSupplier clock) {
+		if(failureThreshold <= 0 || openDuration <= 0) {
+			throw new IllegalArgumentException("failureThreshold and openDuration must be positive");
+		}
+		this.failureThreshold = failureThreshold;
+		this.openDuration = openDuration;
+		this.clock = clock;
+	}
+
+	/**
+	 * @return true if a request may be sent now. If true, onSuccess, onFailure or onIgnored must be called with its outcome.
+	 */
+	public boolean allowRequest() {
+		synchronized (this) {
+			if(state == State.CLOSED) {
+				return true;
+			}
+			if(state == State.OPEN) {
+				if(clock.getAsLong() - openedAt < openDuration) {
+					return false;
+				}
+				state = State.HALF_OPEN;
+			}
+		}
+		// half-open: only one trial request at a time
+		return trialInProgress.compareAndSet(false, true);
+	}
+
+	public synchronized void onSuccess() {
+		consecutiveFailures = 0;
+		state = State.CLOSED;
+		trialInProgress.set(false);
+	}
+
+	public synchronized void onFailure() {
+		consecutiveFailures++;
+		if(state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+			state = State.OPEN;
+			openedAt = clock.getAsLong();
+		}
+		trialInProgress.set(false);
+	}
+
+	/**
+	 * The request failed before reaching the end point, like a failed read of its body: the state is kept.
+	 */
+	public synchronized void onIgnored() {
+		trialInProgress.set(false);
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+}
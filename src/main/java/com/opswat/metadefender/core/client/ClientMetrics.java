@@ -0,0 +1,186 @@
+package com.opswat.metadefender.core.client;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measurements of one MetadefenderCoreClient, see MetadefenderCoreClient.getMetrics.
+ *
+ * A scan is split in time-to-accept, the upload until the server returned a data_id, and time-to-verdict, from
+ * the acceptance until the finished result was polled. All durations are in nanoseconds. Every measurement is also
+ * passed to the MetricsListener, if one is set.
+ */
+public class ClientMetrics {
+
+	private final String apiEndPointUrl;
+
+	private final ConcurrentMap<String, Histogram> requestLatency = new ConcurrentHashMap<String, Histogram>();
+	private final LongAdder requestErrors = new LongAdder();
+	private final LongAdder listenerErrors = new LongAdder();
+
+	private final Histogram acceptLatency = new Histogram();
+	private final Histogram verdictLatency = new Histogram();
+	private final Histogram pollsPerScan = new Histogram();
+	private final LongAdder bytesUploaded = new LongAdder();
+	private final AtomicInteger inFlightScans = new AtomicInteger(0);
+
+	private volatile MetricsListener listener = null;
+
+
+	ClientMetrics(String apiEndPointUrl) {
+		this.apiEndPointUrl = apiEndPointUrl;
+	}
+
+	/**
+	 * @param metricsListener listener receiving every measurement, NULL for none
+	 */
+	public void setListener(MetricsListener metricsListener) {
+		this.listener = metricsListener;
+	}
+
+	public MetricsListener getListener() {
+		return listener;
+	}
+
+	/**
+	 * @return request latency per api point, like "GET /file/{data_id}"
+	 */
+	public Map<String, Histogram> getRequestLatency() {
+		return Collections.unmodifiableMap(requestLatency);
+	}
+
+	/**
+	 * @return number of requests failing without an answer or with a 5xx answer
+	 */
+	public long getRequestErrors() {
+		return requestErrors.sum();
+	}
+
+	/**
+	 * @return number of exceptions thrown by the MetricsListener, they are ignored otherwise
+	 */
+	public long getListenerErrors() {
+		return listenerErrors.sum();
+	}
+
+	public Histogram getAcceptLatency() {
+		return acceptLatency;
+	}
+
+	public Histogram getVerdictLatency() {
+		return verdictLatency;
+	}
+
+	public Histogram getPollsPerScan() {
+		return pollsPerScan;
+	}
+
+	public long getBytesUploaded() {
+		return bytesUploaded.sum();
+	}
+
+	/**
+	 * @return number of accepted scans still polled
+	 */
+	public int getInFlightScans() {
+		return inFlightScans.get();
+	}
+
+	@Override
+	public String toString() {
+		return "ClientMetrics{" + apiEndPointUrl +
+				", requests=" + requestLatency +
+				", requestErrors=" + getRequestErrors() +
+				", accept=" + acceptLatency +
+				", verdict=" + verdictLatency +
+				", pollsPerScan=" + pollsPerScan +
+				", bytesUploaded=" + getBytesUploaded() +
+				", inFlightScans=" + getInFlightScans() +
+				'}';
+	}
+
+
+	void requestFinished(String apiPoint, int responseCode, long latencyNanos) {
+		Histogram histogram = requestLatency.get(apiPoint);
+		if(histogram == null) {
+			// the api points are a small fixed set
+			requestLatency.putIfAbsent(apiPoint, new Histogram());
+			histogram = requestLatency.get(apiPoint);
+		}
+		histogram.record(latencyNanos);
+		if(responseCode <= 0 || responseCode >= 500) {
+			requestErrors.increment();
+		}
+
+		MetricsListener metricsListener = listener;
+		if(metricsListener != null) {
+			try {
+				metricsListener.onRequest(apiEndPointUrl, apiPoint, responseCode, latencyNanos);
+			} catch (RuntimeException e) {
+				listenerFailed();
+			}
+		}
+	}
+
+	void scanAccepted(long bytes, long acceptNanos) {
+		bytesUploaded.add(bytes);
+		acceptLatency.record(acceptNanos);
+
+		MetricsListener metricsListener = listener;
+		if(metricsListener != null) {
+			try {
+				metricsListener.onScanAccepted(apiEndPointUrl, bytes, acceptNanos);
+			} catch (RuntimeException e) {
+				listenerFailed();
+			}
+		}
+	}
+
+	void scanFinished(int polls, long verdictNanos) {
+		pollsPerScan.record(polls);
+		verdictLatency.record(verdictNanos);
+
+		MetricsListener metricsListener = listener;
+		if(metricsListener != null) {
+			try {
+				metricsListener.onScanFinished(apiEndPointUrl, polls, verdictNanos);
+			} catch (RuntimeException e) {
+				listenerFailed();
+			}
+		}
+	}
+
+	/**
+	 * Record a lookup of a cache kept in front of this client's server.
+	 *
+	 * @param cacheName name of the cache
+	 * @param hit true if the cache answered
+	 */
+	public void cacheLookup(String cacheName, boolean hit) {
+		MetricsListener metricsListener = listener;
+		if(metricsListener != null) {
+			try {
+				metricsListener.onCacheLookup(cacheName, hit);
+			} catch (RuntimeException e) {
+				listenerFailed();
+			}
+		}
+	}
+
+	void scanStarted() {
+		inFlightScans.incrementAndGet();
+	}
+
+	void scanEnded() {
+		inFlightScans.decrementAndGet();
+	}
+
+	private void listenerFailed() {
+		// a broken exporter must not fail or repeat the measured request
+		listenerErrors.increment();
+	}
+}
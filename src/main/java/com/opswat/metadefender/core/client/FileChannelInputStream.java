@@ -0,0 +1,86 @@
+package com.opswat.metadefender.core.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * InputStream view of a FileChannel for uploading files through HttpConnector.
+ *
+ * Reads go straight from the channel into the caller's buffer. The ByteBuffer wrapping it is kept while the
+ * caller reuses the same array, as uploads do, so nothing is allocated per read and the memory used by an upload
+ * is constant whatever the file size.
+ */
+public class FileChannelInputStream extends InputStream {
+
+	private final FileChannel channel;
+	private final boolean closeChannel;
+
+	private final byte[] single = new byte[1];
+
+	// wrapper of the last array read into
+	private byte[] wrappedArray;
+	private ByteBuffer wrapper;
+
+
+	/**
+	 * @param channel channel to read, from its current position
+	 * @param closeChannel true if closing this stream closes the channel as well
+	 */
+	public FileChannelInputStream(FileChannel channel, boolean closeChannel) {
+		if(channel == null) {
+			throw new IllegalArgumentException("channel cannot be null");
+		}
+		this.channel = channel;
+		this.closeChannel = closeChannel;
+	}
+
+	@Override
+	public int read() throws IOException {
+		int read = read(single, 0, 1);
+		return read == -1 ? -1 : single[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if(off < 0 || len < 0 || len > b.length - off) {
+			throw new IndexOutOfBoundsException("off: " + off + ", len: " + len + ", length: " + b.length);
+		}
+		if(len == 0) {
+			return 0;
+		}
+		if(b != wrappedArray) {
+			wrapper = ByteBuffer.wrap(b);
+			wrappedArray = b;
+		}
+		wrapper.clear();
+		wrapper.limit(off + len);
+		wrapper.position(off);
+		// a blocking FileChannel reads at least one byte unless it is at the end of the file
+		return channel.read(wrapper);
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		if(n <= 0) {
+			return 0;
+		}
+		long position = channel.position();
+		long skipped = Math.min(n, Math.max(channel.size() - position, 0));
+		channel.position(position + skipped);
+		return skipped;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return (int) Math.min(Integer.MAX_VALUE, Math.max(channel.size() - channel.position(), 0));
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(closeChannel) {
+			channel.close();
+		}
+	}
+}
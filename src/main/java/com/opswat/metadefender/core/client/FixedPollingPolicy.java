@@ -0,0 +1,52 @@
+package com.opswat.metadefender.core.client;
+
+import com.opswat.metadefender.core.client.responses.FileScanResult;
+
+/**
+ * Polls immediately after the upload, then at a fixed interval.
+ */
+public class FixedPollingPolicy implements PollingPolicy {
+
+	private final Schedule schedule;
+
+
+	/**
+	 * @param pollingInterval polling time in millis
+	 */
+	public FixedPollingPolicy(int pollingInterval) {
+		if(pollingInterval < 0) {
+			throw new IllegalArgumentException("pollingInterval cannot be negative");
+		}
+		this.schedule = new Schedule(pollingInterval);
+	}
+
+	@Override
+	public PollingSchedule newSchedule(String fileName, long fileSize) {
+		// stateless, a single schedule instance serves every scan
+		return schedule;
+	}
+
+
+	private static class Schedule implements PollingSchedule {
+
+		private final int pollingInterval;
+
+		Schedule(int pollingInterval) {
+			this.pollingInterval = pollingInterval;
+		}
+
+		@Override
+		public long nextDelay(FileScanResult lastResult, long elapsed) {
+			return lastResult == null ? 0 : pollingInterval;
+		}
+
+		@Override
+		public long nextDelayAfter(ScanProgress lastProgress, long elapsed) {
+			return pollingInterval;
+		}
+
+		@Override
+		public void finished(FileScanResult result, long elapsed) {
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package com.opswat.metadefender.core.client;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of non negative values with power of two buckets.
+ *
+ * Recording is a few atomic increments and allocates nothing. Percentiles are approximate: they return the upper
+ * bound of the bucket holding the requested rank, so they are at most twice the real value.
+ */
+public class Histogram {
+
+	// bucket i holds the values in [2^(i-1), 2^i - 1], bucket 0 holds 0
+	private static final int BUCKETS = 64;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong(0);
+
+
+	/**
+	 * @param value value to record, negative values are recorded as 0
+	 */
+	public void record(long value) {
+		long recorded = Math.max(value, 0);
+		buckets.incrementAndGet(Math.min(64 - Long.numberOfLeadingZeros(recorded), BUCKETS - 1));
+		count.increment();
+		sum.add(recorded);
+
+		long currentMax = max.get();
+		while(recorded > currentMax && !max.compareAndSet(currentMax, recorded)) {
+			currentMax = max.get();
+		}
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public long getSum() {
+		return sum.sum();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long n = count.sum();
+		return n == 0 ? 0 : (double) sum.sum() / n;
+	}
+
+	/**
+	 * @param quantile between 0 and 1, like 0.99
+	 * @return upper bound of the bucket holding the quantile, 0 if nothing was recorded
+	 */
+	public long getPercentile(double quantile) {
+		long total = 0;
+		long[] counts = new long[BUCKETS];
+		for(int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets.get(i);
+			total += counts[i];
+		}
+		if(total == 0) {
+			return 0;
+		}
+
+		long rank = (long) Math.ceil(Math.min(Math.max(quantile, 0), 1) * total);
+		long seen = 0;
+		for(int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if(seen >= Math.max(rank, 1)) {
+				long upperBound = i == 0 ? 0 : (i >= 63 ? Long.MAX_VALUE : (1L << i) - 1);
+				return Math.min(upperBound, max.get());
+			}
+		}
+		return max.get();
+	}
+
+	@Override
+	public String toString() {
+		return "Histogram{count=" + getCount() + ", mean=" + (long) getMean() + ", p50=" + getPercentile(0.5)
+				+ ", p99=" + getPercentile(0.99) + ", max=" + getMax() + '}';
+	}
+}
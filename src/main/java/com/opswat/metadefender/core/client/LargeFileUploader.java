@@ -0,0 +1,182 @@
+package com.opswat.metadefender.core.client;
+
+import com.opswat.metadefender.core.client.exceptions.MetadefenderClientException;
+import com.opswat.metadefender.core.client.responses.FileScanResult;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Upload of very large files: the file is read ahead in chunks on a background thread while the previous chunks
+ * are sent, progress is reported per chunk, and a failed upload is retried.
+ *
+ * Metadefender Core v4 accepts a file only as one POST /file request, it has no api point for appending or
+ * resuming segments. A failed upload is therefore sent again from the start of the file, after a backoff of the
+ * retry policy; only uploads from a Path are retried, a stream cannot be read twice.
+ */
+public class LargeFileUploader {
+
+	public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+	public static final int DEFAULT_READ_AHEAD_CHUNKS = 4;
+
+	private final MetadefenderCoreClient client;
+
+	private volatile int chunkSize = DEFAULT_CHUNK_SIZE;
+	private volatile int readAheadChunks = DEFAULT_READ_AHEAD_CHUNKS;
+	private volatile RetryPolicy retryPolicy = new RetryPolicy();
+	private volatile UploadProgressListener progressListener = null;
+
+
+	/**
+	 * @param client client to upload with
+	 */
+	public LargeFileUploader(MetadefenderCoreClient client) {
+		if(client == null) {
+			throw new IllegalArgumentException("client cannot be null");
+		}
+		this.client = client;
+	}
+
+	/**
+	 * @param chunkSize size of the chunks read ahead, default 1 MB
+	 * @param readAheadChunks number of chunk buffers per upload, default 4
+	 */
+	public void setChunking(int chunkSize, int readAheadChunks) {
+		if(chunkSize <= 0 || readAheadChunks <= 0) {
+			throw new IllegalArgumentException("chunkSize and readAheadChunks must be positive");
+		}
+		this.chunkSize = chunkSize;
+		this.readAheadChunks = readAheadChunks;
+	}
+
+	/**
+	 * @param retryPolicy retries of failed uploads from a Path, default 3 retries
+	 */
+	public void setRetryPolicy(RetryPolicy retryPolicy) {
+		if(retryPolicy == null) {
+			throw new IllegalArgumentException("retryPolicy cannot be null");
+		}
+		this.retryPolicy = retryPolicy;
+	}
+
+	/**
+	 * @param progressListener progress callback of the uploads, NULL for none
+	 */
+	public void setProgressListener(UploadProgressListener progressListener) {
+		this.progressListener = progressListener;
+	}
+
+	/**
+	 * Upload a file, retrying from the start of the file when the connection fails or the server answers 5xx.
+	 * Local failures are not retried: a failed read of the file, a closed client or an unreadable answer to an
+	 * accepted upload.
+	 *
+	 * @param path file to scan
+	 * @param fileScanOptions optional file scan options
+	 * @return unique data id for this file scan
+	 * @throws MetadefenderClientException if the file cannot be read, the server rejected it or all attempts failed
+	 */
+	public String upload(Path path, FileScanOptions fileScanOptions) throws MetadefenderClientException {
+		if(path == null) {
+			throw new MetadefenderClientException("Path cannot be null");
+		}
+
+		long totalBytes;
+		try {
+			totalBytes = Files.size(path);
+		} catch (IOException e) {
+			throw new MetadefenderClientException("Cannot open file: " + path + " " + e.getMessage());
+		}
+
+		RetryPolicy retries = this.retryPolicy;
+		for(int attempt = 0; ; attempt++) {
+			InputStream inputStream;
+			try {
+				inputStream = new FileChannelInputStream(FileChannel.open(path, StandardOpenOption.READ), true);
+			} catch (IOException e) {
+				throw new MetadefenderClientException("Cannot open file: " + path + " " + e.getMessage());
+			}
+
+			ReadFailureDetector readAhead = readAhead(inputStream, totalBytes);
+			try {
+				return uploadWithReadAhead(readAhead, fileScanOptions);
+			} catch (MetadefenderClientException e) {
+				// the connector reports a failed read of the file and a closed client like a dropped connection
+				if(attempt >= retries.getMaxRetries() || readAhead.hasFailed() || client.isClosed() || !isRetryable(e)) {
+					throw e;
+				}
+				UploadProgressListener listener = this.progressListener;
+				if(listener != null) {
+					listener.onRetry(attempt + 1, e);
+				}
+				sleep(retries.getDelay(attempt));
+			}
+		}
+	}
+
+	/**
+	 * Upload a stream with read-ahead and progress. A stream cannot be replayed, a failed upload is not retried.
+	 *
+	 * @param inputStream stream to scan, closed when the upload is done
+	 * @param fileScanOptions optional file scan options
+	 * @param totalBytes size of the stream for the progress callback, -1 if unknown
+	 * @return unique data id for this file scan
+	 * @throws MetadefenderClientException if the upload failed
+	 */
+	public String upload(InputStream inputStream, FileScanOptions fileScanOptions, long totalBytes) throws MetadefenderClientException {
+		if(inputStream == null) {
+			throw new MetadefenderClientException("Stream cannot be null");
+		}
+		return uploadWithReadAhead(readAhead(inputStream, totalBytes), fileScanOptions);
+	}
+
+	/**
+	 * Upload a file as upload(Path, FileScanOptions) does, then poll its result.
+	 *
+	 * @param path file to scan
+	 * @param fileScanOptions optional file scan options
+	 * @param pollingSchedule polling schedule of this scan
+	 * @return future completed with the finished FileScanResult. Cancel it to stop polling.
+	 * @throws MetadefenderClientException if the upload failed
+	 */
+	public CompletableFuture<FileScanResult> scanFileAsync(Path path, FileScanOptions fileScanOptions, PollingSchedule pollingSchedule) throws MetadefenderClientException {
+		return client.pollScanResult(upload(path, fileScanOptions), pollingSchedule);
+	}
+
+
+	private ReadFailureDetector readAhead(InputStream inputStream, long totalBytes) {
+		return new ReadFailureDetector(new ReadAheadInputStream(inputStream, chunkSize, readAheadChunks, progressListener, totalBytes));
+	}
+
+	private String uploadWithReadAhead(ReadFailureDetector readAhead, FileScanOptions fileScanOptions) throws MetadefenderClientException {
+		try {
+			return client.scanFile(readAhead, fileScanOptions);
+		} finally {
+			try {
+				readAhead.close();
+			} catch (IOException e) {
+				// the upload is over, nothing to do
+			}
+		}
+	}
+
+	private static boolean isRetryable(MetadefenderClientException e) {
+		// connection dropped or server side error; a 4xx answer would be the same on every attempt, and after a 200
+		// the file was accepted, sending it again would scan it twice
+		return e.responseCode <= 0 || e.responseCode >= 500;
+	}
+
+	private static void sleep(long millis) throws MetadefenderClientException {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MetadefenderClientException("Interrupted before retrying the upload");
+		}
+	}
+}
@@ -0,0 +1,347 @@
+package com.opswat.metadefender.core.client;
+
+import com.opswat.metadefender.core.client.exceptions.MetadefenderClientException;
+import com.opswat.metadefender.core.client.responses.FileScanResult;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * Client spreading scans over several Metadefender Core nodes.
+ *
+ * Each upload goes to the healthy node with the lowest load score, (in-flight scans + 1) * average upload
+ * latency. The /file/{data_id} polls of a scan are pinned to the node which accepted its upload. A node failing
+ * FAILURES_TO_EJECT times in a row, with connection errors or 5xx answers, is ejected; ejected nodes are re-probed
+ * with /version in the background and put back once they answer or accept an upload. While every node is ejected,
+ * uploads go to the node whose last failure is the oldest.
+ */
+public class LoadBalancedCoreClient implements Closeable {
+
+	public static final int FAILURES_TO_EJECT = 2;
+	public static final long DEFAULT_PROBE_INTERVAL = 5000;
+
+	// weight of the newest sample in the latency moving average
+	private static final double SMOOTHING = 0.2;
+
+	private final List<Node> nodes;
+
+	private final ScheduledExecutorService prober;
+
+
+	/**
+	 * @param clients one client per Core node
+	 */
+	public LoadBalancedCoreClient(List<MetadefenderCoreClient> clients) {
+		this(clients, DEFAULT_PROBE_INTERVAL);
+	}
+
+	/**
+	 * @param clients one client per Core node
+	 * @param probeInterval millis between two health probes of ejected nodes
+	 */
+	public LoadBalancedCoreClient(List<MetadefenderCoreClient> clients, long probeInterval) {
+		if(clients == null || clients.isEmpty()) {
+			throw new IllegalArgumentException("At least one client is required");
+		}
+		List<Node> nodeList = new ArrayList<Node>();
+		for(MetadefenderCoreClient client : clients) {
+			nodeList.add(new Node(client));
+		}
+		this.nodes = Collections.unmodifiableList(nodeList);
+
+		this.prober = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "metadefender-node-prober");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		prober.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				probeEjectedNodes();
+			}
+		}, probeInterval, probeInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @param apiEndPointUrls Format: protocol://host:port  Example value: http://localhost:8008
+	 * @return client balancing over unauthenticated clients of the given end points
+	 */
+	public static LoadBalancedCoreClient forEndPoints(String... apiEndPointUrls) {
+		List<MetadefenderCoreClient> clients = new ArrayList<MetadefenderCoreClient>();
+		for(String apiEndPointUrl : apiEndPointUrls) {
+			clients.add(new MetadefenderCoreClient(apiEndPointUrl));
+		}
+		return new LoadBalancedCoreClient(clients);
+	}
+
+	/**
+	 * Upload a file to the least loaded healthy node. An upload failing with a connection error or a 5xx answer is
+	 * retried on the next best node, a 4xx answer or a failed read of the file fails at once.
+	 *
+	 * @param path file to scan
+	 * @param fileScanOptions optional file scan options
+	 * @param pollingSchedule polling schedule of this scan
+	 * @return future completed with the finished FileScanResult. Cancel it to stop polling.
+	 * @throws MetadefenderClientException if the file cannot be opened or no node accepted the upload
+	 */
+	public CompletableFuture<FileScanResult> scanFileAsync(Path path, FileScanOptions fileScanOptions, PollingSchedule pollingSchedule) throws MetadefenderClientException {
+		if(path == null) {
+			throw new MetadefenderClientException("Path cannot be null");
+		}
+
+		MetadefenderClientException lastError = null;
+		List<Node> tried = new ArrayList<Node>();
+
+		for(int attempt = 0; attempt < nodes.size(); attempt++) {
+			Node node = selectNode(tried);
+			if(node == null) {
+				break;
+			}
+			tried.add(node);
+
+			// opened here, a file which cannot be read is not a node failure and is not retried
+			ReadFailureDetector inputStream;
+			try {
+				inputStream = new ReadFailureDetector(new FileChannelInputStream(FileChannel.open(path, StandardOpenOption.READ), true));
+			} catch (IOException e) {
+				throw new MetadefenderClientException("Cannot open file: " + path + " " + e.getMessage());
+			}
+
+			try {
+				return node.scan(inputStream, fileScanOptions, pollingSchedule);
+			} catch (MetadefenderClientException e) {
+				if(inputStream.hasFailed() || !Node.isNodeFailure(e)) {
+					// the other nodes would reject the request or fail to read the file as well
+					throw e;
+				}
+				lastError = e;
+			} finally {
+				try {
+					inputStream.close();
+				} catch (IOException e) {
+					// the upload is over, nothing to recover
+				}
+			}
+		}
+
+		throw lastError != null ? lastError : new MetadefenderClientException("No Metadefender Core node left to try");
+	}
+
+	/**
+	 * Upload a stream to the least loaded healthy node. A stream cannot be replayed, so a failed upload is not retried.
+	 *
+	 * @param inputStream input stream to scan
+	 * @param fileScanOptions optional file scan options
+	 * @param pollingSchedule polling schedule of this scan
+	 * @return future completed with the finished FileScanResult. Cancel it to stop polling.
+	 * @throws MetadefenderClientException if the upload failed
+	 */
+	public CompletableFuture<FileScanResult> scanFileAsync(InputStream inputStream, FileScanOptions fileScanOptions, PollingSchedule pollingSchedule) throws MetadefenderClientException {
+		if(inputStream == null) {
+			throw new MetadefenderClientException("Stream cannot be null");
+		}
+		return selectNode(Collections.<Node>emptyList()).scan(new ReadFailureDetector(inputStream), fileScanOptions, pollingSchedule);
+	}
+
+	/**
+	 * Scan file in synchron mode on the least loaded healthy node.
+	 *
+	 * @param path file to scan
+	 * @param fileScanOptions optional file scan options
+	 * @param pollingSchedule polling schedule of this scan
+	 * @param timeout timeout in millis
+	 * @return FileScanResult
+	 * @throws MetadefenderClientException
+	 */
+	public FileScanResult scanFileSync(Path path, FileScanOptions fileScanOptions, PollingSchedule pollingSchedule, int timeout) throws MetadefenderClientException, InterruptedException, ExecutionException, TimeoutException {
+		CompletableFuture<FileScanResult> future = scanFileAsync(path, fileScanOptions, pollingSchedule);
+
+		try {
+			return future.get(timeout, TimeUnit.MILLISECONDS);
+		} finally {
+			future.cancel(true);
+		}
+	}
+
+	/**
+	 * @return the nodes with their current state
+	 */
+	public List<Node> getNodes() {
+		return nodes;
+	}
+
+	/**
+	 * Stop the health probes and close the node clients.
+	 */
+	@Override
+	public void close() {
+		prober.shutdownNow();
+		for(Node node : nodes) {
+			node.client.close();
+		}
+	}
+
+
+	/**
+	 * @return least loaded healthy node, the least recently failed one if every node is ejected. NULL if every node is excluded.
+	 */
+	private Node selectNode(List<Node> excluded) {
+		Node best = null;
+		double bestScore = Double.MAX_VALUE;
+		Node leastRecentlyFailed = null;
+		for(Node node : nodes) {
+			if(excluded.contains(node)) {
+				continue;
+			}
+			if(!node.healthy) {
+				if(leastRecentlyFailed == null || node.lastFailureAt < leastRecentlyFailed.lastFailureAt) {
+					leastRecentlyFailed = node;
+				}
+				continue;
+			}
+			double score = node.getScore();
+			if(score < bestScore) {
+				best = node;
+				bestScore = score;
+			}
+		}
+		// failing fast would fail every scan until the next probe, an ejected node may have recovered since
+		return best != null ? best : leastRecentlyFailed;
+	}
+
+	private void probeEjectedNodes() {
+		for(Node node : nodes) {
+			if(!node.healthy && node.client.isReachable()) {
+				node.consecutiveFailures.set(0);
+				node.healthy = true;
+			}
+		}
+	}
+
+
+	/**
+	 * A Core node and its observed load.
+	 */
+	public static class Node {
+
+		private final MetadefenderCoreClient client;
+
+		private final AtomicInteger inFlight = new AtomicInteger(0);
+		private final AtomicInteger consecutiveFailures = new AtomicInteger(0);
+
+		private volatile double latency = 1;
+		private volatile boolean healthy = true;
+		private volatile long lastFailureAt = 0;
+
+		Node(MetadefenderCoreClient client) {
+			this.client = client;
+		}
+
+		public MetadefenderCoreClient getClient() {
+			return client;
+		}
+
+		/**
+		 * @return number of scans uploaded to or polled from this node
+		 */
+		public int getInFlight() {
+			return inFlight.get();
+		}
+
+		/**
+		 * @return moving average of the upload latency in millis
+		 */
+		public double getLatency() {
+			return latency;
+		}
+
+		public boolean isHealthy() {
+			return healthy;
+		}
+
+		double getScore() {
+			return (inFlight.get() + 1) * latency;
+		}
+
+		CompletableFuture<FileScanResult> scan(ReadFailureDetector input, FileScanOptions fileScanOptions, PollingSchedule pollingSchedule) throws MetadefenderClientException {
+			if(client.isClosed()) {
+				// a local state, the node itself is fine
+				throw new MetadefenderClientException("Client is closed");
+			}
+
+			inFlight.incrementAndGet();
+			long start = System.currentTimeMillis();
+
+			CompletableFuture<FileScanResult> future = null;
+			try {
+				future = client.scanFileAsync(input, fileScanOptions, pollingSchedule);
+			} catch (MetadefenderClientException e) {
+				// the connector reports a failed read of our own input as a connection error too
+				if(isNodeFailure(e) && !input.hasFailed()) {
+					recordFailure();
+				}
+				throw e;
+			} finally {
+				if(future == null) {
+					inFlight.decrementAndGet();
+				}
+			}
+
+			recordLatency(System.currentTimeMillis() - start);
+			future.whenComplete(new BiConsumer<FileScanResult, Throwable>() {
+				@Override
+				public void accept(FileScanResult fileScanResult, Throwable throwable) {
+					inFlight.decrementAndGet();
+					if(throwable instanceof MetadefenderClientException && isNodeFailure((MetadefenderClientException) throwable)
+							&& !client.isClosed()) {
+						recordFailure();
+					}
+				}
+			});
+			return future;
+		}
+
+		private synchronized void recordLatency(long millis) {
+			latency = latency + SMOOTHING * (Math.max(millis, 1) - latency);
+			consecutiveFailures.set(0);
+			// an ejected node tried while every node was ejected has recovered
+			healthy = true;
+		}
+
+		private static boolean isNodeFailure(MetadefenderClientException e) {
+			// no HTTP answer at all or a server side error, 4xx answers come from a working node
+			return e.responseCode <= 0 || e.responseCode >= 500;
+		}
+
+		private void recordFailure() {
+			lastFailureAt = System.currentTimeMillis();
+			if(consecutiveFailures.incrementAndGet() >= FAILURES_TO_EJECT) {
+				healthy = false;
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "Node{" + client.getApiEndPointUrl() + ", healthy=" + healthy + ", inFlight=" + inFlight + ", latency=" + (long) latency + '}';
+		}
+	}
+}
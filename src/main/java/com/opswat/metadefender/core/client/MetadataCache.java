@@ -0,0 +1,344 @@
+package com.opswat.metadefender.core.client;
+
+import com.opswat.metadefender.core.client.exceptions.MetadefenderClientException;
+import com.opswat.metadefender.core.client.responses.ApiVersion;
+import com.opswat.metadefender.core.client.responses.EngineVersion;
+import com.opswat.metadefender.core.client.responses.License;
+import com.opswat.metadefender.core.client.responses.ScanRule;
+
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Refresh-ahead cache of the rarely changing server metadata: engine versions, scan rules, license and api version.
+ *
+ * Reads never wait for the server. Every value is loaded on the refresh thread: the first read starts the load and
+ * gets NULL, later reads return the last known value at once; a value older than the TTL is refreshed in the
+ * background, engine versions and scan rules are also refreshed periodically so MetadataChangeListeners learn about
+ * new definitions without any reader. If a refresh fails the last known value is kept; a value which never loaded
+ * is reported failed to its readers and only loaded again after the retry delay.
+ */
+public class MetadataCache implements Closeable {
+
+	public static final long DEFAULT_TTL = 60 * 1000L;
+	public static final long DEFAULT_RETRY_DELAY = 1000L;
+
+	private final MetadefenderCoreClient client;
+	private final long ttl;
+	private final long retryDelay;
+
+	private final ScheduledExecutorService refresher;
+
+	private final List<MetadataChangeListener> listeners = new CopyOnWriteArrayList<MetadataChangeListener>();
+
+	private final CachedValue<List<EngineVersion>> engineVersions;
+	private final CachedValue<List<ScanRule>> scanRules;
+	private final CachedValue<License> license;
+	private final CachedValue<ApiVersion> version;
+
+	// last notified state, only touched by loads, guarded by this
+	private Map<String, Long> engineDefinitions = null;
+	private Set<String> scanRuleNames = null;
+
+	private volatile long latestDefinitionTime = 0;
+
+
+	public MetadataCache(MetadefenderCoreClient client) {
+		this(client, DEFAULT_TTL, DEFAULT_RETRY_DELAY);
+	}
+
+	/**
+	 * @param client client to load the metadata with
+	 * @param ttl millis after which a value is refreshed
+	 */
+	public MetadataCache(MetadefenderCoreClient client, long ttl) {
+		this(client, ttl, DEFAULT_RETRY_DELAY);
+	}
+
+	/**
+	 * @param client client to load the metadata with
+	 * @param ttl millis after which a value is refreshed
+	 * @param retryDelay millis after which a failed load is tried again
+	 */
+	public MetadataCache(final MetadefenderCoreClient client, long ttl, long retryDelay) {
+		if(client == null || ttl <= 0 || retryDelay <= 0) {
+			throw new IllegalArgumentException("client is required, ttl and retryDelay must be positive");
+		}
+		this.client = client;
+		this.ttl = ttl;
+		this.retryDelay = retryDelay;
+
+		this.refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "metadefender-metadata-" + client.getApiEndPointUrl());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		this.engineVersions = new CachedValue<List<EngineVersion>>(new Loader<List<EngineVersion>>() {
+			@Override
+			public List<EngineVersion> load() throws MetadefenderClientException {
+				List<EngineVersion> loaded = client.getEngineVersions();
+				engineVersionsLoaded(loaded);
+				return loaded;
+			}
+		});
+		this.scanRules = new CachedValue<List<ScanRule>>(new Loader<List<ScanRule>>() {
+			@Override
+			public List<ScanRule> load() throws MetadefenderClientException {
+				List<ScanRule> loaded = client.getAvailableScanRules();
+				scanRulesLoaded(loaded);
+				return loaded;
+			}
+		});
+		this.license = new CachedValue<License>(new Loader<License>() {
+			@Override
+			public License load() throws MetadefenderClientException {
+				return client.getCurrentLicenseInformation();
+			}
+		});
+		this.version = new CachedValue<ApiVersion>(new Loader<ApiVersion>() {
+			@Override
+			public ApiVersion load() throws MetadefenderClientException {
+				return client.getVersion();
+			}
+		});
+
+		refresher.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				engineVersions.load();
+				scanRules.load();
+			}
+		}, ttl, ttl, TimeUnit.MILLISECONDS);
+	}
+
+	public void addListener(MetadataChangeListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(MetadataChangeListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * @return engine versions, see MetadefenderCoreClient.getEngineVersions. NULL while the first load runs
+	 * @throws MetadefenderClientException if no value was ever loaded and the last load failed
+	 */
+	public List<EngineVersion> getEngineVersions() throws MetadefenderClientException {
+		return engineVersions.get();
+	}
+
+	/**
+	 * @return available scan rules, see MetadefenderCoreClient.getAvailableScanRules. NULL while the first load runs
+	 * @throws MetadefenderClientException if no value was ever loaded and the last load failed
+	 */
+	public List<ScanRule> getAvailableScanRules() throws MetadefenderClientException {
+		return scanRules.get();
+	}
+
+	/**
+	 * @return license information, see MetadefenderCoreClient.getCurrentLicenseInformation. NULL while the first load runs
+	 * @throws MetadefenderClientException if no value was ever loaded and the last load failed
+	 */
+	public License getCurrentLicenseInformation() throws MetadefenderClientException {
+		return license.get();
+	}
+
+	/**
+	 * @return api version, see MetadefenderCoreClient.getVersion. NULL while the first load runs
+	 * @throws MetadefenderClientException if no value was ever loaded and the last load failed
+	 */
+	public ApiVersion getVersion() throws MetadefenderClientException {
+		return version.get();
+	}
+
+	/**
+	 * @return latest def_time of all engines in millis, -1 while the first load of the engine versions runs
+	 * @throws MetadefenderClientException if the engine versions were never loaded and the last load failed
+	 */
+	public long getLatestDefinitionTime() throws MetadefenderClientException {
+		return engineVersions.get() == null ? -1 : latestDefinitionTime;
+	}
+
+	/**
+	 * Wait until the engine versions, and so the latest definition time, are known. For callers preferring to wait
+	 * once, like at startup; the reads themselves never wait.
+	 *
+	 * @param timeout millis to wait at most
+	 * @return true if the engine versions are known
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public boolean awaitLoaded(long timeout) throws InterruptedException {
+		return engineVersions.await(timeout);
+	}
+
+	/**
+	 * Drop every cached value, the next reads load them again.
+	 */
+	public void invalidate() {
+		engineVersions.clear();
+		scanRules.clear();
+		license.clear();
+		version.clear();
+	}
+
+	@Override
+	public void close() {
+		refresher.shutdownNow();
+	}
+
+
+	private void engineVersionsLoaded(List<EngineVersion> loaded) {
+		Map<String, Long> definitions = new HashMap<String, Long>();
+		long latest = 0;
+		for(EngineVersion engineVersion : loaded) {
+			long definitionTime = engineVersion.def_time == null ? 0 : engineVersion.def_time.getTime();
+			definitions.put(engineVersion.eng_id, definitionTime);
+			latest = Math.max(latest, definitionTime);
+		}
+
+		synchronized (this) {
+			if(definitions.equals(engineDefinitions)) {
+				return;
+			}
+			engineDefinitions = definitions;
+			latestDefinitionTime = latest;
+		}
+		for(MetadataChangeListener listener : listeners) {
+			listener.onEngineDefinitionsChanged(loaded, latest);
+		}
+	}
+
+	private void scanRulesLoaded(List<ScanRule> loaded) {
+		Set<String> names = new HashSet<String>();
+		for(ScanRule scanRule : loaded) {
+			names.add(scanRule.name);
+		}
+
+		synchronized (this) {
+			if(names.equals(scanRuleNames)) {
+				return;
+			}
+			scanRuleNames = names;
+		}
+		for(MetadataChangeListener listener : listeners) {
+			listener.onScanRulesChanged(loaded);
+		}
+	}
+
+
+	private interface Loader<T> {
+		T load() throws MetadefenderClientException;
+	}
+
+	private class CachedValue<T> {
+
+		private final Loader<T> loader;
+		private final AtomicBoolean loading = new AtomicBoolean(false);
+
+		private volatile T value = null;
+		// failure of the last load while no value is known
+		private volatile MetadefenderClientException failure = null;
+		private volatile long nextLoadAt = 0;
+
+		CachedValue(Loader<T> loader) {
+			this.loader = loader;
+		}
+
+		/**
+		 * @return last known value, NULL if none is known yet
+		 */
+		T get() throws MetadefenderClientException {
+			if(System.currentTimeMillis() >= nextLoadAt) {
+				loadInBackground();
+			}
+			T current = value;
+			MetadefenderClientException failed = failure;
+			if(current == null && failed != null) {
+				// a new instance per reader, the stack trace shows the reading thread
+				throw new MetadefenderClientException(failed.getMessage(), failed.responseCode);
+			}
+			return current;
+		}
+
+		synchronized boolean await(long timeout) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + timeout;
+			while(value == null) {
+				long now = System.currentTimeMillis();
+				if(now >= deadline) {
+					return false;
+				}
+				if(now >= nextLoadAt) {
+					loadInBackground();
+				}
+				// woken by the end of every load, retried loads start at the latest after the retry delay
+				wait(Math.min(deadline - now, retryDelay));
+			}
+			return true;
+		}
+
+		void clear() {
+			value = null;
+			failure = null;
+			nextLoadAt = 0;
+		}
+
+		private void loadInBackground() {
+			if(!loading.compareAndSet(false, true)) {
+				return;
+			}
+			try {
+				refresher.execute(new Runnable() {
+					@Override
+					public void run() {
+						loadNow();
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// closed, keep serving the last known value
+				loading.set(false);
+			}
+		}
+
+		/**
+		 * Load the value on the calling thread, unless a load is already queued or running.
+		 */
+		void load() {
+			if(loading.compareAndSet(false, true)) {
+				loadNow();
+			}
+		}
+
+		private void loadNow() {
+			try {
+				value = loader.load();
+				failure = null;
+				nextLoadAt = System.currentTimeMillis() + ttl;
+			} catch (Exception e) {
+				// keep the last known value, the next load is tried after the retry delay
+				failure = e instanceof MetadefenderClientException ? (MetadefenderClientException) e
+						: new MetadefenderClientException(e.toString());
+				nextLoadAt = System.currentTimeMillis() + retryDelay;
+			} finally {
+				loading.set(false);
+				synchronized (this) {
+					notifyAll();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,28 @@
+package com.opswat.metadefender.core.client;
+
+import com.opswat.metadefender.core.client.responses.EngineVersion;
+import com.opswat.metadefender.core.client.responses.ScanRule;
+
+import java.util.List;
+
+/**
+ * Notified by a MetadataCache when the server metadata changed.
+ * Called from the refresh thread of the cache, implementations should return quickly.
+ */
+public interface MetadataChangeListener {
+
+	/**
+	 * An engine was added, removed, or got new definitions. Also called after the first load.
+	 *
+	 * @param engineVersions current engine versions
+	 * @param latestDefinitionTime latest def_time of all engines in millis
+	 */
+	void onEngineDefinitionsChanged(List<EngineVersion> engineVersions, long latestDefinitionTime);
+
+	/**
+	 * The set of available scan rules changed. Also called after the first load.
+	 *
+	 * @param scanRules current scan rules
+	 */
+	void onScanRulesChanged(List<ScanRule> scanRules);
+}
@@ -1,40 +1,79 @@
 package com.opswat.metadefender.core.client;
 
 
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.DeserializationFeature;
-import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.opswat.metadefender.core.client.exceptions.MetadefenderClientException;
 import com.opswat.metadefender.core.client.responses.*;
 
+import java.io.Closeable;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.InvalidParameterException;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.*;
+import java.util.function.BiConsumer;
 
 
 /**
  * Main class for the REST API client
  */
-public class MetadefenderCoreClient {
+public class MetadefenderCoreClient implements Closeable {
 
 	public static final String DATE_FORMAT_MILLIS_RESOLUTION = "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'";
 	public static final String DATE_FORMAT_DAY_RESOLUTION = "MM/dd/yyyy";
 
-	private HttpConnector httpConnector = new HttpConnector();
+	// mapper and readers are thread-safe once configured, all clients share them
+	private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+	private static final ObjectReader FILE_SCAN_RESULT_READER = OBJECT_MAPPER.readerFor(FileScanResult.class);
+	private static final ObjectReader LICENSE_READER = OBJECT_MAPPER.readerFor(License.class);
+	private static final ObjectReader API_VERSION_READER = OBJECT_MAPPER.readerFor(ApiVersion.class);
+	private static final ObjectReader ENGINE_VERSIONS_READER = OBJECT_MAPPER.readerFor(new TypeReference<List<EngineVersion>>() {});
+	private static final ObjectReader SCAN_RULES_READER = OBJECT_MAPPER.readerFor(new TypeReference<List<ScanRule>>() {});
+
+	private volatile HttpConnector httpConnector = new HttpConnector();
 
 	private final String apiEndPointUrl;
 
+	private final ClientMetrics metrics;
+
+	private volatile ScanResultPoller scanResultPoller = ScanResultPoller.getShared();
+
+	// scans polled for this client, cancelled on close
+	private final Set<CompletableFuture<FileScanResult>> pendingScans = Collections.newSetFromMap(new ConcurrentHashMap<CompletableFuture<FileScanResult>, Boolean>());
+
+	private volatile boolean closed = false;
+
+
+	// volatile: a single client instance may be shared between request threads
+	private volatile String sessionId = null;
+
+	// credentials of the last successful login, used for re-login when the session expired
+	private volatile String loginUserName = null;
+	private volatile String loginPassword = null;
+
+	// last time an authenticated request succeeded, a session used recently is not validated again
+	private volatile long sessionConfirmedAt = 0;
+
+	private static final long SESSION_VALIDATION_INTERVAL = 60 * 1000L;
 
-	private String sessionId = null;
+	private static final int UNAUTHORIZED = 401;
 
 	// default user_agent for fileScan-s
-	private String user_agent = null;
+	private volatile String user_agent = null;
 
 
 	/**
@@ -44,6 +83,7 @@ public class MetadefenderCoreClient {
 	 */
 	public MetadefenderCoreClient(String apiEndPointUrl) {
 		this.apiEndPointUrl = apiEndPointUrl;
+		this.metrics = new ClientMetrics(apiEndPointUrl);
 	}
 
 	/**
@@ -54,6 +94,7 @@ public class MetadefenderCoreClient {
 	 */
 	public MetadefenderCoreClient(String apiEndPointUrl, String apiKey) {
 		this.apiEndPointUrl = apiEndPointUrl;
+		this.metrics = new ClientMetrics(apiEndPointUrl);
 
 		this.sessionId = apiKey;
 	}
@@ -61,6 +102,8 @@ public class MetadefenderCoreClient {
 
 	/**
 	 * Constructs a rest client with an api authentication.
+	 * The session is shared by every thread using this client; when the server answers 401 because the session
+	 * expired, the client logs in again with the same credentials and repeats the request once.
 	 *
 	 * @param apiEndPointUrl Format: protocol://host:port  Example value: http://localhost:8008
 	 * @param userName username to login with
@@ -69,6 +112,7 @@ public class MetadefenderCoreClient {
 	 */
 	public MetadefenderCoreClient(String apiEndPointUrl, String userName, String password) throws MetadefenderClientException {
 		this.apiEndPointUrl = apiEndPointUrl;
+		this.metrics = new ClientMetrics(apiEndPointUrl);
 
 		login(userName, password);
 	}
@@ -87,6 +131,20 @@ public class MetadefenderCoreClient {
 		this.httpConnector = httpConnector;
 	}
 
+	/**
+	 * You can set a custom poller for driving scan result polling of scanFileAsync / scanFileSync.
+	 * By default all clients share ScanResultPoller.getShared().
+	 *
+	 * @param scanResultPoller your custom poller
+	 */
+	public void setScanResultPoller(ScanResultPoller scanResultPoller) {
+		if(scanResultPoller == null) {
+			throw new InvalidParameterException("scanResultPoller cannot be null");
+		}
+
+		this.scanResultPoller = scanResultPoller;
+	}
+
 	/**
 	 * For setting a default user agent string for all file scan api calls.
 	 * @param user_agent custom user agent string
@@ -95,6 +153,20 @@ public class MetadefenderCoreClient {
 		this.user_agent = user_agent;
 	}
 
+	/**
+	 * @return latency histograms, upload and polling measurements of this client
+	 */
+	public ClientMetrics getMetrics() {
+		return this.metrics;
+	}
+
+	/**
+	 * @return the api end point url this client is bound to
+	 */
+	public String getApiEndPointUrl() {
+		return this.apiEndPointUrl;
+	}
+
 	/**
 	 * If you successfully log in with username/password you will get a session id.
 	 *
@@ -116,18 +188,19 @@ public class MetadefenderCoreClient {
 	 */
 	public void login(String userName, String password) throws MetadefenderClientException {
 
-		ObjectMapper mapper = getObjectMapper();
-		ObjectNode loginJson = mapper.createObjectNode();
+		ObjectNode loginJson = OBJECT_MAPPER.createObjectNode();
 		loginJson.put("user", userName);
 		loginJson.put("password", password);
 
 		String body = loginJson.toString();
 
-		HttpConnector.HttpResponse response = httpConnector.sendRequest(this.apiEndPointUrl + "/login", "POST", body.getBytes());
+		HttpConnector.HttpResponse response = send("POST /login", "/login", "POST", body.getBytes(), null, null);
 
 		if(response.responseCode == 200) {
-			JsonNode actualObj = getJsonFromString(response.response);
-			this.sessionId = actualObj.get("session_id").asText();
+			this.sessionId = getTextFromJson(response.response, "session_id");
+			this.loginUserName = userName;
+			this.loginPassword = password;
+			this.sessionConfirmedAt = System.currentTimeMillis();
 		} else {
 			throwRequestError(response);
 		}
@@ -135,6 +208,7 @@ public class MetadefenderCoreClient {
 
 	/**
 	 * Get the current session state.
+	 * A session used successfully within the last minute is reported valid without a round trip.
 	 *
 	 * @return TRUE if the current session is valid, FALSE otherwise.
 	 * @throws MetadefenderClientException
@@ -144,10 +218,32 @@ public class MetadefenderCoreClient {
 			return false;
 		}
 
-		System.out.println("Header: " + getLoggedInHeader());
-		HttpConnector.HttpResponse response = httpConnector.sendRequest(this.apiEndPointUrl + "/version", "GET", null, getLoggedInHeader());
+		if(System.currentTimeMillis() - sessionConfirmedAt < SESSION_VALIDATION_INTERVAL) {
+			return true;
+		}
+
+		HttpConnector.HttpResponse response = send("GET /version", "/version", "GET", null, null, getLoggedInHeader());
+
+		if(response.responseCode == 200) {
+			sessionConfirmedAt = System.currentTimeMillis();
+			return true;
+		}
+		return false;
+	}
 
-		return response.responseCode == 200;
+	/**
+	 * Check that the server answers at all, without authentication.
+	 * Any non 5xx answer of the /version api point proves that the server is up, even a "login required" one.
+	 *
+	 * @return TRUE if the server answered, FALSE otherwise.
+	 */
+	public boolean isReachable() {
+		try {
+			HttpConnector.HttpResponse response = send("GET /version", "/version", "GET", null, null, null);
+			return response != null && response.responseCode > 0 && response.responseCode < 500;
+		} catch (Exception e) {
+			return false;
+		}
 	}
 
 	/**
@@ -160,32 +256,94 @@ public class MetadefenderCoreClient {
 	 * @return unique data id for this file scan
 	 */
 	public String scanFile(InputStream inputStream, FileScanOptions fileScanOptions) throws MetadefenderClientException {
+		checkOpen();
 		if(inputStream == null) {
 			throw new MetadefenderClientException("Stream cannot be null");
 		}
 
-		if( (fileScanOptions != null && fileScanOptions.getUserAgent() == null) && this.user_agent != null) {
-			fileScanOptions.setUserAgent(this.user_agent);
-		}
+		Map<String, String> headers = (fileScanOptions == null) ? null : fileScanOptions.getOptions();
 
-		if(fileScanOptions == null && this.user_agent != null) {
-			fileScanOptions = new FileScanOptions().setUserAgent(this.user_agent);
+		// apply the default user agent on a copy of the headers, so the caller's options are never modified
+		String defaultUserAgent = this.user_agent;
+		if(defaultUserAgent != null && (fileScanOptions == null || fileScanOptions.getUserAgent() == null)) {
+			Map<String, String> mergedHeaders = new HashMap<String, String>();
+			if(headers != null) {
+				mergedHeaders.putAll(headers);
+			}
+			mergedHeaders.putAll(new FileScanOptions().setUserAgent(defaultUserAgent).getOptions());
+			headers = mergedHeaders;
 		}
 
-
-		Map<String, String> headers = (fileScanOptions == null) ? null : fileScanOptions.getOptions();
-
-		HttpConnector.HttpResponse response = httpConnector.sendRequest(this.apiEndPointUrl + "/file", "POST", inputStream, headers);
+		CountingInputStream countingInputStream = new CountingInputStream(inputStream);
+		long start = System.nanoTime();
+		HttpConnector.HttpResponse response = send("POST /file", "/file", "POST", null, countingInputStream, headers);
 
 		if(response.responseCode == 200) {
-			JsonNode actualObj = getJsonFromString(response.response);
-			return actualObj.get("data_id").asText();
+			String data_id;
+			try {
+				data_id = getTextFromJson(response.response, "data_id");
+			} catch (MetadefenderClientException e) {
+				// answered: the file was accepted, it must not be taken for a dropped connection and uploaded again
+				throw new MetadefenderClientException(e.getMessage(), response.responseCode);
+			}
+			metrics.scanAccepted(countingInputStream.count, System.nanoTime() - start);
+			return data_id;
 		} else {
 			throwRequestError(response);
 			return null;
 		}
 	}
 
+	/**
+	 * Scan a file read through NIO.
+	 * The file is streamed from a FileChannel straight into the request, so the memory used by the upload
+	 * does not depend on the file size.
+	 *
+	 * @param path file to scan. Required
+	 * @param fileScanOptions Optional file scan options. Can be NULL.
+	 * @return unique data id for this file scan
+	 * @throws MetadefenderClientException if the file cannot be read or the upload fails
+	 */
+	public String scanFile(Path path, FileScanOptions fileScanOptions) throws MetadefenderClientException {
+		if(path == null) {
+			throw new MetadefenderClientException("Path cannot be null");
+		}
+
+		InputStream inputStream;
+		try {
+			inputStream = new FileChannelInputStream(FileChannel.open(path, StandardOpenOption.READ), true);
+		} catch (IOException e) {
+			throw new MetadefenderClientException("Cannot open file: " + path + " " + e.getMessage());
+		}
+
+		try {
+			return scanFile(inputStream, fileScanOptions);
+		} finally {
+			try {
+				inputStream.close();
+			} catch (IOException e) {
+				// the upload already finished, nothing to recover
+			}
+		}
+	}
+
+	/**
+	 * Scan the content of a FileChannel from its current position.
+	 * The channel is not closed by this method.
+	 *
+	 * @param channel channel to scan. Required
+	 * @param fileScanOptions Optional file scan options. Can be NULL.
+	 * @return unique data id for this file scan
+	 * @throws MetadefenderClientException if the upload fails
+	 */
+	public String scanFile(FileChannel channel, FileScanOptions fileScanOptions) throws MetadefenderClientException {
+		if(channel == null) {
+			throw new MetadefenderClientException("Channel cannot be null");
+		}
+
+		return scanFile(new FileChannelInputStream(channel, false), fileScanOptions);
+	}
+
 	/**
 	 * Scan file in synchron mode.
 	 * Note: this method call will block your thread until the file scan finishes.
@@ -198,21 +356,97 @@ public class MetadefenderCoreClient {
 	 * @throws MetadefenderClientException
 	 */
 	public FileScanResult scanFileSync(InputStream inputStream, FileScanOptions fileScanOptions, int pollingInterval, int timeout) throws MetadefenderClientException, InterruptedException, ExecutionException, TimeoutException {
+		return scanFileSync(inputStream, fileScanOptions, new FixedPollingPolicy(pollingInterval).newSchedule(null, -1), timeout);
+	}
+
+	/**
+	 * Scan file in synchron mode.
+	 * Note: this method call will block your thread until the file scan finishes.
+	 *
+	 * @param inputStream input stream to scan
+	 * @param fileScanOptions optional file scan options
+	 * @param pollingSchedule polling schedule of this scan, see PollingPolicy.newSchedule
+	 * @param timeout timeout in millis
+	 * @return FileScanResult
+	 * @throws MetadefenderClientException
+	 */
+	public FileScanResult scanFileSync(InputStream inputStream, FileScanOptions fileScanOptions, PollingSchedule pollingSchedule, int timeout) throws MetadefenderClientException, InterruptedException, ExecutionException, TimeoutException {
+		CompletableFuture<FileScanResult> future = scanFileAsync(inputStream, fileScanOptions, pollingSchedule);
+
+		try {
+			return future.get(timeout, TimeUnit.MILLISECONDS);
+		} finally {
+			future.cancel(true);
+		}
+	}
+
+	/**
+	 * Scan file in asynchron mode.
+	 * The file is uploaded on the calling thread, the scan result polling is driven by the shared ScanResultPoller,
+	 * so no thread is blocked while the scan is in progress.
+	 *
+	 * @param inputStream input stream to scan
+	 * @param fileScanOptions optional file scan options
+	 * @param pollingInterval polling time in millis
+	 * @return future completed with the finished FileScanResult. Cancel it to stop polling.
+	 * @throws MetadefenderClientException if the upload fails
+	 */
+	public CompletableFuture<FileScanResult> scanFileAsync(InputStream inputStream, FileScanOptions fileScanOptions, int pollingInterval) throws MetadefenderClientException {
+		return scanFileAsync(inputStream, fileScanOptions, new FixedPollingPolicy(pollingInterval).newSchedule(null, -1));
+	}
+
+	/**
+	 * Scan file in asynchron mode.
+	 * The file is uploaded on the calling thread, the scan result polling is driven by the shared ScanResultPoller,
+	 * so no thread is blocked while the scan is in progress.
+	 *
+	 * @param inputStream input stream to scan
+	 * @param fileScanOptions optional file scan options
+	 * @param pollingSchedule polling schedule of this scan, see PollingPolicy.newSchedule
+	 * @return future completed with the finished FileScanResult. Cancel it to stop polling.
+	 * @throws MetadefenderClientException if the upload fails
+	 */
+	public CompletableFuture<FileScanResult> scanFileAsync(InputStream inputStream, FileScanOptions fileScanOptions, PollingSchedule pollingSchedule) throws MetadefenderClientException {
 		String data_id = scanFile(inputStream, fileScanOptions);
 
-		FileScanResult fileScanResult = null;
+		return trackPendingScan(scanResultPoller.poll(this, data_id, pollingSchedule));
+	}
+
 
-		ExecutorService executor = Executors.newSingleThreadExecutor();
-		Future<FileScanResult> future = executor.submit(new FetchScanResultTask(data_id, pollingInterval));
+	/**
+	 * Scan file in synchron mode, the file is uploaded through NIO, see scanFile(Path, FileScanOptions).
+	 * Note: this method call will block your thread until the file scan finishes.
+	 *
+	 * @param path file to scan
+	 * @param fileScanOptions optional file scan options
+	 * @param pollingSchedule polling schedule of this scan, see PollingPolicy.newSchedule
+	 * @param timeout timeout in millis
+	 * @return FileScanResult
+	 * @throws MetadefenderClientException
+	 */
+	public FileScanResult scanFileSync(Path path, FileScanOptions fileScanOptions, PollingSchedule pollingSchedule, int timeout) throws MetadefenderClientException, InterruptedException, ExecutionException, TimeoutException {
+		CompletableFuture<FileScanResult> future = scanFileAsync(path, fileScanOptions, pollingSchedule);
 
 		try {
-			fileScanResult = future.get(timeout, TimeUnit.MILLISECONDS);
+			return future.get(timeout, TimeUnit.MILLISECONDS);
 		} finally {
 			future.cancel(true);
-			executor.shutdownNow();
 		}
+	}
+
+	/**
+	 * Scan file in asynchron mode, the file is uploaded through NIO, see scanFile(Path, FileScanOptions).
+	 *
+	 * @param path file to scan
+	 * @param fileScanOptions optional file scan options
+	 * @param pollingSchedule polling schedule of this scan, see PollingPolicy.newSchedule
+	 * @return future completed with the finished FileScanResult. Cancel it to stop polling.
+	 * @throws MetadefenderClientException if the upload fails
+	 */
+	public CompletableFuture<FileScanResult> scanFileAsync(Path path, FileScanOptions fileScanOptions, PollingSchedule pollingSchedule) throws MetadefenderClientException {
+		String data_id = scanFile(path, fileScanOptions);
 
-		return fileScanResult;
+		return trackPendingScan(scanResultPoller.poll(this, data_id, pollingSchedule));
 	}
 
 
@@ -230,18 +464,11 @@ public class MetadefenderCoreClient {
 			throw new MetadefenderClientException("data_id is required");
 		}
 
-		HttpConnector.HttpResponse response = httpConnector.sendRequest(this.apiEndPointUrl + "/file/" + data_id, "GET");
+		HttpConnector.HttpResponse response = send("GET /file/{data_id}", "/file/" + data_id, "GET", null, null, null);
 
 		if(response.responseCode == 200) {
-			JsonNode actualObj = getJsonFromString(response.response);
-			// data_id is not found check
-			if(actualObj.has(data_id)) {
-				throw new MetadefenderClientException(actualObj.get(data_id).asText(), response.responseCode);
-			} else {
-				// success response
-				return getObjectFromJson(response.response, FileScanResult.class);
-			}
-
+			// data_id is not found check is done while parsing
+			return getScanResultFromJson(response, data_id, true);
 		} else {
 			throwRequestError(response);
 			return null;
@@ -249,6 +476,30 @@ public class MetadefenderCoreClient {
 
 	}
 
+	/**
+	 * Lightweight variant of fetchScanResult for polling.
+	 * While the scan is running only progress_percentage and scan_all_result_i are read from the answer, engine
+	 * details are skipped without being bound. The full FileScanResult is bound once, from the final answer.
+	 *
+	 * @param data_id Unique file scan id. Required.
+	 * @return progress of the scan, holding the full result once finished
+	 * @throws MetadefenderClientException
+	 */
+	public ScanProgress fetchScanProgress(String data_id) throws MetadefenderClientException {
+		if(data_id == null || data_id.trim().length()<= 0){
+			throw new MetadefenderClientException("data_id is required");
+		}
+
+		HttpConnector.HttpResponse response = send("GET /file/{data_id}", "/file/" + data_id, "GET", null, null, null);
+
+		if(response.responseCode == 200) {
+			return getScanProgressFromJson(response, data_id);
+		} else {
+			throwRequestError(response);
+			return null;
+		}
+	}
+
 	/**
 	 * Fetch Scan Result by File Hash
 	 *
@@ -263,24 +514,55 @@ public class MetadefenderCoreClient {
 			throw new MetadefenderClientException("Hash is required");
 		}
 
-		HttpConnector.HttpResponse response = httpConnector.sendRequest(this.apiEndPointUrl + "/hash/" + hash, "GET");
+		HttpConnector.HttpResponse response = send("GET /hash/{hash}", "/hash/" + hash, "GET", null, null, null);
 
 		if(response.responseCode == 200) {
-			JsonNode actualObj = getJsonFromString(response.response);
-			// data_id is not found check
-			if(actualObj.has(hash)) {
-				throw new MetadefenderClientException(actualObj.get(hash).asText(), response.responseCode);
-			} else {
-				// success response
-				return getObjectFromJson(response.response, FileScanResult.class);
-			}
+			// hash is not found check is done while parsing
+			return getScanResultFromJson(response, hash, true);
+		} else {
+			throwRequestError(response);
+			return null;
+		}
 
+	}
 
+	/**
+	 * Look up a previous scan result by file hash.
+	 * Same as fetchScanResultByHash, but an unknown hash is not an error.
+	 *
+	 * @param hash {md5|sha1|sha256 hash}
+	 * @return File scan result object, NULL if the hash is not known by the server
+	 * @throws MetadefenderClientException
+	 */
+	public FileScanResult findScanResultByHash(String hash) throws MetadefenderClientException {
+		if(hash == null || hash.trim().length() <= 0) {
+			throw new MetadefenderClientException("Hash is required");
+		}
+
+		HttpConnector.HttpResponse response = send("GET /hash/{hash}", "/hash/" + hash, "GET", null, null, null);
+
+		if(response.responseCode == 200) {
+			return getScanResultFromJson(response, hash, false);
 		} else {
 			throwRequestError(response);
 			return null;
 		}
+	}
 
+	/**
+	 * Poll the result of an already submitted scan, for example one found by findScanResultByHash.
+	 *
+	 * @param data_id Unique file scan id. Required.
+	 * @param pollingSchedule polling schedule of this scan, see PollingPolicy.newSchedule
+	 * @return future completed with the finished FileScanResult. Cancel it to stop polling.
+	 * @throws MetadefenderClientException
+	 */
+	public CompletableFuture<FileScanResult> pollScanResult(String data_id, PollingSchedule pollingSchedule) throws MetadefenderClientException {
+		if(data_id == null || data_id.trim().length()<= 0){
+			throw new MetadefenderClientException("data_id is required");
+		}
+
+		return trackPendingScan(scanResultPoller.poll(this, data_id, pollingSchedule));
 	}
 
 	/**
@@ -292,12 +574,10 @@ public class MetadefenderCoreClient {
 	 * @throws MetadefenderClientException
 	 */
 	public License getCurrentLicenseInformation() throws MetadefenderClientException {
-		checkSession();
-
-		HttpConnector.HttpResponse response = httpConnector.sendRequest(this.apiEndPointUrl + "/admin/license", "GET", null, getLoggedInHeader());
+		HttpConnector.HttpResponse response = sendAuthenticatedRequest("/admin/license", "GET");
 
 		if(response.responseCode == 200) {
-			return getObjectFromJson(response.response, License.class);
+			return getObjectFromJson(response.response, LICENSE_READER);
 		} else {
 			throwRequestError(response);
 			return null;
@@ -315,10 +595,10 @@ public class MetadefenderCoreClient {
 	 * @throws MetadefenderClientException
 	 */
 	public List<EngineVersion> getEngineVersions() throws MetadefenderClientException {
-		HttpConnector.HttpResponse response = httpConnector.sendRequest(this.apiEndPointUrl + "/stat/engines", "GET");
+		HttpConnector.HttpResponse response = send("GET /stat/engines", "/stat/engines", "GET", null, null, null);
 
 		if(response.responseCode == 200) {
-			return getCollectionFromJson(response.response, new TypeReference<List<EngineVersion>>() {});
+			return getObjectFromJson(response.response, ENGINE_VERSIONS_READER);
 		} else {
 			throwRequestError(response);
 			return null;
@@ -334,12 +614,10 @@ public class MetadefenderCoreClient {
 	 * @throws MetadefenderClientException
 	 */
 	public ApiVersion getVersion() throws MetadefenderClientException {
-		checkSession();
-
-		HttpConnector.HttpResponse response = httpConnector.sendRequest(this.apiEndPointUrl + "/version", "GET", null, getLoggedInHeader());
+		HttpConnector.HttpResponse response = sendAuthenticatedRequest("/version", "GET");
 
 		if(response.responseCode == 200) {
-			return getObjectFromJson(response.response, ApiVersion.class);
+			return getObjectFromJson(response.response, API_VERSION_READER);
 		} else {
 			throwRequestError(response);
 			return null;
@@ -355,10 +633,10 @@ public class MetadefenderCoreClient {
 	 * @throws MetadefenderClientException
 	 */
 	public List<ScanRule> getAvailableScanRules() throws MetadefenderClientException {
-		HttpConnector.HttpResponse response = httpConnector.sendRequest(this.apiEndPointUrl + "/file/rules", "GET");
+		HttpConnector.HttpResponse response = send("GET /file/rules", "/file/rules", "GET", null, null, null);
 
 		if(response.responseCode == 200) {
-			return getCollectionFromJson(response.response, new TypeReference<List<ScanRule>>() {});
+			return getObjectFromJson(response.response, SCAN_RULES_READER);
 		} else {
 			throwRequestError(response);
 			return null;
@@ -378,8 +656,12 @@ public class MetadefenderCoreClient {
 	public void logout() throws MetadefenderClientException {
 		checkSession();
 
-		HttpConnector.HttpResponse response = httpConnector.sendRequest(this.apiEndPointUrl + "/logout", "POST", null, getLoggedInHeader());
+		HttpConnector.HttpResponse response = send("POST /logout", "/logout", "POST", null, null, getLoggedInHeader());
 		this.sessionId = null;
+		// an explicit logout ends the session for good, no automatic re-login
+		this.loginUserName = null;
+		this.loginPassword = null;
+		this.sessionConfirmedAt = 0;
 
 		if(response.responseCode != 200) {
 			throwRequestError(response);
@@ -387,33 +669,71 @@ public class MetadefenderCoreClient {
 	}
 
 
+	/**
+	 * Release the client: pending scan result polls of this client are cancelled and new scans are rejected.
+	 * Input streams passed to scanFile are owned by the caller and are not closed here.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		for(CompletableFuture<FileScanResult> pendingScan : pendingScans) {
+			pendingScan.cancel(true);
+		}
+		pendingScans.clear();
+	}
+
+	/**
+	 * @return true if close was called
+	 */
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * @return number of scans of this client still polled
+	 */
+	public int getPendingScanCount() {
+		return pendingScans.size();
+	}
+
+
 	/**
 	 * Fetch scan result task
 	 */
 	public class FetchScanResultTask implements Callable<FileScanResult> {
 
 		private final String data_id;
-		private final int pollingInterval;
+		private final PollingSchedule pollingSchedule;
 
 
 		public FetchScanResultTask(String data_id, int pollingInterval) {
+			this(data_id, new FixedPollingPolicy(pollingInterval).newSchedule(null, -1));
+		}
+
+		public FetchScanResultTask(String data_id, PollingSchedule pollingSchedule) {
 			this.data_id = data_id;
-			this.pollingInterval = pollingInterval;
+			this.pollingSchedule = pollingSchedule;
 		}
 
 		//@Override
 		public FileScanResult call() throws Exception {
-			FileScanResult fileScanResult;
+			ScanProgress scanProgress = null;
+			long start = System.currentTimeMillis();
+			long startNanos = System.nanoTime();
+			int polls = 0;
 
+			TimeUnit.MILLISECONDS.sleep(pollingSchedule.nextDelay(null, 0));
 			do {
-				fileScanResult = fetchScanResult(data_id);
-
-				if(!fileScanResult.isScanFinished()) {
-					TimeUnit.MILLISECONDS.sleep(pollingInterval);
+				if(scanProgress != null) {
+					TimeUnit.MILLISECONDS.sleep(pollingSchedule.nextDelayAfter(scanProgress, System.currentTimeMillis() - start));
 				}
-			} while (!fileScanResult.isScanFinished());
+				scanProgress = fetchScanProgress(data_id);
+				polls++;
+			} while (!scanProgress.isFinished());
 
-			return fileScanResult;
+			metrics.scanFinished(polls, System.nanoTime() - startNanos);
+			pollingSchedule.finished(scanProgress.getResult(), System.currentTimeMillis() - start);
+			return scanProgress.getResult();
 		}
 	}
 
@@ -422,20 +742,109 @@ public class MetadefenderCoreClient {
 	//////// Private utils methods:
 
 
+	private CompletableFuture<FileScanResult> trackPendingScan(final CompletableFuture<FileScanResult> future) {
+		pendingScans.add(future);
+		metrics.scanStarted();
+		future.whenComplete(new BiConsumer<FileScanResult, Throwable>() {
+			@Override
+			public void accept(FileScanResult fileScanResult, Throwable throwable) {
+				pendingScans.remove(future);
+				metrics.scanEnded();
+			}
+		});
+		if(closed) {
+			// closed while the scan was uploaded
+			future.cancel(true);
+		}
+		return future;
+	}
+
+	private void checkOpen() throws MetadefenderClientException {
+		if(closed) {
+			throw new MetadefenderClientException("Client is closed");
+		}
+	}
+
+
 	private Map<String, String> getLoggedInHeader() {
+		return getLoggedInHeader(this.sessionId);
+	}
+
+	private Map<String, String> getLoggedInHeader(String session) {
 		Map<String, String> headers = new HashMap<String, String>();
-		headers.put("apikey", this.sessionId);
+		headers.put("apikey", session);
 		return headers;
 	}
 
+	/**
+	 * Send a request through the HttpConnector and record its latency under apiPoint.
+	 * Requests with headers or a stream body use the stream overload, like the api points did before.
+	 */
+	private HttpConnector.HttpResponse send(String apiPoint, String path, String method, byte[] body, InputStream stream, Map<String, String> headers) throws MetadefenderClientException {
+		long start = System.nanoTime();
+		HttpConnector.HttpResponse response;
+		try {
+			if(stream != null || headers != null) {
+				response = httpConnector.sendRequest(this.apiEndPointUrl + path, method, stream, headers);
+			} else if(body != null) {
+				response = httpConnector.sendRequest(this.apiEndPointUrl + path, method, body);
+			} else {
+				response = httpConnector.sendRequest(this.apiEndPointUrl + path, method);
+			}
+		} catch (MetadefenderClientException e) {
+			metrics.requestFinished(apiPoint, e.responseCode > 0 ? e.responseCode : -1, System.nanoTime() - start);
+			throw e;
+		} catch (RuntimeException e) {
+			// a connector bug or an unchecked I/O failure is still a failed request
+			metrics.requestFinished(apiPoint, -1, System.nanoTime() - start);
+			throw e;
+		}
+		// recorded outside the try, the request is not failed by its own measurement
+		metrics.requestFinished(apiPoint, response == null ? -1 : response.responseCode, System.nanoTime() - start);
+		return response;
+	}
+
+	/**
+	 * Send a request with the session header. If the session expired (401) and the client logged in with
+	 * username/password, log in again and repeat the request once.
+	 */
+	private HttpConnector.HttpResponse sendAuthenticatedRequest(String path, String method) throws MetadefenderClientException {
+		checkSession();
+
+		String usedSession = this.sessionId;
+		String apiPoint = method + " " + path;
+		HttpConnector.HttpResponse response = send(apiPoint, path, method, null, null, getLoggedInHeader(usedSession));
+
+		if(response.responseCode == UNAUTHORIZED && this.loginUserName != null) {
+			renewSession(usedSession);
+			response = send(apiPoint, path, method, null, null, getLoggedInHeader());
+		}
+
+		if(response.responseCode == 200) {
+			sessionConfirmedAt = System.currentTimeMillis();
+		}
+		return response;
+	}
+
+	/**
+	 * Log in again, unless another thread already replaced the expired session.
+	 */
+	private synchronized void renewSession(String expiredSession) throws MetadefenderClientException {
+		String userName = this.loginUserName;
+		String password = this.loginPassword;
+		if(userName == null || (this.sessionId != null && !this.sessionId.equals(expiredSession))) {
+			return;
+		}
+		login(userName, password);
+	}
+
 	/**
 	 * Generic error handling for API request where response code != 200
 	 * @param response actual API response
 	 * @throws MetadefenderClientException
 	 */
 	private void throwRequestError(HttpConnector.HttpResponse response) throws MetadefenderClientException {
-		JsonNode actualObj = getJsonFromString(response.response);
-		String errorMessage = actualObj.get("err").asText();
+		String errorMessage = getTextFromJson(response.response, "err");
 		throw new MetadefenderClientException(errorMessage, response.responseCode);
 	}
 
@@ -450,40 +859,145 @@ public class MetadefenderCoreClient {
 	}
 
 
-	private ObjectMapper getObjectMapper() {
-		ObjectMapper mapper = new ObjectMapper();
-		mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
-		return mapper;
+	/**
+	 * Read one top level text field without building a tree, other fields are skipped.
+	 */
+	private String getTextFromJson(String json, String field) throws MetadefenderClientException {
+		try (JsonParser parser = OBJECT_MAPPER.getFactory().createParser(json)) {
+			if(parser.nextToken() == JsonToken.START_OBJECT) {
+				while(parser.nextToken() == JsonToken.FIELD_NAME) {
+					String name = parser.getCurrentName();
+					parser.nextToken();
+					if(field.equals(name)) {
+						return parser.getValueAsString();
+					}
+					parser.skipChildren();
+				}
+			}
+		} catch (IOException e) {
+			throw new MetadefenderClientException("Cannot parse json: " + e.getMessage());
+		}
+		throw new MetadefenderClientException("Cannot parse json: missing field " + field);
 	}
 
-	private JsonNode getJsonFromString(String json) throws MetadefenderClientException {
-		ObjectMapper mapper = getObjectMapper();
-
-		try {
-			return mapper.readTree(json);
+	/**
+	 * Parse a /file/{data_id} or /hash/{hash} answer in a single pass.
+	 * An unknown id is answered as {"<id>": "Not Found"}, it is told apart from a scan result by its first field,
+	 * otherwise the parser continues binding the FileScanResult from that field on.
+	 *
+	 * @param id requested data_id or hash
+	 * @param notFoundIsError true to throw if the id is not found, false to return NULL
+	 */
+	private FileScanResult getScanResultFromJson(HttpConnector.HttpResponse response, String id, boolean notFoundIsError) throws MetadefenderClientException {
+		try (JsonParser parser = OBJECT_MAPPER.getFactory().createParser(response.response)) {
+			if(parser.nextToken() != JsonToken.START_OBJECT) {
+				throw new MetadefenderClientException("Cannot parse json: object expected");
+			}
+			if(parser.nextToken() == JsonToken.FIELD_NAME && id.equals(parser.getCurrentName())) {
+				if(!notFoundIsError) {
+					return null;
+				}
+				parser.nextToken();
+				throw new MetadefenderClientException(parser.getValueAsString(), response.responseCode);
+			}
+			return FILE_SCAN_RESULT_READER.readValue(parser);
 		} catch (IOException e) {
 			throw new MetadefenderClientException("Cannot parse json: " + e.getMessage());
 		}
 	}
 
-	private <T> T getObjectFromJson(String json, Class<T> clazz) throws MetadefenderClientException {
-		ObjectMapper mapper = getObjectMapper();
+	/**
+	 * Read the progress of a /file/{data_id} answer with the streaming parser, everything else is skipped.
+	 * Only an answer reporting 100% is bound to a FileScanResult.
+	 */
+	private ScanProgress getScanProgressFromJson(HttpConnector.HttpResponse response, String data_id) throws MetadefenderClientException {
+		int progressPercentage = 0;
+		int scanAllResult = -1;
 
-		try {
-			return mapper.readValue(json, clazz);
+		try (JsonParser parser = OBJECT_MAPPER.getFactory().createParser(response.response)) {
+			if(parser.nextToken() != JsonToken.START_OBJECT) {
+				throw new MetadefenderClientException("Cannot parse json: object expected");
+			}
+			while(parser.nextToken() == JsonToken.FIELD_NAME) {
+				String name = parser.getCurrentName();
+				parser.nextToken();
+				if(data_id.equals(name)) {
+					// data_id is not found
+					throw new MetadefenderClientException(parser.getValueAsString(), response.responseCode);
+				}
+				if("scan_results".equals(name) && parser.getCurrentToken() == JsonToken.START_OBJECT) {
+					while(parser.nextToken() == JsonToken.FIELD_NAME) {
+						String field = parser.getCurrentName();
+						parser.nextToken();
+						if("progress_percentage".equals(field)) {
+							progressPercentage = parser.getValueAsInt();
+						} else if("scan_all_result_i".equals(field)) {
+							scanAllResult = parser.getValueAsInt(-1);
+						} else {
+							parser.skipChildren();
+						}
+					}
+				} else {
+					parser.skipChildren();
+				}
+			}
 		} catch (IOException e) {
 			throw new MetadefenderClientException("Cannot parse json: " + e.getMessage());
 		}
+
+		if(progressPercentage >= 100) {
+			FileScanResult result = getObjectFromJson(response.response, FILE_SCAN_RESULT_READER);
+			// the bound result has the last word, so finished means the same as for fetchScanResult
+			if(result.isScanFinished()) {
+				return new ScanProgress(data_id, progressPercentage, scanAllResult, result);
+			}
+		}
+		return new ScanProgress(data_id, progressPercentage, scanAllResult, null);
 	}
 
-	private <T> List<T> getCollectionFromJson(String json, TypeReference<List<T>> typeReference) throws MetadefenderClientException {
+	private <T> T getObjectFromJson(String json, ObjectReader reader) throws MetadefenderClientException {
 		try {
-			ObjectMapper mapper = getObjectMapper();
-			return mapper.readValue(json, typeReference);
+			return reader.readValue(json);
 		} catch (IOException e) {
 			throw new MetadefenderClientException("Cannot parse json: " + e.getMessage());
 		}
 	}
 
 
+	/**
+	 * Counts the bytes read by the HttpConnector from an upload.
+	 */
+	private static class CountingInputStream extends FilterInputStream {
+
+		private long count = 0;
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int read = super.read();
+			if(read != -1) {
+				count++;
+			}
+			return read;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = super.read(b, off, len);
+			if(read > 0) {
+				count += read;
+			}
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			count += skipped;
+			return skipped;
+		}
+	}
 }
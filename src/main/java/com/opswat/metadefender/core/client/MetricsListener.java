@@ -0,0 +1,51 @@
+package com.opswat.metadefender.core.client;
+
+/**
+ * Receives the measurements of a client, for exporting them to a metrics system.
+ *
+ * Called on the thread doing the request or the poll, implementations must return quickly. Exceptions thrown by a
+ * listener are counted in ClientMetrics.getListenerErrors and otherwise ignored.
+ * Every method does nothing by default, implement only what you export.
+ */
+public interface MetricsListener {
+
+	/**
+	 * A request to the Core server finished.
+	 *
+	 * @param apiEndPointUrl server of the client
+	 * @param apiPoint method and api point, like "GET /file/{data_id}"
+	 * @param responseCode HTTP status, -1 if no answer was received
+	 * @param latencyNanos duration of the request
+	 */
+	default void onRequest(String apiEndPointUrl, String apiPoint, int responseCode, long latencyNanos) {
+	}
+
+	/**
+	 * A file was accepted by the server.
+	 *
+	 * @param apiEndPointUrl server of the client
+	 * @param bytes uploaded bytes
+	 * @param acceptNanos time from the start of the upload to the data_id
+	 */
+	default void onScanAccepted(String apiEndPointUrl, long bytes, long acceptNanos) {
+	}
+
+	/**
+	 * A polled scan finished.
+	 *
+	 * @param apiEndPointUrl server of the client
+	 * @param polls number of /file/{data_id} requests of the scan
+	 * @param verdictNanos time from the acceptance of the file to the finished result
+	 */
+	default void onScanFinished(String apiEndPointUrl, int polls, long verdictNanos) {
+	}
+
+	/**
+	 * A cache in front of the server was looked up.
+	 *
+	 * @param cacheName name of the cache, like "verdict"
+	 * @param hit true if the cache answered
+	 */
+	default void onCacheLookup(String cacheName, boolean hit) {
+	}
+}
@@ -0,0 +1,16 @@
+package com.opswat.metadefender.core.client;
+
+/**
+ * Decides how often the scan result of a pending scan is polled.
+ */
+public interface PollingPolicy {
+
+	/**
+	 * Create the polling schedule of a single scan.
+	 *
+	 * @param fileName name of the scanned file, can be NULL
+	 * @param fileSize size of the scanned file in bytes, negative if unknown
+	 * @return schedule for one scan, it is not shared between scans
+	 */
+	PollingSchedule newSchedule(String fileName, long fileSize);
+}
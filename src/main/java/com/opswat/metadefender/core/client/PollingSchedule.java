@@ -0,0 +1,38 @@
+package com.opswat.metadefender.core.client;
+
+import com.opswat.metadefender.core.client.responses.FileScanResult;
+
+/**
+ * Polling schedule of a single scan, created by a PollingPolicy.
+ */
+public interface PollingSchedule {
+
+	/**
+	 * @param lastResult last unfinished scan result, NULL before the first poll.
+	 *                   Only data_id and the progress fields of scan_results are set.
+	 * @param elapsed millis since the file was accepted by the server
+	 * @return delay in millis before the next poll
+	 */
+	long nextDelay(FileScanResult lastResult, long elapsed);
+
+	/**
+	 * Called by the pollers after every unfinished poll instead of nextDelay(FileScanResult, long). The default
+	 * builds the partial FileScanResult; schedules reading only the progress override it, so intermediate polls
+	 * allocate no result objects.
+	 *
+	 * @param lastProgress progress of the last unfinished poll
+	 * @param elapsed millis since the file was accepted by the server
+	 * @return delay in millis before the next poll
+	 */
+	default long nextDelayAfter(ScanProgress lastProgress, long elapsed) {
+		return nextDelay(lastProgress.toPartialResult(), elapsed);
+	}
+
+	/**
+	 * Called once when the scan finished.
+	 *
+	 * @param result finished scan result
+	 * @param elapsed millis since the file was accepted by the server
+	 */
+	void finished(FileScanResult result, long elapsed);
+}
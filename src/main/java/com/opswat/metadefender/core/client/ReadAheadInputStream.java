@@ -0,0 +1,194 @@
+package com.opswat.metadefender.core.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * InputStream reading its source ahead on a background thread, in fixed size chunks.
+ *
+ * While the HttpConnector sends one chunk, the next ones are already read from storage, so slow storage and a slow
+ * network overlap instead of adding up. At most readAheadChunks buffers exist, they are reused for the whole
+ * stream. Progress is reported once per chunk handed to the reader of this stream.
+ */
+public class ReadAheadInputStream extends InputStream {
+
+	private static final ThreadFactory READER_THREADS = ScanThreads.platformThreadFactory("metadefender-read-ahead-");
+
+	private final InputStream source;
+	private final UploadProgressListener progressListener;
+	private final long totalBytes;
+
+	// filled chunks in order, then the end marker
+	private final BlockingQueue<Chunk> filled;
+	// empty buffers given back to the reader thread
+	private final BlockingQueue<byte[]> free;
+
+	private final Thread readerThread;
+
+	private Chunk current = null;
+	private int position = 0;
+	private long bytesRead = 0;
+	private boolean finished = false;
+	private volatile boolean closed = false;
+
+	private final byte[] single = new byte[1];
+
+
+	/**
+	 * @param source stream to read, closed when this stream is closed
+	 * @param chunkSize size of a chunk
+	 * @param readAheadChunks number of chunk buffers, at least 2 to overlap reading and sending
+	 * @param progressListener progress callback, can be NULL
+	 * @param totalBytes size of the source for the progress callback, -1 if unknown
+	 */
+	public ReadAheadInputStream(InputStream source, int chunkSize, int readAheadChunks, UploadProgressListener progressListener, long totalBytes) {
+		if(source == null) {
+			throw new IllegalArgumentException("source cannot be null");
+		}
+		if(chunkSize <= 0 || readAheadChunks <= 0) {
+			throw new IllegalArgumentException("chunkSize and readAheadChunks must be positive");
+		}
+		this.source = source;
+		this.progressListener = progressListener;
+		this.totalBytes = totalBytes;
+
+		// room for every buffer plus the end marker, so the reader never blocks on a full queue
+		this.filled = new ArrayBlockingQueue<Chunk>(readAheadChunks + 1);
+		this.free = new ArrayBlockingQueue<byte[]>(readAheadChunks);
+		for(int i = 0; i < readAheadChunks; i++) {
+			free.add(new byte[chunkSize]);
+		}
+
+		this.readerThread = READER_THREADS.newThread(new Runnable() {
+			@Override
+			public void run() {
+				readAhead();
+			}
+		});
+		readerThread.start();
+	}
+
+	@Override
+	public int read() throws IOException {
+		int read = read(single, 0, 1);
+		return read == -1 ? -1 : single[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if(len == 0) {
+			return 0;
+		}
+		if(!nextChunk()) {
+			return -1;
+		}
+
+		int count = Math.min(len, current.length - position);
+		System.arraycopy(current.buffer, position, b, off, count);
+		position += count;
+		bytesRead += count;
+
+		if(position == current.length) {
+			// the whole chunk went to the caller
+			free.offer(current.buffer);
+			current = null;
+			if(progressListener != null) {
+				progressListener.onProgress(bytesRead, totalBytes);
+			}
+		}
+		return count;
+	}
+
+	@Override
+	public int available() {
+		return current == null ? 0 : current.length - position;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(closed) {
+			return;
+		}
+		closed = true;
+		readerThread.interrupt();
+		source.close();
+	}
+
+
+	private boolean nextChunk() throws IOException {
+		if(current != null) {
+			return true;
+		}
+		if(finished) {
+			return false;
+		}
+		if(closed) {
+			throw new IOException("Stream closed");
+		}
+
+		Chunk chunk;
+		try {
+			chunk = filled.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for the read-ahead");
+		}
+
+		if(chunk.error != null) {
+			finished = true;
+			throw chunk.error;
+		}
+		if(chunk.buffer == null) {
+			finished = true;
+			return false;
+		}
+		current = chunk;
+		position = 0;
+		return true;
+	}
+
+	private void readAhead() {
+		try {
+			while(!closed) {
+				byte[] buffer = free.take();
+
+				// fill the whole buffer, only the last chunk may be shorter
+				int length = 0;
+				int read = 0;
+				while(length < buffer.length && (read = source.read(buffer, length, buffer.length - length)) != -1) {
+					length += read;
+				}
+
+				if(length > 0) {
+					filled.put(new Chunk(buffer, length, null));
+				}
+				if(read == -1) {
+					filled.put(new Chunk(null, 0, null));
+					return;
+				}
+			}
+		} catch (InterruptedException e) {
+			// closed
+		} catch (IOException e) {
+			if(!closed) {
+				filled.offer(new Chunk(null, 0, e));
+			}
+		}
+	}
+
+
+	private static class Chunk {
+		private final byte[] buffer;
+		private final int length;
+		private final IOException error;
+
+		Chunk(byte[] buffer, int length, IOException error) {
+			this.buffer = buffer;
+			this.length = length;
+			this.error = error;
+		}
+	}
+}
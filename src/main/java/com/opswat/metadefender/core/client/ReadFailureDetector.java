@@ -0,0 +1,45 @@
+package com.opswat.metadefender.core.client;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Remembers whether reading the uploaded input failed. HttpConnector reports a failed read of the request body as a
+ * connection error, this tells such local I/O errors from failures of the server or of the network.
+ */
+class ReadFailureDetector extends FilterInputStream {
+
+	private volatile boolean failed = false;
+
+	ReadFailureDetector(InputStream in) {
+		super(in);
+	}
+
+	/**
+	 * @return true if a read of the wrapped input threw an IOException
+	 */
+	boolean hasFailed() {
+		return failed;
+	}
+
+	@Override
+	public int read() throws IOException {
+		try {
+			return super.read();
+		} catch (IOException e) {
+			failed = true;
+			throw e;
+		}
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		try {
+			return super.read(b, off, len);
+		} catch (IOException e) {
+			failed = true;
+			throw e;
+		}
+	}
+}
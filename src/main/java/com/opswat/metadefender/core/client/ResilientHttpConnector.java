@@ -0,0 +1,195 @@
+package com.opswat.metadefender.core.client;
+
+import com.opswat.metadefender.core.client.exceptions.MetadefenderClientException;
+
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * HttpConnector adding retries and a per end point circuit breaker around another connector.
+ *
+ * Idempotent requests (GET without body) failing without an answer or with a 5xx answer are retried with
+ * jittered exponential backoff, other requests are sent once. The polls of a ScanResultPoller are not retried here
+ * either: the backoff would block a polling thread, the poller reschedules failed polls instead. Every end point
+ * (protocol://host:port) has its own CircuitBreaker counting connection errors and 5xx answers; local errors, a
+ * failed read of the request body or an unchecked exception of the delegate, do not count. While it is open
+ * requests fail fast with a MetadefenderClientException of response code 503.
+ *
+ * Thread-safe, one instance can be shared by every client.
+ */
+public class ResilientHttpConnector extends HttpConnector {
+
+	public static final int SERVICE_UNAVAILABLE = 503;
+
+	private final HttpConnector delegate;
+	private final RetryPolicy retryPolicy;
+	private final int failureThreshold;
+	private final long openDuration;
+
+	private final ConcurrentMap<String, CircuitBreaker> circuitBreakers = new ConcurrentHashMap<String, CircuitBreaker>();
+
+
+	public ResilientHttpConnector() {
+		this(new HttpConnector(), new RetryPolicy(), CircuitBreaker.DEFAULT_FAILURE_THRESHOLD, CircuitBreaker.DEFAULT_OPEN_DURATION);
+	}
+
+	/**
+	 * @param delegate connector sending the actual requests
+	 * @param retryPolicy retry policy of idempotent requests
+	 * @param failureThreshold consecutive failures opening the circuit breaker of an end point
+	 * @param openDuration millis a circuit breaker stays open before a trial request
+	 */
+	public ResilientHttpConnector(HttpConnector delegate, RetryPolicy retryPolicy, int failureThreshold, long openDuration) {
+		if(delegate == null || retryPolicy == null) {
+			throw new IllegalArgumentException("delegate and retryPolicy cannot be null");
+		}
+		this.delegate = delegate;
+		this.retryPolicy = retryPolicy;
+		this.failureThreshold = failureThreshold;
+		this.openDuration = openDuration;
+	}
+
+	@Override
+	public HttpResponse sendRequest(final String url, final String method) throws MetadefenderClientException {
+		return execute(url, method, true, new Request() {
+			@Override
+			public HttpResponse send() throws MetadefenderClientException {
+				return delegate.sendRequest(url, method);
+			}
+		});
+	}
+
+	@Override
+	public HttpResponse sendRequest(final String url, final String method, final byte[] body) throws MetadefenderClientException {
+		return execute(url, method, body == null, new Request() {
+			@Override
+			public HttpResponse send() throws MetadefenderClientException {
+				return delegate.sendRequest(url, method, body);
+			}
+		});
+	}
+
+	@Override
+	public HttpResponse sendRequest(final String url, final String method, final InputStream inputStream, final Map<String, String> headers) throws MetadefenderClientException {
+		final ReadFailureDetector input = inputStream == null ? null : new ReadFailureDetector(inputStream);
+		return execute(url, method, inputStream == null, new Request() {
+			@Override
+			public HttpResponse send() throws MetadefenderClientException {
+				return delegate.sendRequest(url, method, input, headers);
+			}
+
+			@Override
+			public boolean isLocalFailure() {
+				return input != null && input.hasFailed();
+			}
+		});
+	}
+
+	/**
+	 * @param url any url of the end point
+	 * @return circuit breaker of the end point of the url
+	 */
+	public CircuitBreaker getCircuitBreaker(String url) {
+		String endPoint = getEndPoint(url);
+		CircuitBreaker circuitBreaker = circuitBreakers.get(endPoint);
+		if(circuitBreaker == null) {
+			CircuitBreaker created = new CircuitBreaker(failureThreshold, openDuration);
+			circuitBreaker = circuitBreakers.putIfAbsent(endPoint, created);
+			if(circuitBreaker == null) {
+				circuitBreaker = created;
+			}
+		}
+		return circuitBreaker;
+	}
+
+
+	private HttpResponse execute(String url, String method, boolean withoutBody, Request request) throws MetadefenderClientException {
+		CircuitBreaker circuitBreaker = getCircuitBreaker(url);
+		int maxRetries = withoutBody && "GET".equalsIgnoreCase(method) && !ScanResultPoller.isPolling() ? retryPolicy.getMaxRetries() : 0;
+
+		HttpResponse response = null;
+		RuntimeException runtimeError = null;
+		MetadefenderClientException clientError = null;
+
+		for(int retry = 0; ; retry++) {
+			if(!circuitBreaker.allowRequest()) {
+				if(retry == 0) {
+					throw new MetadefenderClientException("Circuit breaker is open for " + getEndPoint(url), SERVICE_UNAVAILABLE);
+				}
+				// opened by the previous attempts, report their outcome
+				break;
+			}
+
+			response = null;
+			runtimeError = null;
+			clientError = null;
+			try {
+				response = request.send();
+			} catch (MetadefenderClientException e) {
+				clientError = e;
+			} catch (RuntimeException e) {
+				runtimeError = e;
+			}
+
+			if(response != null && response.responseCode < 500) {
+				circuitBreaker.onSuccess();
+				return response;
+			}
+			if(clientError != null && clientError.responseCode > 0 && clientError.responseCode < 500) {
+				// the end point answered
+				circuitBreaker.onSuccess();
+				throw clientError;
+			}
+			if(runtimeError != null || request.isLocalFailure()) {
+				circuitBreaker.onIgnored();
+				break;
+			}
+			circuitBreaker.onFailure();
+
+			if(retry >= maxRetries || !backoff(retry)) {
+				break;
+			}
+		}
+
+		if(clientError != null) {
+			throw clientError;
+		}
+		if(runtimeError != null) {
+			throw runtimeError;
+		}
+		return response;
+	}
+
+	/**
+	 * @return false if interrupted, the interrupt flag is kept
+	 */
+	private boolean backoff(int retry) {
+		try {
+			Thread.sleep(retryPolicy.getDelay(retry));
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	private static String getEndPoint(String url) {
+		int schemeEnd = url.indexOf("://");
+		int pathStart = url.indexOf('/', schemeEnd < 0 ? 0 : schemeEnd + 3);
+		return pathStart < 0 ? url : url.substring(0, pathStart);
+	}
+
+
+	private abstract static class Request {
+		abstract HttpResponse send() throws MetadefenderClientException;
+
+		/**
+		 * @return true if the last send failed reading its own body
+		 */
+		boolean isLocalFailure() {
+			return false;
+		}
+	}
+}
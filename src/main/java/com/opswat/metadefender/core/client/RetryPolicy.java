@@ -0,0 +1,51 @@
+package com.opswat.metadefender.core.client;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Retry policy with jittered exponential backoff.
+ * The delay before retry n (starting at 0) is a random value between 0 and min(maxDelay, baseDelay * 2^n).
+ */
+public class RetryPolicy {
+
+	public static final int DEFAULT_MAX_RETRIES = 3;
+	public static final long DEFAULT_BASE_DELAY = 100;
+	public static final long DEFAULT_MAX_DELAY = 2000;
+
+	private final int maxRetries;
+	private final long baseDelay;
+	private final long maxDelay;
+
+
+	public RetryPolicy() {
+		this(DEFAULT_MAX_RETRIES, DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY);
+	}
+
+	/**
+	 * @param maxRetries number of retries after the first attempt, 0 disables retrying
+	 * @param baseDelay backoff of the first retry in millis
+	 * @param maxDelay upper bound of the backoff in millis
+	 */
+	public RetryPolicy(int maxRetries, long baseDelay, long maxDelay) {
+		if(maxRetries < 0 || baseDelay <= 0 || maxDelay < baseDelay) {
+			throw new IllegalArgumentException("0 <= maxRetries and 0 < baseDelay <= maxDelay are required");
+		}
+		this.maxRetries = maxRetries;
+		this.baseDelay = baseDelay;
+		this.maxDelay = maxDelay;
+	}
+
+	public int getMaxRetries() {
+		return maxRetries;
+	}
+
+	/**
+	 * @param retry index of the retry, starting at 0
+	 * @return delay in millis before the retry
+	 */
+	public long getDelay(int retry) {
+		long ceiling = baseDelay << Math.min(retry, 20);
+		ceiling = Math.min(maxDelay, ceiling);
+		return ThreadLocalRandom.current().nextLong(ceiling + 1);
+	}
+}
@@ -0,0 +1,81 @@
+package com.opswat.metadefender.core.client;
+
+import com.opswat.metadefender.core.client.responses.FileScanResult;
+import com.opswat.metadefender.core.client.responses.ScanResults;
+
+/**
+ * State of a running scan, as returned by MetadefenderCoreClient.fetchScanProgress.
+ *
+ * Only the progress fields are read from an unfinished answer, the full FileScanResult is bound once the
+ * scan finished.
+ */
+public class ScanProgress {
+
+	private final String data_id;
+	private final int progressPercentage;
+	private final int scanAllResult;
+	private final FileScanResult result;
+
+
+	ScanProgress(String data_id, int progressPercentage, int scanAllResult, FileScanResult result) {
+		this.data_id = data_id;
+		this.progressPercentage = progressPercentage;
+		this.scanAllResult = scanAllResult;
+		this.result = result;
+	}
+
+	public String getDataId() {
+		return data_id;
+	}
+
+	/**
+	 * @return scan_results.progress_percentage
+	 */
+	public int getProgressPercentage() {
+		return progressPercentage;
+	}
+
+	/**
+	 * @return scan_results.scan_all_result_i, the overall result known so far
+	 */
+	public int getScanAllResult() {
+		return scanAllResult;
+	}
+
+	public boolean isFinished() {
+		return result != null;
+	}
+
+	/**
+	 * @return the full scan result, NULL while the scan is running
+	 */
+	public FileScanResult getResult() {
+		return result;
+	}
+
+	/**
+	 * @return a FileScanResult holding only data_id and the progress fields of scan_results, for polling schedules
+	 * which do not override PollingSchedule.nextDelayAfter
+	 */
+	FileScanResult toPartialResult() {
+		ScanResults scanResults = new ScanResults();
+		scanResults.data_id = data_id;
+		scanResults.progress_percentage = progressPercentage;
+		scanResults.scan_all_result_i = scanAllResult;
+
+		FileScanResult partial = new FileScanResult();
+		partial.data_id = data_id;
+		partial.scan_results = scanResults;
+		return partial;
+	}
+
+	@Override
+	public String toString() {
+		return "ScanProgress{" +
+				"data_id='" + data_id + '\'' +
+				", progress_percentage=" + progressPercentage +
+				", scan_all_result_i=" + scanAllResult +
+				", finished=" + isFinished() +
+				'}';
+	}
+}
@@ -0,0 +1,354 @@
+package com.opswat.metadefender.core.client;
+
+import com.opswat.metadefender.core.client.exceptions.MetadefenderClientException;
+import com.opswat.metadefender.core.client.responses.FileScanResult;
+
+import java.io.Closeable;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+/**
+ * Client side admission control in front of MetadefenderCoreClient.scanFile.
+ *
+ * Scans wait in a bounded queue with one lane per priority, a fixed number of upload threads takes them in
+ * priority order. When the queue is full a new scan is rejected right away or after waiting for space, depending
+ * on the overflow policy. Scans cancelled or timed out while still queued are dropped without being uploaded,
+ * so a slow Core server does not receive work nobody waits for anymore.
+ */
+public class ScanQueue implements Closeable {
+
+	public enum Priority {
+		HIGH, NORMAL, LOW
+	}
+
+	public enum OverflowPolicy {
+		/** reject new scans at once when the queue is full */
+		REJECT,
+		/** wait for space up to the block timeout, then reject */
+		BLOCK
+	}
+
+	private final MetadefenderCoreClient client;
+	private final int capacity;
+	private final OverflowPolicy overflowPolicy;
+	private final long blockTimeout;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+
+	// guarded by lock
+	private final ArrayDeque<QueuedScan>[] lanes;
+	private int queued = 0;
+	private boolean closed = false;
+
+	private final Thread[] uploaders;
+
+	private final AtomicInteger rejected = new AtomicInteger(0);
+	private final AtomicInteger dropped = new AtomicInteger(0);
+
+
+	/**
+	 * @param client client to scan with
+	 * @param capacity maximum number of queued scans, not counting the ones being uploaded
+	 * @param maxConcurrentUploads number of upload threads
+	 * @param overflowPolicy what to do with new scans when the queue is full
+	 * @param blockTimeout max millis to wait for space with OverflowPolicy.BLOCK
+	 */
+	public ScanQueue(MetadefenderCoreClient client, int capacity, int maxConcurrentUploads, OverflowPolicy overflowPolicy, long blockTimeout) {
+		this(client, capacity, maxConcurrentUploads, overflowPolicy, blockTimeout, new UploaderThreadFactory());
+	}
+
+	/**
+	 * @param client client to scan with
+	 * @param capacity maximum number of queued scans, not counting the ones being uploaded
+	 * @param maxConcurrentUploads number of upload threads
+	 * @param overflowPolicy what to do with new scans when the queue is full
+	 * @param blockTimeout max millis to wait for space with OverflowPolicy.BLOCK
+	 * @param threadFactory factory of the upload threads, see ScanThreads.virtualThreadFactory for many cheap uploaders
+	 */
+	@SuppressWarnings("unchecked")
+	public ScanQueue(MetadefenderCoreClient client, int capacity, int maxConcurrentUploads, OverflowPolicy overflowPolicy, long blockTimeout, ThreadFactory threadFactory) {
+		if(client == null || overflowPolicy == null || threadFactory == null) {
+			throw new IllegalArgumentException("client, overflowPolicy and threadFactory cannot be null");
+		}
+		if(capacity <= 0 || maxConcurrentUploads <= 0 || blockTimeout < 0) {
+			throw new IllegalArgumentException("capacity and maxConcurrentUploads must be positive");
+		}
+		this.client = client;
+		this.capacity = capacity;
+		this.overflowPolicy = overflowPolicy;
+		this.blockTimeout = blockTimeout;
+
+		this.lanes = new ArrayDeque[Priority.values().length];
+		for(int i = 0; i < lanes.length; i++) {
+			lanes[i] = new ArrayDeque<QueuedScan>();
+		}
+
+		this.uploaders = new Thread[maxConcurrentUploads];
+		for(int i = 0; i < maxConcurrentUploads; i++) {
+			uploaders[i] = threadFactory.newThread(new Runnable() {
+				@Override
+				public void run() {
+					uploadLoop();
+				}
+			});
+			uploaders[i].start();
+		}
+	}
+
+	/**
+	 * Queue a scan of a stream. The stream must stay open until the returned future is done.
+	 *
+	 * @param inputStream input stream to scan
+	 * @param fileScanOptions optional file scan options
+	 * @param pollingSchedule polling schedule of this scan
+	 * @param priority lane of the scan
+	 * @return future completed with the finished FileScanResult. Cancel it to drop the scan if it is still queued.
+	 * @throws MetadefenderClientException if the queue is full or closed
+	 * @throws InterruptedException if interrupted while waiting for space
+	 */
+	public CompletableFuture<FileScanResult> submit(InputStream inputStream, FileScanOptions fileScanOptions, PollingSchedule pollingSchedule, Priority priority) throws MetadefenderClientException, InterruptedException {
+		if(inputStream == null) {
+			throw new MetadefenderClientException("Stream cannot be null");
+		}
+		return enqueue(new QueuedScan(inputStream, null, fileScanOptions, pollingSchedule), priority);
+	}
+
+	/**
+	 * Queue a scan of a file, the file is opened only when its upload starts.
+	 *
+	 * @param path file to scan
+	 * @param fileScanOptions optional file scan options
+	 * @param pollingSchedule polling schedule of this scan
+	 * @param priority lane of the scan
+	 * @return future completed with the finished FileScanResult. Cancel it to drop the scan if it is still queued.
+	 * @throws MetadefenderClientException if the queue is full or closed
+	 * @throws InterruptedException if interrupted while waiting for space
+	 */
+	public CompletableFuture<FileScanResult> submit(Path path, FileScanOptions fileScanOptions, PollingSchedule pollingSchedule, Priority priority) throws MetadefenderClientException, InterruptedException {
+		if(path == null) {
+			throw new MetadefenderClientException("Path cannot be null");
+		}
+		return enqueue(new QueuedScan(null, path, fileScanOptions, pollingSchedule), priority);
+	}
+
+	/**
+	 * Scan file in synchron mode through the queue. The timeout covers the time spent in the queue as well.
+	 *
+	 * @param path file to scan
+	 * @param fileScanOptions optional file scan options
+	 * @param pollingSchedule polling schedule of this scan
+	 * @param priority lane of the scan
+	 * @param timeout timeout in millis
+	 * @return FileScanResult
+	 * @throws MetadefenderClientException if the queue is full or the scan failed
+	 */
+	public FileScanResult scanFileSync(Path path, FileScanOptions fileScanOptions, PollingSchedule pollingSchedule, Priority priority, int timeout) throws MetadefenderClientException, InterruptedException, ExecutionException, TimeoutException {
+		long start = System.currentTimeMillis();
+		CompletableFuture<FileScanResult> future = submit(path, fileScanOptions, pollingSchedule, priority);
+
+		try {
+			long remaining = Math.max(timeout - (System.currentTimeMillis() - start), 0);
+			return future.get(remaining, TimeUnit.MILLISECONDS);
+		} finally {
+			future.cancel(true);
+		}
+	}
+
+	/**
+	 * @return client the scans are uploaded with
+	 */
+	public MetadefenderCoreClient getClient() {
+		return client;
+	}
+
+	/**
+	 * @return number of scans waiting for an upload thread
+	 */
+	public int getQueuedCount() {
+		lock.lock();
+		try {
+			return queued;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return number of scans rejected because the queue was full
+	 */
+	public int getRejectedCount() {
+		return rejected.get();
+	}
+
+	/**
+	 * @return number of scans cancelled by their caller before their upload started
+	 */
+	public int getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * Stop the upload threads, queued scans are cancelled. Scans already uploaded keep being polled.
+	 */
+	@Override
+	public void close() {
+		lock.lock();
+		try {
+			closed = true;
+			for(ArrayDeque<QueuedScan> lane : lanes) {
+				for(QueuedScan queuedScan : lane) {
+					queuedScan.future.cancel(true);
+				}
+				lane.clear();
+			}
+			queued = 0;
+			notEmpty.signalAll();
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+
+	private CompletableFuture<FileScanResult> enqueue(QueuedScan queuedScan, Priority priority) throws MetadefenderClientException, InterruptedException {
+		long waitNanos = overflowPolicy == OverflowPolicy.BLOCK ? TimeUnit.MILLISECONDS.toNanos(blockTimeout) : 0;
+
+		lock.lockInterruptibly();
+		try {
+			while(queued >= capacity && !closed) {
+				if(waitNanos <= 0) {
+					rejected.incrementAndGet();
+					throw new MetadefenderClientException("Scan queue is full (" + capacity + " scans waiting)");
+				}
+				waitNanos = notFull.awaitNanos(waitNanos);
+			}
+			if(closed) {
+				throw new MetadefenderClientException("Scan queue is closed");
+			}
+
+			lanes[(priority == null ? Priority.NORMAL : priority).ordinal()].addLast(queuedScan);
+			queued++;
+			notEmpty.signal();
+		} finally {
+			lock.unlock();
+		}
+		return queuedScan.future;
+	}
+
+	private QueuedScan take() throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while(true) {
+				if(closed) {
+					return null;
+				}
+				for(ArrayDeque<QueuedScan> lane : lanes) {
+					QueuedScan queuedScan = lane.pollFirst();
+					if(queuedScan != null) {
+						queued--;
+						notFull.signal();
+						return queuedScan;
+					}
+				}
+				notEmpty.await();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void uploadLoop() {
+		while(true) {
+			QueuedScan queuedScan;
+			try {
+				queuedScan = take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			if(queuedScan == null) {
+				return;
+			}
+
+			if(queuedScan.future.isDone()) {
+				// nobody waits for this scan anymore, do not upload it
+				dropped.incrementAndGet();
+				continue;
+			}
+
+			upload(queuedScan);
+		}
+	}
+
+	private void upload(final QueuedScan queuedScan) {
+		final CompletableFuture<FileScanResult> polling;
+		try {
+			polling = queuedScan.path != null
+					? client.scanFileAsync(queuedScan.path, queuedScan.fileScanOptions, queuedScan.pollingSchedule)
+					: client.scanFileAsync(queuedScan.inputStream, queuedScan.fileScanOptions, queuedScan.pollingSchedule);
+		} catch (Exception e) {
+			queuedScan.future.completeExceptionally(e);
+			return;
+		}
+
+		polling.whenComplete(new BiConsumer<FileScanResult, Throwable>() {
+			@Override
+			public void accept(FileScanResult fileScanResult, Throwable throwable) {
+				if(throwable == null) {
+					queuedScan.future.complete(fileScanResult);
+				} else {
+					queuedScan.future.completeExceptionally(throwable);
+				}
+			}
+		});
+		// the caller gave up: stop polling
+		queuedScan.future.whenComplete(new BiConsumer<FileScanResult, Throwable>() {
+			@Override
+			public void accept(FileScanResult fileScanResult, Throwable throwable) {
+				polling.cancel(true);
+			}
+		});
+	}
+
+
+	private static class QueuedScan {
+		private final InputStream inputStream;
+		private final Path path;
+		private final FileScanOptions fileScanOptions;
+		private final PollingSchedule pollingSchedule;
+		private final CompletableFuture<FileScanResult> future = new CompletableFuture<FileScanResult>();
+
+		QueuedScan(InputStream inputStream, Path path, FileScanOptions fileScanOptions, PollingSchedule pollingSchedule) {
+			this.inputStream = inputStream;
+			this.path = path;
+			this.fileScanOptions = fileScanOptions;
+			this.pollingSchedule = pollingSchedule;
+		}
+	}
+
+	private static class UploaderThreadFactory implements ThreadFactory {
+
+		private static final AtomicInteger POOL_NUMBER = new AtomicInteger(1);
+
+		private final String namePrefix = "metadefender-queue-" + POOL_NUMBER.getAndIncrement() + "-";
+		private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, namePrefix + threadNumber.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,407 @@
+package com.opswat.metadefender.core.client;
+
+import com.opswat.metadefender.core.client.exceptions.MetadefenderClientException;
+import com.opswat.metadefender.core.client.responses.FileScanResult;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Polling coordinator for pending scans.
+ *
+ * All outstanding data_ids are merged into one scheduling loop: every tick the loop picks the scans whose
+ * polling interval elapsed and dispatches their /file/{data_id} fetch to a small fetch pool. The number of
+ * concurrent fetches is capped per api end point, scans over the cap are deferred to the next tick, so the
+ * request rate to the Core server is bounded by the cap and not by the number of pending scans.
+ *
+ * A poll failing without an answer or with a 5xx answer does not fail the scan: it is rescheduled with the backoff of
+ * the retry policy, so a degraded server never blocks a fetch thread. The scan fails once the consecutive failed polls
+ * exceed the retries of the policy.
+ */
+public class ScanResultPoller implements Closeable {
+
+	private static final int DEFAULT_FETCH_THREADS = 4;
+	private static final int DEFAULT_MAX_FETCHES_PER_ENDPOINT = 4;
+	private static final int DEFAULT_TICK_INTERVAL = 20;
+
+	private static final ScanResultPoller SHARED = new ScanResultPoller(DEFAULT_FETCH_THREADS);
+
+	// set while a fetch thread polls, the poller retries its failed polls itself
+	private static final ThreadLocal<Boolean> POLLING = new ThreadLocal<Boolean>();
+
+	private final int maxFetchesPerEndpoint;
+	private final int tickInterval;
+
+	private final ScheduledExecutorService scheduler;
+	private final ExecutorService fetchExecutor;
+
+	// new scans are handed over to the scheduling loop through this queue
+	private final Queue<PendingScan> registrations = new ConcurrentLinkedQueue<PendingScan>();
+
+	// owned by the scheduling loop thread only
+	private final List<PendingScan> pendingScans = new ArrayList<PendingScan>();
+	private final Map<String, Semaphore> endpointPermits = new HashMap<String, Semaphore>();
+
+	private final AtomicBoolean started = new AtomicBoolean(false);
+	private volatile boolean closed = false;
+	private final AtomicInteger pendingCount = new AtomicInteger(0);
+
+	private volatile RetryPolicy retryPolicy = new RetryPolicy();
+
+
+	/**
+	 * @param fetchThreads number of threads executing fetch requests, this does not depend on the number of pending scans
+	 */
+	public ScanResultPoller(int fetchThreads) {
+		this(fetchThreads, DEFAULT_MAX_FETCHES_PER_ENDPOINT, DEFAULT_TICK_INTERVAL);
+	}
+
+	/**
+	 * @param fetchThreads number of threads executing fetch requests, this does not depend on the number of pending scans
+	 * @param maxFetchesPerEndpoint maximum number of concurrent /file/{data_id} requests per api end point
+	 * @param tickInterval scheduling loop period in millis, the effective polling resolution
+	 */
+	public ScanResultPoller(int fetchThreads, int maxFetchesPerEndpoint, int tickInterval) {
+		this(newFetchExecutor(fetchThreads), maxFetchesPerEndpoint, tickInterval);
+	}
+
+	/**
+	 * Poller running its fetches on the given executor, for example ScanThreads.newVirtualThreadPerTaskExecutor.
+	 * The executor is owned by the poller and shut down by close().
+	 *
+	 * @param fetchExecutor executor of the fetch requests, their concurrency is still capped per end point
+	 * @param maxFetchesPerEndpoint maximum number of concurrent /file/{data_id} requests per api end point
+	 * @param tickInterval scheduling loop period in millis, the effective polling resolution
+	 */
+	public ScanResultPoller(ExecutorService fetchExecutor, int maxFetchesPerEndpoint, int tickInterval) {
+		if(fetchExecutor == null) {
+			throw new IllegalArgumentException("fetchExecutor cannot be null");
+		}
+		if(maxFetchesPerEndpoint <= 0 || tickInterval <= 0) {
+			throw new IllegalArgumentException("maxFetchesPerEndpoint and tickInterval must be positive");
+		}
+		this.maxFetchesPerEndpoint = maxFetchesPerEndpoint;
+		this.tickInterval = tickInterval;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new PollerThreadFactory("metadefender-poller"));
+		this.fetchExecutor = fetchExecutor;
+	}
+
+	/**
+	 * @return the poller used by every client unless a custom one is set. It lives as long as the JVM and cannot be closed.
+	 */
+	public static ScanResultPoller getShared() {
+		return SHARED;
+	}
+
+	/**
+	 * Start polling a scan until it finishes.
+	 * Cancelling the returned future stops polling of this data_id.
+	 *
+	 * @param client client to fetch the scan result with
+	 * @param data_id unique file scan id
+	 * @param pollingInterval polling time in millis
+	 * @return future completed with the finished scan result
+	 */
+	public CompletableFuture<FileScanResult> poll(MetadefenderCoreClient client, String data_id, int pollingInterval) {
+		return poll(client, data_id, new FixedPollingPolicy(pollingInterval).newSchedule(null, -1));
+	}
+
+	/**
+	 * Start polling a scan until it finishes.
+	 * Cancelling the returned future stops polling of this data_id.
+	 *
+	 * @param client client to fetch the scan result with
+	 * @param data_id unique file scan id
+	 * @param pollingSchedule decides the delay between polls of this scan
+	 * @return future completed with the finished scan result
+	 */
+	public CompletableFuture<FileScanResult> poll(MetadefenderCoreClient client, String data_id, PollingSchedule pollingSchedule) {
+		PendingScan pendingScan = new PendingScan(client, data_id, pollingSchedule);
+		if(closed) {
+			pendingScan.future.completeExceptionally(new IllegalStateException("ScanResultPoller is closed"));
+			return pendingScan.future;
+		}
+
+		pendingCount.incrementAndGet();
+		registrations.add(pendingScan);
+
+		if(closed) {
+			// close() raced with this registration, whoever removes it from the queue cancels it
+			if(registrations.remove(pendingScan)) {
+				pendingCount.decrementAndGet();
+				pendingScan.future.completeExceptionally(new IllegalStateException("ScanResultPoller is closed"));
+			}
+			return pendingScan.future;
+		}
+
+		if(started.compareAndSet(false, true)) {
+			try {
+				scheduler.scheduleWithFixedDelay(new Runnable() {
+					@Override
+					public void run() {
+						tick();
+					}
+				}, 0, tickInterval, TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				// closed meanwhile, the scan is cancelled by close()
+			}
+		}
+
+		return pendingScan.future;
+	}
+
+	/**
+	 * @param retryPolicy backoff and number of retries of consecutive failed polls of a scan
+	 */
+	public void setRetryPolicy(RetryPolicy retryPolicy) {
+		if(retryPolicy == null) {
+			throw new IllegalArgumentException("retryPolicy cannot be null");
+		}
+		this.retryPolicy = retryPolicy;
+	}
+
+	/**
+	 * @return number of scans currently polled
+	 */
+	public int getPendingCount() {
+		return pendingCount.get();
+	}
+
+
+	/**
+	 * Stop polling: every pending scan is cancelled and the polling threads are stopped.
+	 *
+	 * @throws IllegalStateException if this is the shared poller, other clients still depend on it
+	 */
+	@Override
+	public void close() {
+		if(this == SHARED) {
+			throw new IllegalStateException("The shared ScanResultPoller cannot be closed");
+		}
+
+		closed = true;
+		try {
+			// pendingScans belongs to the loop thread, the cancellation runs there after the current tick
+			scheduler.execute(new Runnable() {
+				@Override
+				public void run() {
+					cancelPendingScans();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// already closed
+		}
+		scheduler.shutdown();
+		try {
+			scheduler.awaitTermination(tickInterval * 10L, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		fetchExecutor.shutdownNow();
+	}
+
+	/**
+	 * @return true if the current thread is polling a scan result for a poller
+	 */
+	static boolean isPolling() {
+		return POLLING.get() != null;
+	}
+
+	private static ExecutorService newFetchExecutor(int fetchThreads) {
+		if(fetchThreads <= 0) {
+			throw new IllegalArgumentException("fetchThreads, maxFetchesPerEndpoint and tickInterval must be positive");
+		}
+		return Executors.newFixedThreadPool(fetchThreads, new PollerThreadFactory("metadefender-fetch"));
+	}
+
+	private void tick() {
+		drainRegistrations();
+
+		long now = System.currentTimeMillis();
+
+		Iterator<PendingScan> iterator = pendingScans.iterator();
+		while(iterator.hasNext()) {
+			PendingScan pendingScan = iterator.next();
+
+			if(pendingScan.future.isDone()) {
+				// finished, failed, cancelled or timed out by the caller
+				iterator.remove();
+				pendingCount.decrementAndGet();
+				continue;
+			}
+
+			try {
+				dispatch(pendingScan, now);
+			} catch (RuntimeException e) {
+				// an exception escaping tick would cancel the loop of every scan, only this one fails
+				pendingScan.future.completeExceptionally(e);
+			}
+		}
+	}
+
+	private void dispatch(PendingScan pendingScan, long now) {
+		if(pendingScan.fetching || pendingScan.nextPollAt > now) {
+			return;
+		}
+
+		Semaphore permits = getEndpointPermits(pendingScan.client.getApiEndPointUrl());
+		if(!permits.tryAcquire()) {
+			// end point is saturated, retry on the next tick
+			return;
+		}
+
+		pendingScan.fetching = true;
+		try {
+			fetchExecutor.execute(new FetchTask(pendingScan, permits, retryPolicy));
+		} catch (RejectedExecutionException e) {
+			permits.release();
+			pendingScan.fetching = false;
+			pendingScan.future.completeExceptionally(e);
+		}
+	}
+
+	private void cancelPendingScans() {
+		drainRegistrations();
+		for(PendingScan pendingScan : pendingScans) {
+			pendingScan.future.cancel(true);
+			pendingCount.decrementAndGet();
+		}
+		pendingScans.clear();
+	}
+
+	private void drainRegistrations() {
+		PendingScan registered;
+		while((registered = registrations.poll()) != null) {
+			pendingScans.add(registered);
+		}
+	}
+
+	private Semaphore getEndpointPermits(String apiEndPointUrl) {
+		Semaphore permits = endpointPermits.get(apiEndPointUrl);
+		if(permits == null) {
+			permits = new Semaphore(maxFetchesPerEndpoint);
+			endpointPermits.put(apiEndPointUrl, permits);
+		}
+		return permits;
+	}
+
+
+	private static class PendingScan {
+
+		private final MetadefenderCoreClient client;
+		private final String data_id;
+		private final PollingSchedule pollingSchedule;
+		private final long acceptedAt = System.currentTimeMillis();
+		private final long acceptedAtNanos = System.nanoTime();
+		private final CompletableFuture<FileScanResult> future = new CompletableFuture<FileScanResult>();
+
+		private volatile long nextPollAt;
+		private volatile boolean fetching = false;
+		// written by one fetch at a time
+		private volatile int polls = 0;
+		private volatile int failedPolls = 0;
+
+		PendingScan(MetadefenderCoreClient client, String data_id, PollingSchedule pollingSchedule) {
+			this.client = client;
+			this.data_id = data_id;
+			this.pollingSchedule = pollingSchedule;
+			this.nextPollAt = acceptedAt + pollingSchedule.nextDelay(null, 0);
+		}
+	}
+
+	private static class FetchTask implements Runnable {
+
+		private final PendingScan pendingScan;
+		private final Semaphore permits;
+		private final RetryPolicy retryPolicy;
+
+		FetchTask(PendingScan pendingScan, Semaphore permits, RetryPolicy retryPolicy) {
+			this.pendingScan = pendingScan;
+			this.permits = permits;
+			this.retryPolicy = retryPolicy;
+		}
+
+		@Override
+		public void run() {
+			try {
+				if(pendingScan.future.isDone()) {
+					return;
+				}
+
+				// intermediate answers are only scanned for their progress, the final one is bound fully
+				ScanProgress scanProgress;
+				POLLING.set(Boolean.TRUE);
+				try {
+					scanProgress = pendingScan.client.fetchScanProgress(pendingScan.data_id);
+				} finally {
+					POLLING.remove();
+				}
+				pendingScan.polls++;
+				pendingScan.failedPolls = 0;
+
+				long now = System.currentTimeMillis();
+				long elapsed = now - pendingScan.acceptedAt;
+
+				if(scanProgress.isFinished()) {
+					pendingScan.client.getMetrics().scanFinished(pendingScan.polls, System.nanoTime() - pendingScan.acceptedAtNanos);
+					pendingScan.pollingSchedule.finished(scanProgress.getResult(), elapsed);
+					pendingScan.future.complete(scanProgress.getResult());
+				} else {
+					pendingScan.nextPollAt = now + pendingScan.pollingSchedule.nextDelayAfter(scanProgress, elapsed);
+				}
+			} catch (MetadefenderClientException e) {
+				if(isRetryable(e) && pendingScan.failedPolls < retryPolicy.getMaxRetries()) {
+					pendingScan.nextPollAt = System.currentTimeMillis() + retryPolicy.getDelay(pendingScan.failedPolls);
+					pendingScan.failedPolls++;
+				} else {
+					pendingScan.future.completeExceptionally(e);
+				}
+			} catch (Exception e) {
+				pendingScan.future.completeExceptionally(e);
+			} finally {
+				permits.release();
+				pendingScan.fetching = false;
+			}
+		}
+
+		private static boolean isRetryable(MetadefenderClientException e) {
+			// no HTTP answer at all or a server side error, including an open circuit breaker
+			return e.responseCode <= 0 || e.responseCode >= 500;
+		}
+	}
+
+	private static class PollerThreadFactory implements ThreadFactory {
+
+		private static final AtomicInteger POOL_NUMBER = new AtomicInteger(1);
+
+		private final String namePrefix;
+		private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+		PollerThreadFactory(String name) {
+			this.namePrefix = name + "-" + POOL_NUMBER.getAndIncrement() + "-";
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, namePrefix + threadNumber.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package com.opswat.metadefender.core.client;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread factories and executors for the blocking scan work: uploads and polls.
+ *
+ * On a Java 21+ runtime virtual threads can be used, then a blocked upload or poll costs a small heap object
+ * instead of a platform thread, and tens of thousands of scans can wait at the same time. The library is built for
+ * Java 8, so virtual threads are looked up through reflection; on older runtimes the virtual variants fall back to
+ * daemon platform threads.
+ */
+public final class ScanThreads {
+
+	private static final Method OF_VIRTUAL = findMethod(Thread.class, "ofVirtual");
+	private static final Method NEW_THREAD_PER_TASK_EXECUTOR = findMethod(Executors.class, "newThreadPerTaskExecutor", ThreadFactory.class);
+
+
+	private ScanThreads() {
+	}
+
+	/**
+	 * @return true if the runtime supports virtual threads
+	 */
+	public static boolean isVirtualThreadSupported() {
+		return newVirtualThreadFactory("metadefender-probe-") != null;
+	}
+
+	/**
+	 * @param namePrefix prefix of the thread names, a sequence number is appended
+	 * @return factory of virtual threads, or of daemon platform threads if the runtime has no virtual threads
+	 */
+	public static ThreadFactory virtualThreadFactory(String namePrefix) {
+		ThreadFactory threadFactory = newVirtualThreadFactory(namePrefix);
+		return threadFactory != null ? threadFactory : platformThreadFactory(namePrefix);
+	}
+
+	/**
+	 * @param namePrefix prefix of the thread names, a sequence number is appended
+	 * @return factory of daemon platform threads
+	 */
+	public static ThreadFactory platformThreadFactory(final String namePrefix) {
+		return new ThreadFactory() {
+			private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, namePrefix + threadNumber.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	/**
+	 * Executor starting a new virtual thread per task, for work whose concurrency is bounded elsewhere.
+	 * Falls back to a cached pool of daemon platform threads if the runtime has no virtual threads.
+	 *
+	 * @param namePrefix prefix of the thread names
+	 * @return unbounded executor, shut it down when no longer used
+	 */
+	public static ExecutorService newVirtualThreadPerTaskExecutor(String namePrefix) {
+		ThreadFactory threadFactory = newVirtualThreadFactory(namePrefix);
+		if(threadFactory != null && NEW_THREAD_PER_TASK_EXECUTOR != null) {
+			try {
+				return (ExecutorService) NEW_THREAD_PER_TASK_EXECUTOR.invoke(null, threadFactory);
+			} catch (Exception e) {
+				// fall through to a platform thread pool
+			}
+		}
+		return Executors.newCachedThreadPool(threadFactory != null ? threadFactory : platformThreadFactory(namePrefix));
+	}
+
+
+	private static ThreadFactory newVirtualThreadFactory(String namePrefix) {
+		if(OF_VIRTUAL == null) {
+			return null;
+		}
+		try {
+			// Thread.ofVirtual().name(namePrefix, 1).factory()
+			Object builder = OF_VIRTUAL.invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 1L);
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		} catch (Exception e) {
+			// preview feature not enabled on Java 19 / 20
+			return null;
+		}
+	}
+
+	private static Method findMethod(Class<?> clazz, String name, Class<?>... parameterTypes) {
+		try {
+			return clazz.getMethod(name, parameterTypes);
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,25 @@
+package com.opswat.metadefender.core.client;
+
+/**
+ * Progress of an upload through LargeFileUploader.
+ * Called on the upload thread, implementations must return quickly.
+ */
+public interface UploadProgressListener {
+
+	/**
+	 * A chunk was handed to the HttpConnector.
+	 *
+	 * @param bytesSent bytes sent so far in the current attempt
+	 * @param totalBytes size of the file, -1 if unknown
+	 */
+	void onProgress(long bytesSent, long totalBytes);
+
+	/**
+	 * The upload failed and starts again from the beginning of the file, progress restarts at 0.
+	 *
+	 * @param attempt number of the new attempt, 1 for the first retry
+	 * @param cause failure of the previous attempt
+	 */
+	default void onRetry(int attempt, Exception cause) {
+	}
+}
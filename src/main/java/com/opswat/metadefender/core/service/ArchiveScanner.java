@@ -0,0 +1,319 @@
+package com.opswat.metadefender.core.service;
+
+import com.opswat.metadefender.core.client.FileScanOptions;
+import com.opswat.metadefender.core.client.MetadefenderCoreClient;
+import com.opswat.metadefender.core.client.PollingPolicy;
+import com.opswat.metadefender.core.client.ScanQueue;
+import com.opswat.metadefender.core.client.exceptions.MetadefenderClientException;
+import com.opswat.metadefender.core.client.responses.FileScanResult;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Scans a ZIP / JAR archive entry by entry instead of uploading it as a whole.
+ *
+ * Every entry is hashed and looked up on the server (/hash/{sha256}); only entries whose content the server does
+ * not know yet, or scanned with definitions older than the given ones, are uploaded through the scan queue.
+ * Identical entries of the same archive are uploaded once. When one entry of a large archive changes, only that
+ * entry is sent again. Lookups of the entries run in parallel on a small shared pool, the uploads are submitted by
+ * the calling thread, so a full scan queue holds back that caller only.
+ * Nested archives are scanned as plain entries, they are not expanded. Checks the server applies to the archive
+ * itself, like archive bomb or encrypted archive detection, do not happen, the entries are scanned as separate
+ * files.
+ */
+public class ArchiveScanner {
+
+    private static final String[] ARCHIVE_EXTENSIONS = {".zip", ".jar", ".war", ".ear"};
+
+    private static final int LOOKUP_THREADS = 8;
+
+    // /hash/{sha256} round trips of every archive scan, idle threads stop after a minute
+    private static final ThreadPoolExecutor LOOKUPS = newLookupExecutor();
+
+    private final ScanQueue scanQueue;
+    private final MetadefenderCoreClient client;
+    private final PollingPolicy pollingPolicy;
+    private final int timeout;
+    private final long minDefinitionTime;
+
+    /**
+     * @param scanQueue queue uploading the unknown entries, its client looks up the entries as well
+     * @param pollingPolicy polling policy of the uploaded entries
+     * @param timeout timeout in millis of the whole archive
+     */
+    public ArchiveScanner(ScanQueue scanQueue, PollingPolicy pollingPolicy, int timeout) {
+        this(scanQueue, pollingPolicy, timeout, 0);
+    }
+
+    /**
+     * @param scanQueue queue uploading the unknown entries, its client looks up the entries as well
+     * @param pollingPolicy polling policy of the uploaded entries
+     * @param timeout timeout in millis of the whole archive
+     * @param minDefinitionTime earlier scans done with older definitions (latest def_time in millis) are not reused
+     */
+    public ArchiveScanner(ScanQueue scanQueue, PollingPolicy pollingPolicy, int timeout, long minDefinitionTime) {
+        if (scanQueue == null || pollingPolicy == null) {
+            throw new IllegalArgumentException("scanQueue and pollingPolicy cannot be null");
+        }
+        this.scanQueue = scanQueue;
+        this.client = scanQueue.getClient();
+        this.pollingPolicy = pollingPolicy;
+        this.timeout = timeout;
+        this.minDefinitionTime = minDefinitionTime;
+    }
+
+    /**
+     * @param file file name or path
+     * @return true if the file has a ZIP based archive extension: zip, jar, war or ear
+     */
+    public static boolean isArchive(String file) {
+        String lowerCase = file.toLowerCase(Locale.ROOT);
+        for (String extension : ARCHIVE_EXTENSIONS) {
+            if (lowerCase.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Scan every file entry of the archive, see the class comment. Entries are reported as archive!/entry.
+     *
+     * @param file path of the archive
+     * @return combined verdict of the entries, without entries if the archive has no file entry
+     * @throws java.util.zip.ZipException if the file is not a readable ZIP archive, for example an encrypted one
+     * @throws MetadefenderClientException if a lookup, an upload or a scan failed
+     */
+    public ArchiveVerdict scan(String file)
+            throws MetadefenderClientException, IOException, InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.currentTimeMillis() + timeout;
+
+        List<String> names = new ArrayList<String>();
+        List<String> hashes = new ArrayList<String>();
+        // first entry of every distinct content, in archive order
+        Map<String, ZipEntry> distinct = new LinkedHashMap<String, ZipEntry>();
+        Map<String, CompletableFuture<FileScanResult>> lookups = new HashMap<String, CompletableFuture<FileScanResult>>();
+        // one scan per distinct content, known ones are answered by the lookup
+        Map<String, CompletableFuture<FileScanResult>> scans = new HashMap<String, CompletableFuture<FileScanResult>>();
+        Map<String, Boolean> reused = new HashMap<String, Boolean>();
+
+        // queued uploads read their entry later, the archive stays open until every scan is done
+        try (ZipFile zipFile = new ZipFile(file)) {
+            List<ArchiveVerdict.Entry> verdicts = new ArrayList<ArchiveVerdict.Entry>();
+            int uploaded = 0;
+            try {
+                Enumeration<? extends ZipEntry> entries = zipFile.entries();
+                while (entries.hasMoreElements()) {
+                    ZipEntry entry = entries.nextElement();
+                    if (entry.isDirectory()) {
+                        continue;
+                    }
+
+                    String hash;
+                    try (InputStream inputStream = zipFile.getInputStream(entry)) {
+                        hash = ContentHasher.sha256(inputStream);
+                    }
+                    names.add(entry.getName());
+                    hashes.add(hash);
+                    if (!distinct.containsKey(hash)) {
+                        distinct.put(hash, entry);
+                        lookups.put(hash, lookUp(entry, hash));
+                    }
+                }
+
+                // uploads are submitted from this thread: a full queue blocks the caller, not the shared lookup pool
+                for (Map.Entry<String, ZipEntry> entry : distinct.entrySet()) {
+                    long remaining = Math.max(0, deadline - System.currentTimeMillis());
+                    FileScanResult known = lookups.get(entry.getKey()).get(remaining, TimeUnit.MILLISECONDS);
+                    reused.put(entry.getKey(), known != null);
+                    scans.put(entry.getKey(), known != null ? lookedUp(known, entry.getValue()) : upload(zipFile, entry.getValue()));
+                }
+
+                Map<String, ScanVerdict> byHash = new HashMap<String, ScanVerdict>();
+                for (int i = 0; i < names.size(); i++) {
+                    String hash = hashes.get(i);
+                    String entryFile = file + "!/" + names.get(i);
+                    ScanVerdict verdict = byHash.get(hash);
+                    if (verdict == null) {
+                        long remaining = Math.max(0, deadline - System.currentTimeMillis());
+                        verdict = ScanVerdict.of(entryFile, scans.get(hash).get(remaining, TimeUnit.MILLISECONDS));
+                        byHash.put(hash, verdict);
+                        if (!reused.get(hash)) {
+                            uploaded++;
+                        }
+                    }
+                    verdicts.add(new ArchiveVerdict.Entry(names.get(i), hash, verdict, reused.get(hash)));
+                }
+            } finally {
+                cancel(lookups);
+                cancel(scans);
+            }
+            return new ArchiveVerdict(file, verdicts, uploaded);
+        }
+    }
+
+
+    /**
+     * @return lookup of the entry on the shared pool, completed with an earlier or running scan that may be reused,
+     * NULL if the entry has to be uploaded
+     */
+    private CompletableFuture<FileScanResult> lookUp(final ZipEntry entry, final String hash) {
+        final CompletableFuture<FileScanResult> lookup = new CompletableFuture<FileScanResult>();
+        try {
+            LOOKUPS.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (lookup.isDone()) {
+                        return;
+                    }
+                    try {
+                        FileScanResult known = client.findScanResultByHash(hash);
+                        boolean reusable = known != null && isReusable(known, entry.getName(), minDefinitionTime);
+                        client.getMetrics().cacheLookup("hash", reusable);
+                        lookup.complete(reusable ? known : null);
+                    } catch (Exception e) {
+                        lookup.completeExceptionally(e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            lookup.completeExceptionally(e);
+        }
+        return lookup;
+    }
+
+    /**
+     * @param known result of a hash lookup
+     * @param file name of the file in reports
+     * @param minDefinitionTime latest def_time in millis a finished scan must have been done with, 0 or less for any
+     * @return true if the earlier scan may stand for a scan of the file now
+     */
+    static boolean isReusable(FileScanResult known, String file, long minDefinitionTime) {
+        // a running scan uses the current definitions, a finished one must not be older than the required ones
+        return !known.isScanFinished() || minDefinitionTime <= 0
+                || ScanVerdict.of(file, known).getLatestDefinitionTime() >= minDefinitionTime;
+    }
+
+    private CompletableFuture<FileScanResult> lookedUp(FileScanResult known, ZipEntry entry) throws MetadefenderClientException {
+        if (known.isScanFinished()) {
+            return CompletableFuture.completedFuture(known);
+        }
+        // same content is being scanned right now, wait for that scan instead of uploading again
+        return client.pollScanResult(known.data_id, pollingPolicy.newSchedule(getEntryFileName(entry), entry.getSize()));
+    }
+
+    private CompletableFuture<FileScanResult> upload(ZipFile zipFile, ZipEntry entry) throws MetadefenderClientException, InterruptedException {
+        String fileName = getEntryFileName(entry);
+        final EntryInputStream inputStream = new EntryInputStream(zipFile, entry);
+        CompletableFuture<FileScanResult> queued = scanQueue.submit(inputStream, new FileScanOptions().setFileName(fileName),
+                pollingPolicy.newSchedule(fileName, entry.getSize()), ScanQueue.Priority.NORMAL);
+        queued.whenComplete(new BiConsumer<FileScanResult, Throwable>() {
+            @Override
+            public void accept(FileScanResult fileScanResult, Throwable throwable) {
+                inputStream.close();
+            }
+        });
+        return queued;
+    }
+
+    private static void cancel(Map<String, CompletableFuture<FileScanResult>> scans) {
+        for (CompletableFuture<FileScanResult> scan : scans.values()) {
+            scan.cancel(true);
+        }
+    }
+
+    private static String getEntryFileName(ZipEntry entry) {
+        String name = entry.getName();
+        return name.substring(name.lastIndexOf('/') + 1);
+    }
+
+    private static ThreadPoolExecutor newLookupExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(LOOKUP_THREADS, LOOKUP_THREADS, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new LookupThreadFactory());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+
+    /**
+     * Entry content opened when the queue starts its upload, so queued entries hold no inflater.
+     */
+    private static class EntryInputStream extends InputStream {
+
+        private final ZipFile zipFile;
+        private final ZipEntry entry;
+
+        // guarded by this
+        private InputStream inputStream;
+        private boolean closed = false;
+
+        EntryInputStream(ZipFile zipFile, ZipEntry entry) {
+            this.zipFile = zipFile;
+            this.entry = entry;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return open().read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return open().read(b, off, len);
+        }
+
+        @Override
+        public synchronized void close() {
+            closed = true;
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException e) {
+                    // nothing left to read
+                }
+            }
+        }
+
+        private synchronized InputStream open() throws IOException {
+            if (closed) {
+                throw new IOException("Entry stream is closed: " + entry.getName());
+            }
+            if (inputStream == null) {
+                inputStream = zipFile.getInputStream(entry);
+            }
+            return inputStream;
+        }
+    }
+
+    private static class LookupThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "metadefender-archive-lookup-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.opswat.metadefender.core.service;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Combined verdict of an archive scanned entry by entry, see ArchiveScanner.
+ *
+ * The archive is denied if any entry was blocked, an error if any entry scan ended otherwise, allowed when every
+ * entry was allowed.
+ */
+public final class ArchiveVerdict {
+
+    /**
+     * Verdict of one archive entry.
+     */
+    public static final class Entry {
+        private final String name;
+        private final String hash;
+        private final ScanVerdict verdict;
+        private final boolean reused;
+
+        Entry(String name, String hash, ScanVerdict verdict, boolean reused) {
+            this.name = name;
+            this.hash = hash;
+            this.verdict = verdict;
+            this.reused = reused;
+        }
+
+        /**
+         * @return path of the entry inside the archive
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return SHA-256 of the entry content
+         */
+        public String getHash() {
+            return hash;
+        }
+
+        public ScanVerdict getVerdict() {
+            return verdict;
+        }
+
+        /**
+         * @return true if the verdict of an earlier scan of the same content was reused, false if it was uploaded
+         */
+        public boolean isReused() {
+            return reused;
+        }
+    }
+
+    private final String file;
+    private final List<Entry> entries;
+    private final int uploadedCount;
+    private final ScanOutcome.Status status;
+
+    // rendered on demand
+    private volatile String text;
+
+    ArchiveVerdict(String file, List<Entry> entries, int uploadedCount) {
+        this.file = file;
+        this.entries = Collections.unmodifiableList(entries);
+        this.uploadedCount = uploadedCount;
+
+        ScanOutcome.Status combined = ScanOutcome.Status.ALLOW;
+        for (Entry entry : entries) {
+            ScanVerdict.Verdict verdict = entry.verdict.getVerdict();
+            if (verdict == ScanVerdict.Verdict.BLOCKED) {
+                combined = ScanOutcome.Status.DENY;
+                break;
+            }
+            if (verdict == ScanVerdict.Verdict.OTHER) {
+                combined = ScanOutcome.Status.ERROR;
+            }
+        }
+        this.status = combined;
+    }
+
+    public String getFile() {
+        return file;
+    }
+
+    public ScanOutcome.Status getStatus() {
+        return status;
+    }
+
+    public boolean isAllowed() {
+        return status == ScanOutcome.Status.ALLOW;
+    }
+
+    /**
+     * @return "Blocked" if an entry was blocked, else the result of the first entry not allowed, else "Allowed"
+     */
+    public String getResult() {
+        if (status == ScanOutcome.Status.ALLOW) {
+            return "Allowed";
+        }
+        if (status == ScanOutcome.Status.DENY) {
+            return "Blocked";
+        }
+        for (Entry entry : entries) {
+            if (entry.verdict.getVerdict() == ScanVerdict.Verdict.OTHER) {
+                return entry.verdict.getResult();
+            }
+        }
+        return null;
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return number of distinct entry contents uploaded for scanning
+     */
+    public int getUploadedCount() {
+        return uploadedCount;
+    }
+
+    /**
+     * @return number of entries answered without uploading them
+     */
+    public int getReusedCount() {
+        int reused = 0;
+        for (Entry entry : entries) {
+            if (entry.reused) {
+                reused++;
+            }
+        }
+        return reused;
+    }
+
+    /**
+     * @return report of the archive, listing the entries which were not allowed. Rendered on first call.
+     */
+    public String toText() {
+        String rendered = text;
+        if (rendered == null) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("\nArchive (").append(file).append(") scan finished with result: ").append(getResult())
+                    .append("\n\t").append(entries.size()).append(" entries, ").append(uploadedCount).append(" uploaded, ")
+                    .append(getReusedCount()).append(" known");
+            for (Entry entry : entries) {
+                if (!entry.verdict.isAllowed()) {
+                    sb.append(entry.verdict.toText());
+                }
+            }
+            rendered = sb.toString();
+            text = rendered;
+        }
+        return rendered;
+    }
+
+    @Override
+    public String toString() {
+        return "ArchiveVerdict{file='" + file + "', status=" + status + ", entries=" + entries.size()
+                + ", uploaded=" + uploadedCount + '}';
+    }
+}
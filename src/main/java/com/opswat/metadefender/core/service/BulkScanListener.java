@@ -0,0 +1,25 @@
+package com.opswat.metadefender.core.service;
+
+import com.opswat.metadefender.core.client.responses.FileScanResult;
+
+import java.nio.file.Path;
+
+/**
+ * Receives per-file results of a bulk scan as soon as each file finishes.
+ * Methods are called from polling and upload threads, concurrently, so implementations must be thread-safe
+ * and should return quickly.
+ */
+public interface BulkScanListener {
+
+    /**
+     * @param path scanned file
+     * @param result finished scan result
+     */
+    void onResult(Path path, FileScanResult result);
+
+    /**
+     * @param path file which could not be scanned, NULL if a path stream failed without naming the file
+     * @param error cause of the failure
+     */
+    void onError(Path path, Throwable error);
+}
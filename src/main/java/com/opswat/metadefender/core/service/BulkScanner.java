@@ -0,0 +1,395 @@
+package com.opswat.metadefender.core.service;
+
+import com.opswat.metadefender.core.client.AdaptivePollingPolicy;
+import com.opswat.metadefender.core.client.FileScanOptions;
+import com.opswat.metadefender.core.client.MetadefenderCoreClient;
+import com.opswat.metadefender.core.client.PollingPolicy;
+import com.opswat.metadefender.core.client.responses.FileScanResult;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+
+/**
+ * Scans many files through a bounded upload / poll pipeline.
+ *
+ * Paths are consumed lazily, a new file is only taken when one of the maxInFlight slots is free; a slot is held
+ * from the start of the upload until the scan result arrived or the scan timeout of the file elapsed. Uploads run
+ * on maxInFlight upload threads, polling is driven by the client's ScanResultPoller, results are streamed to a
+ * BulkScanListener as they finish.
+ */
+public class BulkScanner implements Closeable {
+
+    public static final long DEFAULT_SCAN_TIMEOUT = 5 * 60 * 1000L;
+
+    // a slot is free at the latest at the scan deadline of its file, plus the listener call
+    private static final long SLOT_WAIT_MARGIN = 10000L;
+
+    private final MetadefenderCoreClient client;
+    private final int maxInFlight;
+    private final ExecutorService uploadExecutor;
+    private final ScheduledExecutorService deadlines;
+
+    private volatile PollingPolicy pollingPolicy = new AdaptivePollingPolicy();
+
+    private volatile long scanTimeout = DEFAULT_SCAN_TIMEOUT;
+
+    /**
+     * @param client client to scan with
+     * @param maxInFlight maximum number of files uploaded or waiting for their result at the same time
+     */
+    public BulkScanner(MetadefenderCoreClient client, int maxInFlight) {
+        this(client, maxInFlight, new BulkThreadFactory("metadefender-bulk-"));
+    }
+
+    /**
+     * @param client client to scan with
+     * @param maxInFlight maximum number of files uploaded or waiting for their result at the same time
+     * @param threadFactory factory of the upload threads, see ScanThreads.virtualThreadFactory
+     */
+    public BulkScanner(MetadefenderCoreClient client, int maxInFlight, ThreadFactory threadFactory) {
+        if (client == null || threadFactory == null) {
+            throw new IllegalArgumentException("client and threadFactory cannot be null");
+        }
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("maxInFlight must be positive");
+        }
+        this.client = client;
+        this.maxInFlight = maxInFlight;
+        this.uploadExecutor = Executors.newFixedThreadPool(maxInFlight, threadFactory);
+        this.deadlines = Executors.newSingleThreadScheduledExecutor(new BulkThreadFactory("metadefender-bulk-deadline-"));
+    }
+
+    /**
+     * @param policy polling policy of the scans, default is AdaptivePollingPolicy
+     */
+    public void setPollingPolicy(PollingPolicy policy) {
+        if (policy == null) {
+            throw new IllegalArgumentException("policy cannot be null");
+        }
+        this.pollingPolicy = policy;
+    }
+
+    /**
+     * @param millis time a file may take from the start of its upload to its result, default is 5 minutes.
+     *               A file over it is reported to the listener with a TimeoutException and frees its slot.
+     */
+    public void setScanTimeout(long millis) {
+        if (millis <= 0) {
+            throw new IllegalArgumentException("scan timeout must be positive");
+        }
+        this.scanTimeout = millis;
+    }
+
+    /**
+     * Scan the regular files of a directory tree. The tree is walked lazily, an entry which cannot be read is
+     * reported to the listener and the walk goes on.
+     *
+     * @param directory root directory
+     * @param glob glob pattern matched against the path relative to the directory, like "**.jar". NULL matches every file.
+     * @param listener receives the per-file results
+     * @return summary of the bulk scan
+     * @throws IOException if the directory cannot be walked
+     * @throws InterruptedException if interrupted while waiting for a free slot or for the last results
+     * @throws TimeoutException if no slot was freed in time, the listener blocks
+     */
+    public Summary scanDirectory(final Path directory, String glob, BulkScanListener listener)
+            throws IOException, InterruptedException, TimeoutException {
+        if (!Files.exists(directory)) {
+            throw new NoSuchFileException(directory.toString());
+        }
+        if (!Files.isDirectory(directory)) {
+            throw new NotDirectoryException(directory.toString());
+        }
+        final PathMatcher matcher = glob == null ? null : FileSystems.getDefault().getPathMatcher("glob:" + glob);
+
+        final Batch batch = new Batch(listener);
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (!Files.isRegularFile(file) || (matcher != null && !matcher.matches(directory.relativize(file)))) {
+                    return FileVisitResult.CONTINUE;
+                }
+                return batch.submit(file) ? FileVisitResult.CONTINUE : FileVisitResult.TERMINATE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                batch.fail(file, e);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) {
+                if (e != null) {
+                    // the listing broke off, the entries read before were visited
+                    batch.fail(dir, e);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return batch.await();
+    }
+
+    /**
+     * Scan a stream of files. The stream is consumed lazily, as slots become free.
+     * This method returns once every file of the stream has a result or timed out. An UncheckedIOException of the
+     * stream, like Files.walk throws for an unreadable directory, is reported to the listener and the stream is
+     * consumed further.
+     *
+     * @param paths files to scan
+     * @param listener receives the per-file results
+     * @return summary of the bulk scan
+     * @throws InterruptedException if interrupted while waiting for a free slot or for the last results
+     * @throws TimeoutException if no slot was freed in time, the listener blocks
+     */
+    public Summary scan(Stream<Path> paths, BulkScanListener listener) throws InterruptedException, TimeoutException {
+        Batch batch = new Batch(listener);
+
+        Iterator<Path> iterator = paths.iterator();
+        while (true) {
+            Path path;
+            try {
+                if (!iterator.hasNext()) {
+                    break;
+                }
+                path = iterator.next();
+            } catch (UncheckedIOException e) {
+                batch.fail(getFailedPath(e.getCause()), e.getCause());
+                continue;
+            }
+            if (!batch.submit(path)) {
+                break;
+            }
+        }
+        return batch.await();
+    }
+
+    /**
+     * Stop the upload threads, scans already uploaded keep being polled by the client.
+     */
+    @Override
+    public void close() {
+        uploadExecutor.shutdownNow();
+        deadlines.shutdownNow();
+    }
+
+
+    private void scanOne(Path path, final CompletableFuture<FileScanResult> result) {
+        if (result.isDone()) {
+            // timed out while waiting for an upload thread
+            return;
+        }
+
+        final CompletableFuture<FileScanResult> future;
+        try {
+            String fileName = path.getFileName().toString();
+            future = client.scanFileAsync(path, new FileScanOptions().setFileName(fileName),
+                    pollingPolicy.newSchedule(fileName, Files.size(path)));
+        } catch (Exception e) {
+            result.completeExceptionally(e);
+            return;
+        }
+
+        future.whenComplete(new BiConsumer<FileScanResult, Throwable>() {
+            @Override
+            public void accept(FileScanResult fileScanResult, Throwable throwable) {
+                if (throwable == null) {
+                    result.complete(fileScanResult);
+                } else {
+                    result.completeExceptionally(throwable);
+                }
+            }
+        });
+        result.whenComplete(new BiConsumer<FileScanResult, Throwable>() {
+            @Override
+            public void accept(FileScanResult fileScanResult, Throwable throwable) {
+                // stops polling of a timed out scan
+                future.cancel(true);
+            }
+        });
+    }
+
+    private static Path getFailedPath(IOException e) {
+        if (e instanceof FileSystemException && ((FileSystemException) e).getFile() != null) {
+            return Paths.get(((FileSystemException) e).getFile());
+        }
+        return null;
+    }
+
+
+    /**
+     * Slots and counters of one scan or scanDirectory call. submit and await are called by the calling thread only.
+     */
+    private final class Batch {
+
+        private final Semaphore slots = new Semaphore(maxInFlight);
+        private final Summary summary = new Summary();
+        private final BulkScanListener listener;
+        private final long slotWait = scanTimeout + SLOT_WAIT_MARGIN;
+
+        private InterruptedException interrupted;
+        private TimeoutException timedOut;
+
+        Batch(BulkScanListener listener) {
+            this.listener = listener;
+        }
+
+        /**
+         * @return false if no more files should be submitted
+         */
+        boolean submit(final Path path) {
+            try {
+                if (!slots.tryAcquire(slotWait, TimeUnit.MILLISECONDS)) {
+                    timedOut = new TimeoutException("No scan slot was freed within " + slotWait + " ms");
+                    return false;
+                }
+            } catch (InterruptedException e) {
+                interrupted = e;
+                return false;
+            }
+            summary.submitted.incrementAndGet();
+
+            final CompletableFuture<FileScanResult> result = new CompletableFuture<FileScanResult>();
+            result.whenComplete(new BiConsumer<FileScanResult, Throwable>() {
+                @Override
+                public void accept(FileScanResult fileScanResult, Throwable throwable) {
+                    finish(path, fileScanResult, throwable);
+                }
+            });
+            try {
+                final ScheduledFuture<?> deadline = deadlines.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        result.completeExceptionally(new TimeoutException("No scan result for " + path + " within " + scanTimeout + " ms"));
+                    }
+                }, scanTimeout, TimeUnit.MILLISECONDS);
+                result.whenComplete(new BiConsumer<FileScanResult, Throwable>() {
+                    @Override
+                    public void accept(FileScanResult fileScanResult, Throwable throwable) {
+                        deadline.cancel(false);
+                    }
+                });
+
+                uploadExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        scanOne(path, result);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // the scanner is closed
+                result.completeExceptionally(e);
+                return false;
+            }
+            return true;
+        }
+
+        void fail(Path path, Throwable error) {
+            summary.failed.incrementAndGet();
+            listener.onError(path, error);
+        }
+
+        Summary await() throws InterruptedException, TimeoutException {
+            if (interrupted != null) {
+                throw interrupted;
+            }
+            if (timedOut != null) {
+                throw timedOut;
+            }
+            // wait for the files still in flight
+            if (!slots.tryAcquire(maxInFlight, slotWait, TimeUnit.MILLISECONDS)) {
+                throw new TimeoutException("Bulk scan results did not arrive within " + slotWait + " ms");
+            }
+            slots.release(maxInFlight);
+            return summary;
+        }
+
+        private void finish(Path path, FileScanResult result, Throwable error) {
+            try {
+                if (error == null) {
+                    summary.completed.incrementAndGet();
+                    listener.onResult(path, result);
+                } else {
+                    summary.failed.incrementAndGet();
+                    listener.onError(path, error);
+                }
+            } finally {
+                slots.release();
+            }
+        }
+    }
+
+    /**
+     * Counters of a bulk scan.
+     */
+    public static class Summary {
+        private final AtomicInteger submitted = new AtomicInteger(0);
+        private final AtomicInteger completed = new AtomicInteger(0);
+        private final AtomicInteger failed = new AtomicInteger(0);
+
+        public int getSubmitted() {
+            return submitted.get();
+        }
+
+        public int getCompleted() {
+            return completed.get();
+        }
+
+        /**
+         * @return failed and timed out scans, plus the entries which could not be read and were never submitted
+         */
+        public int getFailed() {
+            return failed.get();
+        }
+
+        @Override
+        public String toString() {
+            return "Summary{submitted=" + submitted + ", completed=" + completed + ", failed=" + failed + '}';
+        }
+    }
+
+    private static class BulkThreadFactory implements ThreadFactory {
+
+        private static final AtomicInteger POOL_NUMBER = new AtomicInteger(1);
+
+        private final String namePrefix;
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        BulkThreadFactory(String name) {
+            this.namePrefix = name + POOL_NUMBER.getAndIncrement() + "-";
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, namePrefix + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
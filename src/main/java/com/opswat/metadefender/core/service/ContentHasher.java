@@ -0,0 +1,76 @@
+package com.opswat.metadefender.core.service;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-256 content hashing, the hash format accepted by the /hash/{hash} api point.
+ */
+public class ContentHasher {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private ContentHasher() {
+    }
+
+    /**
+     * @param file path of the file to hash
+     * @return lower case hex SHA-256 of the file content
+     * @throws IOException if the file cannot be read
+     */
+    public static String sha256(String file) throws IOException {
+        InputStream inputStream = new FileInputStream(file);
+        try {
+            return sha256(inputStream);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Reads the stream to its end, but does not close it.
+     *
+     * @param inputStream content to hash
+     * @return lower case hex SHA-256 of the content
+     * @throws IOException if the stream cannot be read
+     */
+    public static String sha256(InputStream inputStream) throws IOException {
+        MessageDigest digest = newSha256();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+            digest.update(buffer, 0, read);
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * @return new SHA-256 digest
+     */
+    public static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param bytes digest
+     * @return lower case hex representation
+     */
+    public static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+}
@@ -3,19 +3,203 @@ package com.opswat.metadefender.core.service;
 import com.opswat.metadefender.core.client.MetadefenderCoreClient;
 import com.opswat.metadefender.core.client.exceptions.MetadefenderClientException;
 import com.opswat.metadefender.core.client.responses.*;
+import com.opswat.metadefender.core.client.AdaptivePollingPolicy;
+import com.opswat.metadefender.core.client.ClientMetrics;
 import com.opswat.metadefender.core.client.FileScanOptions;
+import com.opswat.metadefender.core.client.MetadataCache;
+import com.opswat.metadefender.core.client.MetricsListener;
+import com.opswat.metadefender.core.client.PollingPolicy;
+import com.opswat.metadefender.core.client.ScanQueue;
+import com.opswat.metadefender.core.client.ScanThreads;
 
-//import java.io.File;
-import java.io.FileInputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.InputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.zip.ZipException;
 
 public class MetaDefenderClientService {
+
+    private static final MetadefenderClientPool CLIENT_POOL = new MetadefenderClientPool();
+
+    private static final int SCAN_TIMEOUT = 5000;
+    // extra wait of a call coalesced with another one after that call's deadline
+    private static final int IN_FLIGHT_GRACE = 1000;
+
+    private static final int SCAN_QUEUE_CAPACITY = 1000;
+    private static final int SCAN_QUEUE_UPLOADS = 16;
+    // blocked virtual threads are cheap, the server is the limit then
+    private static final int VIRTUAL_SCAN_QUEUE_UPLOADS = 256;
+
+    private static final ConcurrentMap<String, ScanQueue> SCAN_QUEUES = new ConcurrentHashMap<String, ScanQueue>();
+
+    private static volatile PollingPolicy pollingPolicy = new AdaptivePollingPolicy();
+
+    private static volatile boolean hashLookupEnabled = false;
+
+    private static volatile boolean virtualThreadsEnabled = false;
+
+    private static volatile boolean archiveExpansionEnabled = false;
+
+    private static volatile boolean requestCoalescingEnabled = true;
+
+    // scans in progress by api url and content hash, concurrent scans of the same content wait for these
+    private static final ConcurrentMap<String, InFlightScan> IN_FLIGHT_SCANS = new ConcurrentHashMap<String, InFlightScan>();
+
+    private static volatile VerdictCache verdictCache = new VerdictCache();
+
+    // server metadata per pooled client, refreshed in the background every minute
+    private static final ConcurrentMap<MetadefenderCoreClient, MetadataCache> METADATA_CACHES = new ConcurrentHashMap<MetadefenderCoreClient, MetadataCache>();
+
+    /**
+     * @return the client pool shared by all service calls
+     */
+    public static MetadefenderClientPool getClientPool() {
+        return CLIENT_POOL;
+    }
+
+    /**
+     * Release the pooled clients, pending scans are cancelled. Later calls create new clients.
+     */
+    public static void shutdown() {
+        for (ScanQueue scanQueue : SCAN_QUEUES.values()) {
+            scanQueue.close();
+        }
+        SCAN_QUEUES.clear();
+        for (MetadataCache metadataCache : METADATA_CACHES.values()) {
+            metadataCache.close();
+        }
+        METADATA_CACHES.clear();
+        CLIENT_POOL.close();
+    }
+
+    /**
+     * Replace the scan queue used for uploads to a server.
+     * By default every server gets a queue of 1000 scans served by 16 upload threads; a full queue blocks the
+     * caller for up to the scan timeout, then the scan is rejected.
+     *
+     * @param apiUrl
+     * @param scanQueue scan queue bound to a client of apiUrl. Once that client is closed, a default queue replaces it.
+     */
+    public static void setScanQueue(String apiUrl, ScanQueue scanQueue) {
+        ScanQueue previous = SCAN_QUEUES.put(apiUrl, scanQueue);
+        if (previous != null && previous != scanQueue) {
+            previous.close();
+        }
+    }
+
+    /**
+     * Replace the polling policy of isFileAllowed and scanFile. Default is AdaptivePollingPolicy.
+     *
+     * @param policy polling policy
+     */
+    public static void setPollingPolicy(PollingPolicy policy) {
+        if (policy == null) {
+            throw new IllegalArgumentException("policy cannot be null");
+        }
+        pollingPolicy = policy;
+    }
+
+    /**
+     * @return verdict cache in front of isFileAllowed, NULL if caching is disabled
+     */
+    public static VerdictCache getVerdictCache() {
+        return verdictCache;
+    }
+
+    /**
+     * Replace the verdict cache in front of isFileAllowed.
+     * Only allowed and blocked verdicts are cached. They are invalidated when any engine of their server reports a
+     * newer def_time, engine versions are refreshed once a minute. While the engine versions of a server cannot be
+     * read, its files are scanned without the cache.
+     *
+     * @param cache verdict cache, NULL disables caching
+     */
+    public static void setVerdictCache(VerdictCache cache) {
+        verdictCache = cache;
+    }
+
+    /**
+     * Hash-first mode: the SHA-256 of the file is looked up on the server (/hash/{sha256}) before uploading,
+     * only files the server does not know yet are uploaded. Disabled by default.
+     * Earlier scans done with older definitions than the server has now are not reused.
+     * Note: a hash lookup returns the latest scan of the same content, that scan may have used another scan rule.
+     *
+     * @param enabled true to look up the file hash before uploading
+     */
+    public static void setHashLookupEnabled(boolean enabled) {
+        hashLookupEnabled = enabled;
+    }
+
+    /**
+     * Virtual thread mode: uploads of the scan queues and of scanDirectory run on virtual threads, the scan queues
+     * then upload up to 256 files per server at once instead of 16. Polls are already multiplexed by the client's
+     * ScanResultPoller. Needs a Java 21+ runtime, older runtimes keep using platform threads. Disabled by default.
+     * Applies to scan queues created afterwards, call it before the first scan or after shutdown.
+     *
+     * @param enabled true to run uploads on virtual threads
+     */
+    public static void setVirtualThreadsEnabled(boolean enabled) {
+        virtualThreadsEnabled = enabled;
+    }
+
+    /**
+     * Archive expansion: zip, jar, war and ear files checked by isFileAllowed and checkFile are scanned entry by
+     * entry, see ArchiveScanner. Entries the server already scanned with the current definitions are not uploaded,
+     * the others go through the scan queue of the server. The archive is denied if any entry is blocked. An archive which cannot be expanded, like an encrypted or empty one, is uploaded whole.
+     * Disabled by default.
+     * Note: checks the server applies to archives themselves, like archive bomb detection, are skipped then.
+     *
+     * @param enabled true to scan archives entry by entry
+     */
+    public static void setArchiveExpansionEnabled(boolean enabled) {
+        archiveExpansionEnabled = enabled;
+    }
+
     /**
+     * Request coalescing: while a file is being scanned, other calls for the same content on the same server wait
+     * for that scan instead of uploading the content again, so a burst of identical files costs one scan.
+     * Files are told apart by their SHA-256: isFileAllowed, checkFile, scanFile and scanFileVerdict hash every file
+     * they upload while coalescing is enabled, which reads the file once more before the upload. A call waits for
+     * the shared scan until the deadline of the call doing it, and scans the file itself if that deadline has passed.
+     * Enabled by default.
+     *
+     * @param enabled true to share one scan between concurrent calls for the same content
+     */
+    public static void setRequestCoalescingEnabled(boolean enabled) {
+        requestCoalescingEnabled = enabled;
+    }
+
+    /**
+     * Export the measurements of every pooled client: request latency per api point, uploads, polls per scan and
+     * verdict / hash lookup cache hits and scans shared by request coalescing ("in-flight").
+     *
+     * @param listener metrics listener, NULL for none
+     */
+    public static void setMetricsListener(MetricsListener listener) {
+        CLIENT_POOL.setMetricsListener(listener);
+    }
+
+    /**
+     * @param apiUrl
+     * @return measurements of the pooled client of apiUrl
+     */
+    public static ClientMetrics getClientMetrics(String apiUrl) {
+        return CLIENT_POOL.getClient(apiUrl).getMetrics();
+    }
+
+    /**
+     * Thin wrapper around checkFile, kept for existing callers.
      *
      * @param apiUrl
      * @param file
@@ -24,46 +208,17 @@ public class MetaDefenderClientService {
      */
     public static boolean isFileAllowed(String apiUrl, String file) throws MetadefenderClientException {
         boolean allowed = false;
-        MetadefenderCoreClient metadefenderCoreClient = new MetadefenderCoreClient(apiUrl);
-
         try {
-            InputStream inputStream = new FileInputStream(file);
-            FileScanResult result = metadefenderCoreClient.scanFileSync(inputStream, new FileScanOptions().setFileName(getFileNameFromPath(file)), 200, 5000);
-            if ("Allowed".equalsIgnoreCase(result.process_info.result)) {
+            ScanOutcome outcome = check(apiUrl, file);
+            if (outcome.isAllowed()) {
                 return true;
-            } else {
-                StringBuilder sb = new StringBuilder();
-                sb.append("\nFile (" + file + ") scan finished with result: " + result.process_info.result);
-                //sb.append("\n\t data_id='" + result.data_id);
-                ScanResults res = result.scan_results;
-                sb.append("\n\tScanResults{" +
-                        "data_id='" + res.data_id + '\'' +
-                        ", progress_percentage=" + res.progress_percentage +
-                        ", scan_all_result_a='" + res.scan_all_result_a + '\'' +
-                        ", scan_all_result_i=" + res.scan_all_result_i +
-                        ", scan_details=" + res.scan_details +
-                        ", start_time=" + res.start_time +
-                        ", total_avs=" + res.total_avs +
-                        ", total_time=" + res.total_time +
-                        '}');
-                Map<String, EngineScanDetail> map = res.scan_details;
-                sb.append("\n\tEngineScanDetail:");
-                for (Map.Entry<String, EngineScanDetail> entry : map.entrySet()) {
-                    EngineScanDetail esd = entry.getValue();
-                    sb.append("\n\t - Item: " + entry.getKey());
-                    sb.append("\n\t - EngineScanDetail{" +
-                            "def_time=" + esd.def_time +
-                            ", location='" + esd.location + '\'' +
-                            ", scan_result_i=" + esd.scan_result_i +
-                            ", scan_time=" + esd.scan_time +
-                            ", threat_found='" + esd.threat_found + '\'' +
-                            '}');
-                }
-                throw new MetadefenderClientException(sb.toString());
-            }//
+            }
+            throw new MetadefenderClientException(outcome.getReport());
 
         } catch (FileNotFoundException e) {
-            System.out.println("File not found: " + file + " Exception: " + e.getMessage());
+            // a missing file is not allowed
+        } catch (IOException e) {
+            throw new MetadefenderClientException("IOException: " + e.getMessage());
         } catch (InterruptedException e) {
             throw new MetadefenderClientException("InterruptedException: " + e.getMessage());
         } catch (ExecutionException e) {
@@ -74,6 +229,31 @@ public class MetaDefenderClientService {
         return allowed;
     }
 
+    /**
+     * Same check as isFileAllowed, but a blocked file is returned as a DENY outcome instead of being thrown.
+     * Nothing is formatted unless ScanOutcome.getReport is called.
+     *
+     * @param apiUrl
+     * @param file
+     * @return ALLOW, DENY or ERROR outcome of the scan
+     * @throws MetadefenderClientException on I/O errors, timeouts and HTTP errors
+     */
+    public static ScanOutcome checkFile(String apiUrl, String file) throws MetadefenderClientException {
+        try {
+            return check(apiUrl, file);
+        } catch (FileNotFoundException e) {
+            throw new MetadefenderClientException("File not found: " + file + " Exception: " + e.getMessage());
+        } catch (IOException e) {
+            throw new MetadefenderClientException("IOException: " + e.getMessage());
+        } catch (InterruptedException e) {
+            throw new MetadefenderClientException("InterruptedException: " + e.getMessage());
+        } catch (ExecutionException e) {
+            throw new MetadefenderClientException("ExecutionException: " + e.getMessage());
+        } catch (TimeoutException e) {
+            throw new MetadefenderClientException("TimeoutException: " + e.getMessage());
+        }
+    }
+
     /**
      *
      * @param apiUrl
@@ -82,43 +262,33 @@ public class MetaDefenderClientService {
      * @throws MetadefenderClientException
      */
     public static String scanFile(String apiUrl, String file) throws MetadefenderClientException {
-        MetadefenderCoreClient metadefenderCoreClient = new MetadefenderCoreClient(apiUrl);
-        StringBuilder sb = new StringBuilder();
-        try {
-            InputStream inputStream = new FileInputStream(file);
-            FileScanResult result = metadefenderCoreClient.scanFileSync(inputStream, new FileScanOptions().setFileName(getFileNameFromPath(file)), 200, 5000);
-            sb.append("\nFile (" + file + ") scan finished with result: " + result.process_info.result);
-            //sb.append("\n\t data_id='" + result.data_id);
-            ScanResults res = result.scan_results;
-            sb.append("\n\tScanResults{" +
-                    "data_id='" + res.data_id + '\'' +
-                    ", progress_percentage=" + res.progress_percentage +
-                    ", scan_all_result_a='" + res.scan_all_result_a + '\'' +
-                    ", scan_all_result_i=" + res.scan_all_result_i +
-                    ", scan_details=" + res.scan_details +
-                    ", start_time=" + res.start_time +
-                    ", total_avs=" + res.total_avs +
-                    ", total_time=" + res.total_time +
-                    '}');
-            Map<String, EngineScanDetail> map = res.scan_details;
-            sb.append("\n\tEngineScanDetail:");
-            for (Map.Entry<String, EngineScanDetail> entry : map.entrySet()) {
-                EngineScanDetail esd = entry.getValue();
-                sb.append("\n\t - Item: " + entry.getKey());
-                sb.append("\t EngineScanDetail{" +
-                        "def_time=" + esd.def_time +
-                        ", location='" + esd.location + '\'' +
-                        ", scan_result_i=" + esd.scan_result_i +
-                        ", scan_time=" + esd.scan_time +
-                        ", threat_found='" + esd.threat_found + '\'' +
-                        '}');
-            }
-            if (!"Allowed".equalsIgnoreCase(result.process_info.result)) {
-                throw new MetadefenderClientException(sb.toString());
-            }
+        ScanVerdict verdict = scanFileVerdict(apiUrl, file);
+        if (!verdict.isAllowed()) {
+            throw new MetadefenderClientException(verdict.toText());
+        }
+        return verdict.toText();
+    }
 
+    /**
+     * Structured variant of scanFile, a blocked file is not an error here.
+     * Reports are rendered only when asked for, see ScanVerdict.toText and ScanVerdict.toJson.
+     *
+     * @param apiUrl
+     * @param file
+     * @return verdict of the finished scan
+     * @throws MetadefenderClientException if the file cannot be read or the scan failed
+     */
+    public static ScanVerdict scanFileVerdict(String apiUrl, String file) throws MetadefenderClientException {
+        MetadefenderCoreClient metadefenderCoreClient = CLIENT_POOL.getClient(apiUrl);
+        try {
+            String hash = hashLookupEnabled ? ContentHasher.sha256(file) : null;
+            FileScanResult known = hash != null
+                    ? findKnownScanResult(metadefenderCoreClient, file, hash, getLatestDefinitionTime(metadefenderCoreClient)) : null;
+            return ScanVerdict.of(file, known != null ? known : coalescedScanFileResult(metadefenderCoreClient, file, hash));
         } catch (FileNotFoundException e) {
             throw new MetadefenderClientException("File not found: " + file + " Exception: " + e.getMessage());
+        } catch (IOException e) {
+            throw new MetadefenderClientException("IOException: " + e.getMessage());
         } catch (InterruptedException e) {
             throw new MetadefenderClientException("InterruptedException: " + e.getMessage());
         } catch (ExecutionException e) {
@@ -126,11 +296,43 @@ public class MetaDefenderClientService {
         } catch (TimeoutException e) {
             throw new MetadefenderClientException("TimeoutException: " + e.getMessage());
         }
-        return sb.toString();
     }
 
 
     /**
+     * Scan every matching file of a directory tree with at most maxInFlight files uploaded or pending at once.
+     * Per-file results are passed to the listener as soon as they arrive. Unreadable entries and files without
+     * a result after BulkScanner.DEFAULT_SCAN_TIMEOUT are reported to the listener as errors.
+     *
+     * @param apiUrl
+     * @param directory root directory
+     * @param glob glob pattern matched against the path relative to the directory, NULL matches every file
+     * @param maxInFlight maximum number of concurrent scans
+     * @param listener receives the per-file results
+     * @return summary of the bulk scan
+     * @throws MetadefenderClientException if the directory cannot be walked, the scan is interrupted or the listener blocks
+     */
+    public static BulkScanner.Summary scanDirectory(String apiUrl, String directory, String glob, int maxInFlight, BulkScanListener listener) throws MetadefenderClientException {
+        BulkScanner bulkScanner = virtualThreadsEnabled
+                ? new BulkScanner(CLIENT_POOL.getClient(apiUrl), maxInFlight, ScanThreads.virtualThreadFactory("metadefender-bulk-"))
+                : new BulkScanner(CLIENT_POOL.getClient(apiUrl), maxInFlight);
+        bulkScanner.setPollingPolicy(pollingPolicy);
+        try {
+            return bulkScanner.scanDirectory(Paths.get(directory), glob, listener);
+        } catch (IOException e) {
+            throw new MetadefenderClientException("IOException: " + e.getMessage());
+        } catch (InterruptedException e) {
+            throw new MetadefenderClientException("InterruptedException: " + e.getMessage());
+        } catch (TimeoutException e) {
+            throw new MetadefenderClientException("TimeoutException: " + e.getMessage());
+        } finally {
+            bulkScanner.close();
+        }
+    }
+
+    /**
+     * Version, license, engines and scan rules are served from the metadata cache of the server,
+     * they are at most about a minute old. Values the cache has not loaded yet are requested directly.
      *
      * @param apiUrl
      * @param apiUser
@@ -140,15 +342,23 @@ public class MetaDefenderClientService {
         StringBuilder sb = new StringBuilder();
         MetadefenderCoreClient metadefenderCoreClient;
         try {
-            metadefenderCoreClient = new MetadefenderCoreClient(apiUrl, apiUser, apiUserPass);
+            // pooled: logs in once, later calls reuse the session
+            metadefenderCoreClient = CLIENT_POOL.getClient(apiUrl, apiUser, apiUserPass);
             sb.append("Metadefender client created. Session id is: " + metadefenderCoreClient.getSessionId());
+            MetadataCache metadataCache = getMetadataCache(metadefenderCoreClient);
 
-            ApiVersion apiVersion = metadefenderCoreClient.getVersion();
+            ApiVersion apiVersion = metadataCache.getVersion();
+            if (apiVersion == null) {
+                apiVersion = metadefenderCoreClient.getVersion();
+            }
             sb.append("\nApiVersion: {");
             sb.append("Version: " + apiVersion.version);
             sb.append(", product_id: " + apiVersion.product_id + "}");
 
-            License license = metadefenderCoreClient.getCurrentLicenseInformation();
+            License license = metadataCache.getCurrentLicenseInformation();
+            if (license == null) {
+                license = metadefenderCoreClient.getCurrentLicenseInformation();
+            }
             sb.append("\nLicense: {");
             sb.append("Licensed to: " + license.licensed_to);
             sb.append(", expiration: " + license.expiration);
@@ -157,7 +367,10 @@ public class MetaDefenderClientService {
             sb.append(", licensed_engines: " + license.licensed_engines);
             sb.append(", online_activated: " + license.online_activated+"}");
 
-            List<EngineVersion> result = metadefenderCoreClient.getEngineVersions();
+            List<EngineVersion> result = metadataCache.getEngineVersions();
+            if (result == null) {
+                result = metadefenderCoreClient.getEngineVersions();
+            }
             sb.append("\nEngine/database Version: {");
             for(EngineVersion ev: result) {
                 sb.append("eng_id: " + ev.eng_id);
@@ -171,20 +384,260 @@ public class MetaDefenderClientService {
                 sb.append(", download_time: " + ev.download_time);
             }
 
-            List<ScanRule> scanRules = metadefenderCoreClient.getAvailableScanRules();
+            List<ScanRule> scanRules = metadataCache.getAvailableScanRules();
+            if (scanRules == null) {
+                scanRules = metadefenderCoreClient.getAvailableScanRules();
+            }
             sb.append("\nAvailable scan rules: {" + scanRules.size());
             for (ScanRule rule : scanRules) {
                 sb.append("scan rule name: " + rule.name + ", ");
             }
             sb.append("} ");
-            metadefenderCoreClient.logout();
-            sb.append("\n***Client successfully logged out.");
 		} catch (MetadefenderClientException e) {
             sb.append("Error during show api info: " + e.getDetailedMessage());
         }
         return sb.toString();
     }
 
+    /**
+     * @return number of metadata caches, one per open pooled client that needed one
+     */
+    static int getMetadataCacheCount() {
+        return METADATA_CACHES.size();
+    }
+
+    /**
+     * @return true once the latest definition time of the server is known, see MetadataCache.awaitLoaded
+     */
+    static boolean awaitMetadata(String apiUrl, long timeout) throws MetadefenderClientException, InterruptedException {
+        return getMetadataCache(CLIENT_POOL.getClient(apiUrl)).awaitLoaded(timeout);
+    }
+
+    private static MetadataCache getMetadataCache(MetadefenderCoreClient metadefenderCoreClient) {
+        MetadataCache metadataCache = METADATA_CACHES.get(metadefenderCoreClient);
+        if (metadataCache == null) {
+            // a new client may replace a closed one, release the caches of closed clients and their refreshers
+            for (Map.Entry<MetadefenderCoreClient, MetadataCache> entry : METADATA_CACHES.entrySet()) {
+                if (entry.getKey().isClosed() && METADATA_CACHES.remove(entry.getKey(), entry.getValue())) {
+                    entry.getValue().close();
+                }
+            }
+
+            MetadataCache created = new MetadataCache(metadefenderCoreClient);
+            metadataCache = METADATA_CACHES.putIfAbsent(metadefenderCoreClient, created);
+            if (metadataCache == null) {
+                metadataCache = created;
+            } else {
+                created.close();
+            }
+        }
+        return metadataCache;
+    }
+
+    private static ScanOutcome check(String apiUrl, String file)
+            throws MetadefenderClientException, IOException, InterruptedException, ExecutionException, TimeoutException {
+        MetadefenderCoreClient metadefenderCoreClient = CLIENT_POOL.getClient(apiUrl);
+        VerdictCache cache = verdictCache;
+
+        String hash = null;
+        boolean archive = archiveExpansionEnabled && ArchiveScanner.isArchive(file);
+        // definitions the scan below is done with at least, read before it starts. -1 if unknown
+        long definitionTime = cache != null || archive || hashLookupEnabled ? getLatestDefinitionTime(metadefenderCoreClient) : -1;
+        if (definitionTime < 0) {
+            // definitions unknown: the file is scanned without the cache rather than failing the call
+            cache = null;
+        }
+        if (cache != null) {
+            cache.updateDefinitionTime(apiUrl, definitionTime);
+            hash = ContentHasher.sha256(file);
+            VerdictCache.Entry cached = cache.get(hash, apiUrl);
+            metadefenderCoreClient.getMetrics().cacheLookup("verdict", cached != null);
+            if (cached != null) {
+                return ScanOutcome.cached(file, cached);
+            }
+        }
+
+        if (archive) {
+            ArchiveVerdict archiveVerdict = scanArchive(metadefenderCoreClient, file, definitionTime);
+            if (archiveVerdict != null) {
+                if (cache != null && archiveVerdict.getStatus() != ScanOutcome.Status.ERROR) {
+                    cache.put(hash, apiUrl, archiveVerdict.isAllowed(), archiveVerdict.getResult(), null, definitionTime);
+                }
+                return ScanOutcome.of(archiveVerdict);
+            }
+        }
+
+        if (hashLookupEnabled) {
+            if (hash == null) {
+                hash = ContentHasher.sha256(file);
+            }
+            FileScanResult known = findKnownScanResult(metadefenderCoreClient, file, hash, definitionTime);
+            if (known != null) {
+                ScanVerdict verdict = ScanVerdict.of(file, known);
+                if (cache != null) {
+                    // scanned earlier, possibly with older definitions than the ones just read
+                    cacheVerdict(cache, hash, apiUrl, verdict, verdict.getLatestDefinitionTime());
+                }
+                return ScanOutcome.of(verdict);
+            }
+        }
+
+        ScanVerdict verdict = ScanVerdict.of(file, coalescedScanFileResult(metadefenderCoreClient, file, hash));
+        if (cache != null) {
+            cacheVerdict(cache, hash, apiUrl, verdict, definitionTime);
+        }
+        return ScanOutcome.of(verdict);
+    }
+
+    private static void cacheVerdict(VerdictCache cache, String hash, String apiUrl, ScanVerdict verdict, long definitionTime) {
+        // failed or aborted scans are retried on the next call, a verdict of unknown age is not reused
+        if (verdict.getVerdict() != ScanVerdict.Verdict.OTHER && definitionTime >= 0) {
+            cache.put(hash, apiUrl, verdict.isAllowed(), verdict.getResult(), verdict.getDataId(), definitionTime);
+        }
+    }
+
+    /**
+     * @return latest def_time of the server, -1 while /stat/engines was not answered yet
+     */
+    private static long getLatestDefinitionTime(MetadefenderCoreClient metadefenderCoreClient) {
+        try {
+            return getMetadataCache(metadefenderCoreClient).getLatestDefinitionTime();
+        } catch (MetadefenderClientException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @param minDefinitionTime entries scanned earlier with older definitions are uploaded again, -1 reuses any
+     */
+    private static ArchiveVerdict scanArchive(MetadefenderCoreClient metadefenderCoreClient, String file, long minDefinitionTime)
+            throws MetadefenderClientException, IOException, InterruptedException, ExecutionException, TimeoutException {
+        if (!Files.isRegularFile(Paths.get(file))) {
+            throw new FileNotFoundException(file);
+        }
+        try {
+            ArchiveVerdict archiveVerdict = new ArchiveScanner(getScanQueue(metadefenderCoreClient), pollingPolicy, SCAN_TIMEOUT,
+                    minDefinitionTime).scan(file);
+            return archiveVerdict.getEntries().isEmpty() ? null : archiveVerdict;
+        } catch (ZipException e) {
+            // not expandable here, the server gets the archive as it is
+            return null;
+        }
+    }
+
+    /**
+     * @param hash SHA-256 of the file if the caller has it, otherwise the file is hashed here when coalescing is enabled
+     */
+    private static FileScanResult coalescedScanFileResult(MetadefenderCoreClient metadefenderCoreClient, String file, String hash)
+            throws MetadefenderClientException, IOException, InterruptedException, ExecutionException, TimeoutException {
+        if (!requestCoalescingEnabled) {
+            return uploadScanResult(metadefenderCoreClient, file);
+        }
+        if (hash == null) {
+            // reading the file once more is cheaper than a second upload and scan
+            hash = ContentHasher.sha256(file);
+        }
+
+        String key = metadefenderCoreClient.getApiEndPointUrl() + '|' + hash;
+        InFlightScan flight = new InFlightScan(System.currentTimeMillis() + SCAN_TIMEOUT);
+        InFlightScan inFlight = IN_FLIGHT_SCANS.putIfAbsent(key, flight);
+        if (inFlight != null) {
+            long remaining = inFlight.deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                // that call is timing out right now, its outcome would come too late for this one
+                metadefenderCoreClient.getMetrics().cacheLookup("in-flight", false);
+                return uploadScanResult(metadefenderCoreClient, file);
+            }
+            // the same content is uploaded or polled by another call right now, it gives up at its own deadline;
+            // the grace lets its own outcome arrive instead of a TimeoutException racing it
+            metadefenderCoreClient.getMetrics().cacheLookup("in-flight", true);
+            return inFlight.future.get(remaining + IN_FLIGHT_GRACE, TimeUnit.MILLISECONDS);
+        }
+        metadefenderCoreClient.getMetrics().cacheLookup("in-flight", false);
+
+        try {
+            FileScanResult fileScanResult = uploadScanResult(metadefenderCoreClient, file);
+            flight.future.complete(fileScanResult);
+            return fileScanResult;
+        } catch (Throwable t) {
+            flight.future.completeExceptionally(t);
+            throw t;
+        } finally {
+            IN_FLIGHT_SCANS.remove(key, flight);
+        }
+    }
+
+    /**
+     * @param minDefinitionTime earlier scans done with older definitions are not reused. -1 if unknown, then only
+     *                          a running scan is reused
+     * @return result of an earlier or running scan of the same content, NULL if the server does not know it or
+     * scanned it with older definitions
+     */
+    private static FileScanResult findKnownScanResult(MetadefenderCoreClient metadefenderCoreClient, String file, String hash,
+            long minDefinitionTime)
+            throws MetadefenderClientException, IOException, InterruptedException, ExecutionException, TimeoutException {
+        FileScanResult known = metadefenderCoreClient.findScanResultByHash(hash);
+        if (known != null && (minDefinitionTime < 0 ? known.isScanFinished() : !ArchiveScanner.isReusable(known, file, minDefinitionTime))) {
+            // a verdict of outdated definitions or of definitions not known yet, the file is scanned again
+            known = null;
+        }
+        metadefenderCoreClient.getMetrics().cacheLookup("hash", known != null);
+        if (known == null || known.isScanFinished()) {
+            return known;
+        }
+
+        // same content is being scanned right now, wait for that scan instead of uploading again
+        CompletableFuture<FileScanResult> future = metadefenderCoreClient.pollScanResult(known.data_id,
+                pollingPolicy.newSchedule(getFileNameFromPath(file), new File(file).length()));
+        try {
+            return future.get(SCAN_TIMEOUT, TimeUnit.MILLISECONDS);
+        } finally {
+            future.cancel(true);
+        }
+    }
+
+    private static FileScanResult uploadScanResult(MetadefenderCoreClient metadefenderCoreClient, String file)
+            throws MetadefenderClientException, IOException, InterruptedException, ExecutionException, TimeoutException {
+        String fileName = getFileNameFromPath(file);
+        long fileSize = new File(file).length();
+
+        Path path = Paths.get(file);
+        if (!Files.isRegularFile(path)) {
+            throw new FileNotFoundException(file);
+        }
+        return getScanQueue(metadefenderCoreClient).scanFileSync(path, new FileScanOptions().setFileName(fileName),
+                pollingPolicy.newSchedule(fileName, fileSize), ScanQueue.Priority.NORMAL, SCAN_TIMEOUT);
+    }
+
+    private static ScanQueue getScanQueue(MetadefenderCoreClient metadefenderCoreClient) {
+        String apiUrl = metadefenderCoreClient.getApiEndPointUrl();
+        while (true) {
+            ScanQueue scanQueue = SCAN_QUEUES.get(apiUrl);
+            if (scanQueue != null && !scanQueue.getClient().isClosed()) {
+                return scanQueue;
+            }
+
+            // none yet, or bound to a client the pool has replaced since
+            ScanQueue created = virtualThreadsEnabled
+                    ? new ScanQueue(metadefenderCoreClient, SCAN_QUEUE_CAPACITY, VIRTUAL_SCAN_QUEUE_UPLOADS,
+                            ScanQueue.OverflowPolicy.BLOCK, SCAN_TIMEOUT, ScanThreads.virtualThreadFactory("metadefender-queue-"))
+                    : new ScanQueue(metadefenderCoreClient, SCAN_QUEUE_CAPACITY, SCAN_QUEUE_UPLOADS,
+                            ScanQueue.OverflowPolicy.BLOCK, SCAN_TIMEOUT);
+            boolean registered = scanQueue == null
+                    ? SCAN_QUEUES.putIfAbsent(apiUrl, created) == null
+                    : SCAN_QUEUES.replace(apiUrl, scanQueue, created);
+            if (registered) {
+                if (scanQueue != null) {
+                    // its scans would fail with a closed client anyway
+                    scanQueue.close();
+                }
+                return created;
+            }
+            // another thread registered a queue meanwhile, use that one
+            created.close();
+        }
+    }
+
     private static String getFileNameFromPath(String file) {
         String parts[];
         if(file.contains("/")) {
@@ -200,4 +653,18 @@ public class MetaDefenderClientService {
         }
         return file;
     }
+
+
+    /**
+     * Scan shared by concurrent calls for the same content, completed by the call which uploads it.
+     */
+    private static final class InFlightScan {
+        private final CompletableFuture<FileScanResult> future = new CompletableFuture<FileScanResult>();
+        // the uploading call times out then, waiting longer is pointless
+        private final long deadline;
+
+        InFlightScan(long deadline) {
+            this.deadline = deadline;
+        }
+    }
 }
@@ -0,0 +1,218 @@
+package com.opswat.metadefender.core.service;
+
+import com.opswat.metadefender.core.client.HttpConnector;
+import com.opswat.metadefender.core.client.MetadefenderCoreClient;
+import com.opswat.metadefender.core.client.MetricsListener;
+import com.opswat.metadefender.core.client.ResilientHttpConnector;
+import com.opswat.metadefender.core.client.exceptions.MetadefenderClientException;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Thread-safe registry of long-lived MetadefenderCoreClient instances.
+ * Clients are keyed by api end point url and credentials, so every request thread
+ * talking to the same Core end point with the same credentials shares one client.
+ *
+ * Pooled clients are shared: do not call setUserAgent / setHttpConnector / logout on them,
+ * pass per-request settings through FileScanOptions instead.
+ *
+ * New clients send their requests through the pool's HttpConnector, by default one ResilientHttpConnector
+ * shared by all of them, so retries and circuit breakers are per end point and not per client.
+ */
+public class MetadefenderClientPool implements Closeable {
+
+    private final ConcurrentMap<ClientKey, MetadefenderCoreClient> clients = new ConcurrentHashMap<ClientKey, MetadefenderCoreClient>();
+    // guards the creation of the client of a key
+    private final ConcurrentMap<ClientKey, Object> creationLocks = new ConcurrentHashMap<ClientKey, Object>();
+
+    private volatile HttpConnector httpConnector = new ResilientHttpConnector();
+
+    private volatile MetricsListener metricsListener = null;
+
+    /**
+     * @param httpConnector connector of the clients created from now on
+     */
+    public void setHttpConnector(HttpConnector httpConnector) {
+        if (httpConnector == null) {
+            throw new IllegalArgumentException("httpConnector cannot be null");
+        }
+        this.httpConnector = httpConnector;
+    }
+
+    /**
+     * @param listener metrics listener of the pooled clients, current and future ones. NULL for none
+     */
+    public void setMetricsListener(MetricsListener listener) {
+        this.metricsListener = listener;
+        for (MetadefenderCoreClient client : clients.values()) {
+            client.getMetrics().setListener(listener);
+        }
+    }
+
+    /**
+     * @param apiUrl Format: protocol://host:port  Example value: http://localhost:8008
+     * @return shared client without authentication
+     */
+    public MetadefenderCoreClient getClient(final String apiUrl) {
+        return getClient(new ClientKey(apiUrl, null, null, null), new ClientFactory<RuntimeException>() {
+            @Override
+            public MetadefenderCoreClient create() {
+                return configure(new MetadefenderCoreClient(apiUrl));
+            }
+        });
+    }
+
+    /**
+     * @param apiUrl Format: protocol://host:port  Example value: http://localhost:8008
+     * @param apiKey valid api key
+     * @return shared client authenticated with the given api key
+     */
+    public MetadefenderCoreClient getClient(final String apiUrl, final String apiKey) {
+        return getClient(new ClientKey(apiUrl, apiKey, null, null), new ClientFactory<RuntimeException>() {
+            @Override
+            public MetadefenderCoreClient create() {
+                return configure(new MetadefenderCoreClient(apiUrl, apiKey));
+            }
+        });
+    }
+
+    /**
+     * Login happens only when no client is registered yet for the given url and credentials,
+     * concurrent first calls wait for a single login.
+     *
+     * @param apiUrl Format: protocol://host:port  Example value: http://localhost:8008
+     * @param userName username to login with
+     * @param password password to login with
+     * @return shared, logged in client
+     * @throws MetadefenderClientException if the provided user/pass is not valid.
+     */
+    public MetadefenderCoreClient getClient(final String apiUrl, final String userName, final String password) throws MetadefenderClientException {
+        return getClient(new ClientKey(apiUrl, null, userName, password), new ClientFactory<MetadefenderClientException>() {
+            @Override
+            public MetadefenderCoreClient create() throws MetadefenderClientException {
+                // configured first, the login goes through the pool's connector as well
+                MetadefenderCoreClient client = configure(new MetadefenderCoreClient(apiUrl));
+                try {
+                    client.login(userName, password);
+                } catch (MetadefenderClientException e) {
+                    client.close();
+                    throw e;
+                }
+                return client;
+            }
+        });
+    }
+
+    /**
+     * Closes and drops every pooled client, pending scans of these clients are cancelled and login sessions are
+     * ended. The next getClient call creates a new one.
+     */
+    public void clear() {
+        for (Map.Entry<ClientKey, MetadefenderCoreClient> entry : clients.entrySet()) {
+            if (clients.remove(entry.getKey(), entry.getValue())) {
+                release(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Same as clear.
+     */
+    @Override
+    public void close() {
+        clear();
+    }
+
+    /**
+     * @return number of pooled clients
+     */
+    public int size() {
+        return clients.size();
+    }
+
+    private MetadefenderCoreClient configure(MetadefenderCoreClient client) {
+        client.setHttpConnector(httpConnector);
+        client.getMetrics().setListener(metricsListener);
+        return client;
+    }
+
+    private <E extends Exception> MetadefenderCoreClient getClient(ClientKey key, ClientFactory<E> factory) throws E {
+        MetadefenderCoreClient client = getOpenClient(key);
+        if (client != null) {
+            return client;
+        }
+
+        // one client per key: concurrent first calls do not log in several times
+        synchronized (getCreationLock(key)) {
+            client = getOpenClient(key);
+            if (client == null) {
+                client = factory.create();
+                clients.put(key, client);
+            }
+            return client;
+        }
+    }
+
+    private MetadefenderCoreClient getOpenClient(ClientKey key) {
+        MetadefenderCoreClient client = clients.get(key);
+        if (client != null && client.isClosed()) {
+            // closed by its user, replace it
+            if (clients.remove(key, client)) {
+                release(key, client);
+            }
+            return null;
+        }
+        return client;
+    }
+
+    private Object getCreationLock(ClientKey key) {
+        Object lock = creationLocks.get(key);
+        if (lock == null) {
+            Object created = new Object();
+            lock = creationLocks.putIfAbsent(key, created);
+            if (lock == null) {
+                lock = created;
+            }
+        }
+        return lock;
+    }
+
+    private static void release(ClientKey key, MetadefenderCoreClient client) {
+        if (key.parts[2] != null && client.getSessionId() != null) {
+            try {
+                client.logout();
+            } catch (MetadefenderClientException e) {
+                // the session expires on the server anyway
+            }
+        }
+        client.close();
+    }
+
+    private interface ClientFactory<E extends Exception> {
+        MetadefenderCoreClient create() throws E;
+    }
+
+    private static final class ClientKey {
+        private final String[] parts;
+        private final int hash;
+
+        ClientKey(String apiUrl, String apiKey, String userName, String password) {
+            this.parts = new String[]{apiUrl, apiKey, userName, password};
+            this.hash = Arrays.hashCode(parts);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof ClientKey && Arrays.equals(parts, ((ClientKey) o).parts);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
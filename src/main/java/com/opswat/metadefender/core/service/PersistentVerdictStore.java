@@ -0,0 +1,359 @@
+package com.opswat.metadefender.core.service;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * On-disk verdict store surviving restarts, used behind a VerdictCache.
+ *
+ * Verdicts are appended to a log file, every record is framed as [length][payload][crc32]. On open the log is
+ * replayed into an in-memory index; a torn or corrupted record (crash mid-write) ends the replay and the log is
+ * truncated to the last complete record. The number of live verdicts is bounded, the oldest ones are dropped
+ * first. The log is compacted, rewriting only the live verdicts into a new file that atomically replaces the old
+ * one, when it grows past the given size and at least doubled since the last compaction, so live verdicts
+ * outgrowing that size do not trigger a compaction on every write.
+ *
+ * Every write is forced to the disk before it returns, a compaction also syncs the directory of the log so the
+ * replacement survives a power loss.
+ */
+public class PersistentVerdictStore implements Closeable {
+
+    public static final int DEFAULT_MAX_ENTRIES = 100000;
+    public static final long DEFAULT_MAX_FILE_SIZE = 64L * 1024 * 1024;
+
+    private static final int MAX_RECORD_SIZE = 64 * 1024;
+
+    private final Path file;
+    private final int maxEntries;
+    private final long maxFileSize;
+
+    // insertion ordered, guarded by this
+    private final LinkedHashMap<String, VerdictCache.Entry> index;
+
+    private FileChannel channel;
+    private long fileSize;
+    // log size right after the last compaction or replay
+    private long compactedSize;
+
+
+    /**
+     * @param file log file, created if it does not exist
+     * @throws IOException if the log cannot be read or created
+     */
+    public PersistentVerdictStore(Path file) throws IOException {
+        this(file, DEFAULT_MAX_ENTRIES, DEFAULT_MAX_FILE_SIZE);
+    }
+
+    /**
+     * @param file log file, created if it does not exist
+     * @param maxEntries maximum number of live verdicts
+     * @param maxFileSize log size in bytes triggering a compaction
+     * @throws IOException if the log cannot be read or created
+     */
+    public PersistentVerdictStore(Path file, final int maxEntries, long maxFileSize) throws IOException {
+        if (maxEntries <= 0 || maxFileSize <= 0) {
+            throw new IllegalArgumentException("maxEntries and maxFileSize must be positive");
+        }
+        this.file = file;
+        this.maxEntries = maxEntries;
+        this.maxFileSize = maxFileSize;
+        this.index = new LinkedHashMap<String, VerdictCache.Entry>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, VerdictCache.Entry> eldest) {
+                return size() > PersistentVerdictStore.this.maxEntries;
+            }
+        };
+
+        long validLength = replay();
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (channel.size() > validLength) {
+            // drop the record torn by a crash
+            channel.truncate(validLength);
+        }
+        channel.position(validLength);
+        this.fileSize = validLength;
+        this.compactedSize = validLength;
+    }
+
+    /**
+     * @param key cache key
+     * @return stored verdict, NULL if there is none
+     */
+    public synchronized VerdictCache.Entry get(String key) {
+        return index.get(key);
+    }
+
+    /**
+     * Store a verdict, it is written and forced to the log before this method returns.
+     *
+     * @param key cache key
+     * @param entry verdict
+     * @throws IOException if the log cannot be written
+     */
+    public synchronized void put(String key, VerdictCache.Entry entry) throws IOException {
+        checkOpen();
+        // a verdict that did not reach the log is not served either
+        append(encode(key, entry));
+        index.put(key, entry);
+
+        if (fileSize > Math.max(maxFileSize, 2 * compactedSize)) {
+            compact();
+        }
+    }
+
+    /**
+     * Drop the verdicts of a profile scanned with definitions older than the given time, then compact the log.
+     *
+     * @param profile scan profile of the verdicts, "" for the verdicts stored without one
+     * @param definitionTime latest engine definition time of the profile in millis
+     * @throws IOException if the log cannot be rewritten
+     */
+    public synchronized void removeOlderThan(String profile, long definitionTime) throws IOException {
+        checkOpen();
+        boolean removed = false;
+        Iterator<Map.Entry<String, VerdictCache.Entry>> iterator = index.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, VerdictCache.Entry> entry = iterator.next();
+            if (entry.getValue().getDefinitionTime() < definitionTime && profile.equals(VerdictCache.profileOf(entry.getKey()))) {
+                iterator.remove();
+                removed = true;
+            }
+        }
+        if (removed) {
+            compact();
+        }
+    }
+
+    /**
+     * Drop every stored verdict.
+     *
+     * @throws IOException if the log cannot be truncated
+     */
+    public synchronized void clear() throws IOException {
+        checkOpen();
+        index.clear();
+        channel.truncate(0);
+        channel.position(0);
+        channel.force(true);
+        fileSize = 0;
+        compactedSize = 0;
+    }
+
+    /**
+     * Rewrite the log with the live verdicts only.
+     *
+     * @throws IOException if the log cannot be rewritten
+     */
+    public synchronized void compact() throws IOException {
+        checkOpen();
+        Path compacted = file.resolveSibling(file.getFileName() + ".compact");
+
+        long size = 0;
+        FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            for (Map.Entry<String, VerdictCache.Entry> entry : index.entrySet()) {
+                size += writeFully(out, encode(entry.getKey(), entry.getValue()));
+            }
+            out.force(true);
+        } finally {
+            out.close();
+        }
+
+        // the open log cannot be replaced on every platform
+        channel.close();
+        channel = null;
+        boolean moved = false;
+        try {
+            Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            moved = true;
+        } finally {
+            // if the move failed the old log is still in place and complete, keep appending to it
+            if (moved) {
+                fileSize = size;
+                compactedSize = size;
+            }
+            FileChannel reopened = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            reopened.position(fileSize);
+            channel = reopened;
+            if (!moved) {
+                Files.deleteIfExists(compacted);
+            }
+        }
+        syncDirectory();
+    }
+
+    public synchronized int size() {
+        return index.size();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.force(true);
+            channel.close();
+            channel = null;
+        }
+    }
+
+
+    private void checkOpen() throws IOException {
+        if (channel == null) {
+            throw new IOException("Verdict store is closed: " + file);
+        }
+    }
+
+    private void append(byte[] record) throws IOException {
+        try {
+            writeFully(channel, record);
+        } catch (IOException e) {
+            // a partial record would end the replay, the records appended after it would be lost
+            try {
+                channel.truncate(fileSize);
+                channel.position(fileSize);
+            } catch (IOException truncateFailure) {
+                // the replay drops the torn tail
+            }
+            throw e;
+        }
+        fileSize += record.length;
+        channel.force(false);
+    }
+
+    /**
+     * Make the rename of a compaction durable, not supported on every platform.
+     */
+    private void syncDirectory() {
+        Path directory = file.toAbsolutePath().getParent();
+        if (directory == null) {
+            return;
+        }
+        try {
+            FileChannel directoryChannel = FileChannel.open(directory, StandardOpenOption.READ);
+            try {
+                directoryChannel.force(true);
+            } finally {
+                directoryChannel.close();
+            }
+        } catch (IOException e) {
+            // directories cannot be opened on Windows, the rename is durable there once the log is reopened
+        }
+    }
+
+    private static int writeFully(FileChannel target, byte[] record) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        while (buffer.hasRemaining()) {
+            target.write(buffer);
+        }
+        return record.length;
+    }
+
+    /**
+     * @return length of the log up to the last complete record
+     */
+    private long replay() throws IOException {
+        if (!Files.exists(file)) {
+            return 0;
+        }
+
+        long validLength = 0;
+        InputStream inputStream = new BufferedInputStream(Files.newInputStream(file));
+        try {
+            DataInputStream in = new DataInputStream(inputStream);
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length <= 0 || length > MAX_RECORD_SIZE) {
+                    break;
+                }
+
+                byte[] payload = new byte[length];
+                long crc;
+                try {
+                    in.readFully(payload);
+                    crc = in.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (crc != checksum(payload)) {
+                    break;
+                }
+
+                decode(payload);
+                validLength += 4 + length + 8;
+            }
+        } finally {
+            inputStream.close();
+        }
+        return validLength;
+    }
+
+    private void decode(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        String key = in.readUTF();
+        boolean allowed = in.readBoolean();
+        String result = readNullableUTF(in);
+        String dataId = readNullableUTF(in);
+        long definitionTime = in.readLong();
+        long createdAt = in.readLong();
+        index.put(key, new VerdictCache.Entry(allowed, result, dataId, definitionTime, createdAt));
+    }
+
+    private static byte[] encode(String key, VerdictCache.Entry entry) throws IOException {
+        ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream(128);
+        DataOutputStream payload = new DataOutputStream(payloadBytes);
+        payload.writeUTF(key);
+        payload.writeBoolean(entry.isAllowed());
+        writeNullableUTF(payload, entry.getResult());
+        writeNullableUTF(payload, entry.getDataId());
+        payload.writeLong(entry.getDefinitionTime());
+        payload.writeLong(entry.getCreatedAt());
+        payload.flush();
+        byte[] body = payloadBytes.toByteArray();
+
+        ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(body.length + 12);
+        DataOutputStream record = new DataOutputStream(recordBytes);
+        record.writeInt(body.length);
+        record.write(body);
+        record.writeLong(checksum(body));
+        record.flush();
+        return recordBytes.toByteArray();
+    }
+
+    private static long checksum(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        return crc.getValue();
+    }
+
+    private static void writeNullableUTF(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullableUTF(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
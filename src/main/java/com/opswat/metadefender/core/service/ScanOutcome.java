@@ -0,0 +1,123 @@
+package com.opswat.metadefender.core.service;
+
+/**
+ * Result of MetaDefenderClientService.checkFile: whether a file may pass, without throwing for a blocked file.
+ *
+ * The details are attached, the report is only rendered when getReport is called.
+ */
+public final class ScanOutcome {
+
+    public enum Status {
+        /** the server allowed the file */
+        ALLOW,
+        /** the server blocked the file */
+        DENY,
+        /** the scan finished without an allowed or blocked result, like a failed or aborted scan */
+        ERROR
+    }
+
+    private final Status status;
+    private final String file;
+    private final String result;
+    private final String dataId;
+    private final ScanVerdict verdict;
+    private final ArchiveVerdict archiveVerdict;
+
+    private ScanOutcome(Status status, String file, String result, String dataId, ScanVerdict verdict, ArchiveVerdict archiveVerdict) {
+        this.status = status;
+        this.file = file;
+        this.result = result;
+        this.dataId = dataId;
+        this.verdict = verdict;
+        this.archiveVerdict = archiveVerdict;
+    }
+
+    static ScanOutcome of(ScanVerdict verdict) {
+        return new ScanOutcome(toStatus(verdict.getVerdict()), verdict.getFile(), verdict.getResult(), verdict.getDataId(), verdict, null);
+    }
+
+    static ScanOutcome of(ArchiveVerdict archiveVerdict) {
+        return new ScanOutcome(archiveVerdict.getStatus(), archiveVerdict.getFile(), archiveVerdict.getResult(), null, null, archiveVerdict);
+    }
+
+    static ScanOutcome cached(String file, VerdictCache.Entry entry) {
+        Status status = entry.isAllowed() ? Status.ALLOW
+                : "Blocked".equalsIgnoreCase(entry.getResult()) ? Status.DENY : Status.ERROR;
+        return new ScanOutcome(status, file, entry.getResult(), entry.getDataId(), null, null);
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public boolean isAllowed() {
+        return status == Status.ALLOW;
+    }
+
+    public String getFile() {
+        return file;
+    }
+
+    /**
+     * @return process_info.result as reported by the server
+     */
+    public String getResult() {
+        return result;
+    }
+
+    /**
+     * @return data_id of the scan, NULL for an archive scanned entry by entry
+     */
+    public String getDataId() {
+        return dataId;
+    }
+
+    /**
+     * @return the full verdict, NULL if the outcome was answered from the verdict cache or is an archive verdict
+     */
+    public ScanVerdict getVerdict() {
+        return verdict;
+    }
+
+    /**
+     * @return the per-entry verdicts if the file was scanned as an expanded archive, otherwise NULL
+     */
+    public ArchiveVerdict getArchiveVerdict() {
+        return archiveVerdict;
+    }
+
+    public boolean isCached() {
+        return verdict == null && archiveVerdict == null;
+    }
+
+    /**
+     * @return the report isFileAllowed puts into its exception
+     */
+    public String getReport() {
+        if (verdict != null) {
+            return verdict.toText();
+        }
+        if (archiveVerdict != null) {
+            return archiveVerdict.toText();
+        }
+        return "\nFile (" + file + ") scan finished with result: " + result
+                + "\n\t(cached verdict of data_id='" + dataId + "')";
+    }
+
+    @Override
+    public String toString() {
+        return "ScanOutcome{file='" + file + "', status=" + status + ", result=" + result + ", data_id='" + dataId
+                + "', cached=" + isCached() + '}';
+    }
+
+    private static Status toStatus(ScanVerdict.Verdict verdict) {
+        switch (verdict) {
+            case ALLOWED:
+                return Status.ALLOW;
+            case BLOCKED:
+                return Status.DENY;
+            default:
+                return Status.ERROR;
+        }
+    }
+}
@@ -0,0 +1,332 @@
+package com.opswat.metadefender.core.service;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.opswat.metadefender.core.client.responses.EngineScanDetail;
+import com.opswat.metadefender.core.client.responses.FileScanResult;
+import com.opswat.metadefender.core.client.responses.ScanResults;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable outcome of a finished scan.
+ *
+ * Per-engine results are kept in parallel arrays, one slot per engine, instead of one object per engine.
+ * Building a verdict does not format anything: the text report and the JSON rendering are only produced when
+ * asked for, and then kept.
+ */
+public final class ScanVerdict {
+
+    public enum Verdict {
+        ALLOWED,
+        BLOCKED,
+        /** any other process_info.result, like a failed or aborted scan */
+        OTHER
+    }
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private static final String[] NO_STRINGS = new String[0];
+    private static final int[] NO_INTS = new int[0];
+    private static final long[] NO_LONGS = new long[0];
+
+    private final String file;
+    private final String dataId;
+    private final Verdict verdict;
+    private final String result;
+
+    private final int progressPercentage;
+    private final String scanAllResultA;
+    private final int scanAllResultI;
+    private final long startTime;
+    private final int totalAvs;
+    private final int totalTime;
+
+    // one slot per engine, in scan_details order
+    private final String[] engineNames;
+    private final int[] engineResults;
+    private final int[] engineScanTimes;
+    private final long[] engineDefinitionTimes;
+    private final String[] engineLocations;
+    private final String[] engineThreats;
+
+    private final String[] threatNames;
+
+    // rendered on demand
+    private volatile String text;
+    private volatile String json;
+
+
+    private ScanVerdict(String file, FileScanResult fileScanResult) {
+        this.file = file;
+        this.dataId = fileScanResult.data_id;
+        this.result = fileScanResult.process_info == null ? null : fileScanResult.process_info.result;
+        this.verdict = toVerdict(result);
+
+        ScanResults scanResults = fileScanResult.scan_results;
+        this.progressPercentage = scanResults == null ? 0 : scanResults.progress_percentage;
+        this.scanAllResultA = scanResults == null ? null : scanResults.scan_all_result_a;
+        this.scanAllResultI = scanResults == null ? -1 : scanResults.scan_all_result_i;
+        this.startTime = scanResults == null ? -1 : toMillis(scanResults.start_time);
+        this.totalAvs = scanResults == null ? 0 : scanResults.total_avs;
+        this.totalTime = scanResults == null ? 0 : scanResults.total_time;
+
+        Map<String, EngineScanDetail> scanDetails = scanResults == null ? null : scanResults.scan_details;
+        int engines = scanDetails == null ? 0 : scanDetails.size();
+        if (engines == 0) {
+            engineNames = NO_STRINGS;
+            engineResults = NO_INTS;
+            engineScanTimes = NO_INTS;
+            engineDefinitionTimes = NO_LONGS;
+            engineLocations = NO_STRINGS;
+            engineThreats = NO_STRINGS;
+            threatNames = NO_STRINGS;
+            return;
+        }
+
+        engineNames = new String[engines];
+        engineResults = new int[engines];
+        engineScanTimes = new int[engines];
+        engineDefinitionTimes = new long[engines];
+        engineLocations = new String[engines];
+        engineThreats = new String[engines];
+
+        Set<String> threats = null;
+        int i = 0;
+        for (Map.Entry<String, EngineScanDetail> entry : scanDetails.entrySet()) {
+            EngineScanDetail detail = entry.getValue();
+            engineNames[i] = entry.getKey();
+            if (detail != null) {
+                engineResults[i] = detail.scan_result_i;
+                engineScanTimes[i] = detail.scan_time;
+                engineDefinitionTimes[i] = toMillis(detail.def_time);
+                engineLocations[i] = detail.location;
+                engineThreats[i] = detail.threat_found;
+                if (detail.threat_found != null && detail.threat_found.length() > 0) {
+                    if (threats == null) {
+                        threats = new LinkedHashSet<String>();
+                    }
+                    threats.add(detail.threat_found);
+                }
+            } else {
+                engineDefinitionTimes[i] = -1;
+            }
+            i++;
+        }
+        threatNames = threats == null ? NO_STRINGS : threats.toArray(new String[threats.size()]);
+    }
+
+    /**
+     * @param file scanned file, used in the reports
+     * @param fileScanResult finished scan result
+     * @return verdict of the scan
+     */
+    public static ScanVerdict of(String file, FileScanResult fileScanResult) {
+        if (fileScanResult == null) {
+            throw new IllegalArgumentException("fileScanResult cannot be null");
+        }
+        return new ScanVerdict(file, fileScanResult);
+    }
+
+    public Verdict getVerdict() {
+        return verdict;
+    }
+
+    public boolean isAllowed() {
+        return verdict == Verdict.ALLOWED;
+    }
+
+    public String getFile() {
+        return file;
+    }
+
+    public String getDataId() {
+        return dataId;
+    }
+
+    /**
+     * @return process_info.result as reported by the server, like "Allowed" or "Blocked"
+     */
+    public String getResult() {
+        return result;
+    }
+
+    public int getScanAllResult() {
+        return scanAllResultI;
+    }
+
+    public String getScanAllResultText() {
+        return scanAllResultA;
+    }
+
+    public int getTotalAvs() {
+        return totalAvs;
+    }
+
+    public int getTotalTime() {
+        return totalTime;
+    }
+
+    /**
+     * @return distinct threat names found by the engines, empty if none
+     */
+    public String[] getThreatNames() {
+        return threatNames.clone();
+    }
+
+    public int getEngineCount() {
+        return engineNames.length;
+    }
+
+    public String getEngineName(int engine) {
+        return engineNames[engine];
+    }
+
+    /**
+     * @return scan_result_i of the engine
+     */
+    public int getEngineResult(int engine) {
+        return engineResults[engine];
+    }
+
+    public int getEngineScanTime(int engine) {
+        return engineScanTimes[engine];
+    }
+
+    /**
+     * @return def_time of the engine in millis, -1 if not reported
+     */
+    public long getEngineDefinitionTime(int engine) {
+        return engineDefinitionTimes[engine];
+    }
+
+    /**
+     * @return latest def_time of all engines in millis, the definitions this scan was done with. -1 if not reported
+     */
+    public long getLatestDefinitionTime() {
+        long latest = -1;
+        for (long engineDefinitionTime : engineDefinitionTimes) {
+            latest = Math.max(latest, engineDefinitionTime);
+        }
+        return latest;
+    }
+
+    public String getEngineThreat(int engine) {
+        return engineThreats[engine];
+    }
+
+    /**
+     * @return the report formerly returned by MetaDefenderClientService.scanFile, rendered on first call
+     */
+    public String toText() {
+        String rendered = text;
+        if (rendered == null) {
+            rendered = renderText();
+            text = rendered;
+        }
+        return rendered;
+    }
+
+    /**
+     * @return the verdict as a JSON object, rendered on first call
+     */
+    public String toJson() {
+        String rendered = json;
+        if (rendered == null) {
+            rendered = renderJson();
+            json = rendered;
+        }
+        return rendered;
+    }
+
+    @Override
+    public String toString() {
+        return "ScanVerdict{file='" + file + "', data_id='" + dataId + "', verdict=" + verdict
+                + ", threats=" + Arrays.toString(threatNames) + '}';
+    }
+
+    private String renderText() {
+        StringBuilder sb = new StringBuilder(256 + engineNames.length * 160);
+        sb.append("\nFile (").append(file).append(") scan finished with result: ").append(result);
+        sb.append("\n\tScanResults{data_id='").append(dataId).append('\'')
+                .append(", progress_percentage=").append(progressPercentage)
+                .append(", scan_all_result_a='").append(scanAllResultA).append('\'')
+                .append(", scan_all_result_i=").append(scanAllResultI)
+                .append(", start_time=").append(toDateString(startTime))
+                .append(", total_avs=").append(totalAvs)
+                .append(", total_time=").append(totalTime)
+                .append('}');
+        sb.append("\n\tEngineScanDetail:");
+        for (int i = 0; i < engineNames.length; i++) {
+            sb.append("\n\t - Item: ").append(engineNames[i]);
+            sb.append("\t EngineScanDetail{def_time=").append(toDateString(engineDefinitionTimes[i]))
+                    .append(", location='").append(engineLocations[i]).append('\'')
+                    .append(", scan_result_i=").append(engineResults[i])
+                    .append(", scan_time=").append(engineScanTimes[i])
+                    .append(", threat_found='").append(engineThreats[i]).append('\'')
+                    .append('}');
+        }
+        return sb.toString();
+    }
+
+    private String renderJson() {
+        StringWriter writer = new StringWriter(256 + engineNames.length * 128);
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(writer)) {
+            generator.writeStartObject();
+            generator.writeStringField("file", file);
+            generator.writeStringField("data_id", dataId);
+            generator.writeStringField("verdict", verdict.name());
+            generator.writeStringField("result", result);
+            generator.writeNumberField("scan_all_result_i", scanAllResultI);
+            generator.writeStringField("scan_all_result_a", scanAllResultA);
+            generator.writeNumberField("total_avs", totalAvs);
+            generator.writeNumberField("total_time", totalTime);
+            generator.writeArrayFieldStart("threats");
+            for (String threat : threatNames) {
+                generator.writeString(threat);
+            }
+            generator.writeEndArray();
+            generator.writeArrayFieldStart("engines");
+            for (int i = 0; i < engineNames.length; i++) {
+                generator.writeStartObject();
+                generator.writeStringField("name", engineNames[i]);
+                generator.writeNumberField("scan_result_i", engineResults[i]);
+                generator.writeNumberField("scan_time", engineScanTimes[i]);
+                generator.writeNumberField("def_time", engineDefinitionTimes[i]);
+                generator.writeStringField("location", engineLocations[i]);
+                generator.writeStringField("threat_found", engineThreats[i]);
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
+        } catch (IOException e) {
+            // a StringWriter does not fail
+            throw new IllegalStateException(e);
+        }
+        return writer.toString();
+    }
+
+    private static Verdict toVerdict(String result) {
+        if ("Allowed".equalsIgnoreCase(result)) {
+            return Verdict.ALLOWED;
+        }
+        if ("Blocked".equalsIgnoreCase(result)) {
+            return Verdict.BLOCKED;
+        }
+        return Verdict.OTHER;
+    }
+
+    private static long toMillis(Date date) {
+        return date == null ? -1 : date.getTime();
+    }
+
+    private static String toDateString(long millis) {
+        return millis < 0 ? "null" : new Date(millis).toString();
+    }
+}
@@ -0,0 +1,285 @@
+package com.opswat.metadefender.core.service;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded in-process cache of scan verdicts keyed by content hash and scan profile (server and scan rule).
+ *
+ * Entries are evicted in LRU order when the cache is full and expire after the configured TTL.
+ * Every entry remembers the engine definition time it was scanned with. Definition times are tracked per scan
+ * profile: once updateDefinitionTime reports a newer one for a profile, the older entries of that profile are never
+ * returned again, other profiles (servers) are not affected.
+ *
+ * With a PersistentVerdictStore the verdicts are also written to disk, misses of the in-memory part are
+ * answered from the store, so a restarted process starts with a warm cache.
+ */
+public class VerdictCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+    public static final long DEFAULT_TTL = 60 * 60 * 1000L;
+
+    private final int maxEntries;
+    private final long ttl;
+
+    // access ordered, guarded by this
+    private final LinkedHashMap<String, Entry> entries;
+
+    private final PersistentVerdictStore store;
+
+    // latest known engine definition time per profile, "" for the NULL profile
+    private final ConcurrentMap<String, Long> definitionTimes = new ConcurrentHashMap<String, Long>();
+
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong storeErrors = new AtomicLong(0);
+
+
+    public VerdictCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_TTL);
+    }
+
+    /**
+     * @param maxEntries maximum number of cached verdicts
+     * @param ttl time to live of a verdict in millis
+     */
+    public VerdictCache(int maxEntries, long ttl) {
+        this(maxEntries, ttl, null);
+    }
+
+    /**
+     * @param maxEntries maximum number of verdicts kept in memory
+     * @param ttl time to live of a verdict in millis
+     * @param store on-disk store behind the in-memory cache, can be NULL
+     */
+    public VerdictCache(final int maxEntries, long ttl, PersistentVerdictStore store) {
+        if (maxEntries <= 0 || ttl <= 0) {
+            throw new IllegalArgumentException("maxEntries and ttl must be positive");
+        }
+        this.maxEntries = maxEntries;
+        this.ttl = ttl;
+        this.store = store;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, VerdictCache.Entry> eldest) {
+                return size() > VerdictCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @param hash content hash
+     * @param profile scan profile the verdict belongs to, for example server url and scan rule. Can be NULL.
+     * @return cached verdict, NULL if there is no valid one
+     */
+    public Entry get(String hash, String profile) {
+        String key = getKey(hash, profile);
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry != null && !isValid(entry, profile)) {
+                entries.remove(key);
+                entry = null;
+            }
+        }
+
+        if (entry == null && store != null) {
+            entry = store.get(key);
+            if (entry != null && isValid(entry, profile)) {
+                synchronized (this) {
+                    entries.put(key, entry);
+                }
+            } else {
+                entry = null;
+            }
+        }
+
+        if (entry == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return entry;
+    }
+
+    /**
+     * Cache a verdict.
+     *
+     * @param hash content hash
+     * @param profile scan profile the verdict belongs to, for example server url and scan rule. Can be NULL.
+     * @param allowed true if the file is allowed
+     * @param result process result reported by the server
+     * @param data_id data id of the scan
+     * @param definitionTime engine definition time the file was scanned with, read before the scan started
+     */
+    public void put(String hash, String profile, boolean allowed, String result, String data_id, long definitionTime) {
+        put(hash, profile, new Entry(allowed, result, data_id, definitionTime, System.currentTimeMillis()));
+    }
+
+    /**
+     * @param hash content hash
+     * @param profile scan profile the verdict belongs to, for example server url and scan rule. Can be NULL.
+     * @param entry verdict to cache
+     */
+    public void put(String hash, String profile, Entry entry) {
+        if (entry.definitionTime < getDefinitionTime(profile)) {
+            // scanned with outdated definitions
+            return;
+        }
+        String key = getKey(hash, profile);
+        synchronized (this) {
+            entries.put(key, entry);
+        }
+
+        if (store != null) {
+            try {
+                store.put(key, entry);
+            } catch (IOException e) {
+                // the in-memory verdict is still valid, only the warm start of this one is lost
+                storeErrors.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Report the latest engine definition time of a profile. If it is newer than the known one, every verdict of the
+     * profile scanned with older definitions is dropped.
+     *
+     * @param profile scan profile, for example server url and scan rule. Can be NULL.
+     * @param latestDefinitionTime latest def_time of all engines of the profile's server in millis
+     * @return true if the cache was invalidated
+     */
+    public boolean updateDefinitionTime(String profile, long latestDefinitionTime) {
+        if (latestDefinitionTime <= getDefinitionTime(profile)) {
+            // called on every lookup, do not take the lock when nothing changed
+            return false;
+        }
+        String profileKey = profile == null ? "" : profile;
+        synchronized (this) {
+            if (latestDefinitionTime <= getDefinitionTime(profile)) {
+                return false;
+            }
+            definitionTimes.put(profileKey, latestDefinitionTime);
+            Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, Entry> entry = iterator.next();
+                if (entry.getValue().definitionTime < latestDefinitionTime && profileKey.equals(profileOf(entry.getKey()))) {
+                    iterator.remove();
+                }
+            }
+        }
+
+        if (store != null) {
+            try {
+                store.removeOlderThan(profileKey, latestDefinitionTime);
+            } catch (IOException e) {
+                // outdated stored verdicts are still rejected by get
+                storeErrors.incrementAndGet();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param profile scan profile. Can be NULL.
+     * @return latest known engine definition time of the profile in millis, 0 if none was reported
+     */
+    public long getDefinitionTime(String profile) {
+        Long definitionTime = definitionTimes.get(profile == null ? "" : profile);
+        return definitionTime == null ? 0 : definitionTime;
+    }
+
+    public void invalidateAll() {
+        synchronized (this) {
+            entries.clear();
+        }
+
+        if (store != null) {
+            try {
+                store.clear();
+            } catch (IOException e) {
+                storeErrors.incrementAndGet();
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return number of failed writes to the persistent store
+     */
+    public long getStoreErrors() {
+        return storeErrors.get();
+    }
+
+    private boolean isValid(Entry entry, String profile) {
+        return entry.definitionTime >= getDefinitionTime(profile) && System.currentTimeMillis() - entry.createdAt < ttl;
+    }
+
+    private static String getKey(String hash, String profile) {
+        return profile == null ? hash : hash + '|' + profile;
+    }
+
+    /**
+     * @return profile part of a cache key, "" for the NULL profile. Hashes never contain '|'.
+     */
+    static String profileOf(String key) {
+        int separator = key.indexOf('|');
+        return separator < 0 ? "" : key.substring(separator + 1);
+    }
+
+
+    /**
+     * Cached verdict, immutable.
+     */
+    public static class Entry {
+        private final boolean allowed;
+        private final String result;
+        private final String data_id;
+        private final long definitionTime;
+        private final long createdAt;
+
+        public Entry(boolean allowed, String result, String data_id, long definitionTime, long createdAt) {
+            this.allowed = allowed;
+            this.result = result;
+            this.data_id = data_id;
+            this.definitionTime = definitionTime;
+            this.createdAt = createdAt;
+        }
+
+        public boolean isAllowed() {
+            return allowed;
+        }
+
+        public String getResult() {
+            return result;
+        }
+
+        public String getDataId() {
+            return data_id;
+        }
+
+        public long getDefinitionTime() {
+            return definitionTime;
+        }
+
+        public long getCreatedAt() {
+            return createdAt;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.opswat.metadefender.core.client;
+
+import com.opswat.metadefender.core.client.responses.FileScanResult;
+import com.opswat.metadefender.core.client.responses.ScanResults;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class AdaptivePollingPolicyTest {
+
+	private final AdaptivePollingPolicy policy = new AdaptivePollingPolicy();
+
+	@Test
+	public void pollsAtOnceWithoutHistory() {
+		assertEquals(0, policy.newSchedule("report.pdf", 1500).nextDelay(null, 0));
+		assertEquals(-1, policy.getExpectedScanTime("report.pdf", 1500));
+	}
+
+	@Test
+	public void learnsScanTimePerBucket() {
+		policy.newSchedule("report.pdf", 1500).finished(result(100, 1000), 1200);
+
+		// same extension and power of two size bucket
+		assertEquals(1000, policy.getExpectedScanTime("other.PDF", 1025));
+		assertEquals(-1, policy.getExpectedScanTime("report.zip", 1500));
+		assertEquals(-1, policy.getExpectedScanTime("report.pdf", 5000));
+
+		// first poll at half of the typical scan time
+		assertEquals(500, policy.newSchedule("other.pdf", 1100).nextDelay(null, 0));
+	}
+
+	@Test
+	public void movingAverageWeighsNewScans() {
+		policy.newSchedule("a.doc", 10).finished(result(100, 1000), 1000);
+		policy.newSchedule("a.doc", 10).finished(result(100, 2000), 2000);
+		assertEquals(1200, policy.getExpectedScanTime("a.doc", 10));
+	}
+
+	@Test
+	public void usesElapsedTimeWithoutTotalTime() {
+		policy.newSchedule("a.doc", 10).finished(result(100, 0), 800);
+		assertEquals(800, policy.getExpectedScanTime("a.doc", 10));
+	}
+
+	@Test
+	public void clampsToMaxInterval() {
+		policy.newSchedule("big.iso", 1L << 32).finished(result(100, 600000), 600000);
+
+		PollingSchedule schedule = policy.newSchedule("big.iso", 1L << 32);
+		assertEquals(AdaptivePollingPolicy.DEFAULT_MAX_INTERVAL, schedule.nextDelay(null, 0));
+		assertEquals(AdaptivePollingPolicy.DEFAULT_MAX_INTERVAL, schedule.nextDelay(result(1, 0), 1000));
+	}
+
+	@Test
+	public void clampsToMinInterval() {
+		PollingSchedule schedule = policy.newSchedule("a.txt", 10);
+		// 99% done after 10 ms, the estimated remaining time is far below the minimum
+		assertEquals(AdaptivePollingPolicy.DEFAULT_MIN_INTERVAL, schedule.nextDelay(result(99, 0), 10));
+	}
+
+	@Test
+	public void estimatesRemainingTimeFromProgress() {
+		PollingSchedule schedule = policy.newSchedule("a.txt", 10);
+		// 25% done after 400 ms: about 1200 ms left, polled at half of it
+		assertEquals(600, schedule.nextDelay(result(25, 0), 400));
+	}
+
+	@Test
+	public void backsOffWithoutAnyEstimate() {
+		PollingSchedule schedule = policy.newSchedule("a.txt", 10);
+		assertEquals(100, schedule.nextDelay(result(0, 0), 10));
+		assertEquals(200, schedule.nextDelay(result(0, 0), 20));
+		assertEquals(400, schedule.nextDelay(result(0, 0), 30));
+		for(int i = 0; i < 10; i++) {
+			schedule.nextDelay(result(0, 0), 40);
+		}
+		assertEquals(AdaptivePollingPolicy.DEFAULT_MAX_INTERVAL, schedule.nextDelay(result(0, 0), 50));
+	}
+
+	@Test
+	public void progressOfAPollGivesTheSameDelays() {
+		PollingSchedule byResult = policy.newSchedule("a.txt", 10);
+		PollingSchedule byProgress = policy.newSchedule("a.txt", 10);
+
+		assertEquals(byResult.nextDelay(result(25, 0), 400), byProgress.nextDelayAfter(progress(25), 400));
+		for(int i = 0; i < 3; i++) {
+			assertEquals(byResult.nextDelay(result(0, 0), 10), byProgress.nextDelayAfter(progress(0), 10));
+		}
+	}
+
+	private static ScanProgress progress(int progress) {
+		return new ScanProgress("data-id", progress, 255, null);
+	}
+
+	private static FileScanResult result(int progress, int totalTime) {
+		ScanResults scanResults = new ScanResults();
+		scanResults.progress_percentage = progress;
+		scanResults.total_time = totalTime;
+		FileScanResult result = new FileScanResult();
+		result.scan_results = scanResults;
+		return result;
+	}
+}
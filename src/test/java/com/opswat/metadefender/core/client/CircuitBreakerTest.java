@@ -0,0 +1,100 @@
+package com.opswat.metadefender.core.client;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.function.LongSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CircuitBreakerTest {
+
+	private long now;
+	private CircuitBreaker circuitBreaker;
+
+	@Before
+	public void setUp() {
+		now = 1000;
+		circuitBreaker = new CircuitBreaker(3, 500, new LongSupplier() {
+			@Override
+			public long getAsLong() {
+				return now;
+			}
+		});
+	}
+
+	@Test
+	public void opensAfterConsecutiveFailures() {
+		fail(2);
+		assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+		assertTrue(circuitBreaker.allowRequest());
+
+		fail(1);
+		assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+		assertFalse(circuitBreaker.allowRequest());
+	}
+
+	@Test
+	public void successResetsFailureCount() {
+		fail(2);
+		circuitBreaker.allowRequest();
+		circuitBreaker.onSuccess();
+		fail(2);
+		assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+	}
+
+	@Test
+	public void failsFastUntilOpenDurationElapsed() {
+		fail(3);
+		now += 499;
+		assertFalse(circuitBreaker.allowRequest());
+		assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+
+		now += 1;
+		assertTrue(circuitBreaker.allowRequest());
+		assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+	}
+
+	@Test
+	public void halfOpenLetsASingleTrialThrough() {
+		fail(3);
+		now += 500;
+		assertTrue(circuitBreaker.allowRequest());
+		assertFalse(circuitBreaker.allowRequest());
+	}
+
+	@Test
+	public void successfulTrialCloses() {
+		fail(3);
+		now += 500;
+		assertTrue(circuitBreaker.allowRequest());
+		circuitBreaker.onSuccess();
+
+		assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+		assertTrue(circuitBreaker.allowRequest());
+		assertTrue(circuitBreaker.allowRequest());
+	}
+
+	@Test
+	public void failedTrialReopensForAnotherOpenDuration() {
+		fail(3);
+		now += 500;
+		assertTrue(circuitBreaker.allowRequest());
+		circuitBreaker.onFailure();
+
+		assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+		now += 499;
+		assertFalse(circuitBreaker.allowRequest());
+		now += 1;
+		assertTrue(circuitBreaker.allowRequest());
+	}
+
+	private void fail(int failures) {
+		for(int i = 0; i < failures; i++) {
+			assertTrue(circuitBreaker.allowRequest());
+			circuitBreaker.onFailure();
+		}
+	}
+}
@@ -0,0 +1,226 @@
+package com.opswat.metadefender.core.client;
+
+import com.opswat.metadefender.core.client.exceptions.MetadefenderClientException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ClientMetricsTest {
+
+	private static final byte[] CONTENT = "metrics content".getBytes();
+
+	private FakeCoreConnector connector;
+	private ScanResultPoller poller;
+	private MetadefenderCoreClient client;
+	private ClientMetrics metrics;
+
+	@Before
+	public void setUp() {
+		connector = new FakeCoreConnector();
+		poller = new ScanResultPoller(2, 4, 5);
+		client = new MetadefenderCoreClient("http://fake-core:8008");
+		client.setHttpConnector(connector);
+		client.setScanResultPoller(poller);
+		metrics = client.getMetrics();
+	}
+
+	@After
+	public void tearDown() {
+		client.close();
+		poller.close();
+	}
+
+	@Test
+	public void scanIsMeasuredPerRequestAndPhase() throws Exception {
+		connector.setPollsUntilFinished(3);
+		RecordingListener listener = new RecordingListener(false);
+		metrics.setListener(listener);
+
+		client.scanFileAsync(new ByteArrayInputStream(CONTENT), new FileScanOptions(), 5).get(5, TimeUnit.SECONDS);
+		awaitNoScanInFlight();
+
+		assertEquals(1, metrics.getRequestLatency().get("POST /file").getCount());
+		assertEquals(3, metrics.getRequestLatency().get("GET /file/{data_id}").getCount());
+		assertEquals(0, metrics.getRequestErrors());
+		assertEquals(CONTENT.length, metrics.getBytesUploaded());
+		assertEquals(1, metrics.getAcceptLatency().getCount());
+		assertEquals(1, metrics.getVerdictLatency().getCount());
+		assertEquals(1, metrics.getPollsPerScan().getCount());
+		assertEquals(3, metrics.getPollsPerScan().getMax());
+
+		assertEquals(4, listener.requests.size());
+		assertEquals("POST /file 200", listener.requests.get(0));
+		assertEquals(CONTENT.length, (long) listener.acceptedBytes.get(0));
+		assertEquals(3, (int) listener.finishedPolls.get(0));
+	}
+
+	@Test
+	public void serverErrorsAreCountedButNotClientErrors() throws Exception {
+		RecordingListener listener = new RecordingListener(false);
+		metrics.setListener(listener);
+		connector.setEnginesAvailable(false);
+
+		try {
+			client.getEngineVersions();
+			fail("engines are unavailable");
+		} catch (MetadefenderClientException e) {
+			assertEquals(500, e.responseCode);
+		}
+		assertEquals(1, metrics.getRequestErrors());
+		assertEquals("GET /stat/engines 500", listener.requests.get(0));
+
+		MetadefenderCoreClient rejecting = clientAnswering(400);
+		try {
+			rejecting.fetchScanResult("data-1");
+			fail("the request is rejected");
+		} catch (MetadefenderClientException e) {
+			assertEquals(400, e.responseCode);
+		} finally {
+			rejecting.close();
+		}
+		assertEquals(0, rejecting.getMetrics().getRequestErrors());
+		assertEquals(1, rejecting.getMetrics().getRequestLatency().get("GET /file/{data_id}").getCount());
+	}
+
+	@Test
+	public void unansweredRequestIsRecordedWithoutResponseCode() throws Exception {
+		RecordingListener listener = new RecordingListener(false);
+		MetadefenderCoreClient unreachable = failingClient();
+		unreachable.getMetrics().setListener(listener);
+		try {
+			unreachable.getEngineVersions();
+			fail("the server is not reachable");
+		} catch (MetadefenderClientException e) {
+			assertEquals(0, e.responseCode);
+		} finally {
+			unreachable.close();
+		}
+
+		assertEquals(1, unreachable.getMetrics().getRequestErrors());
+		assertEquals(1, unreachable.getMetrics().getRequestLatency().get("GET /stat/engines").getCount());
+		assertEquals("GET /stat/engines -1", listener.requests.get(0));
+	}
+
+	@Test
+	public void throwingListenerDoesNotFailOrRepeatTheMeasurement() throws Exception {
+		RecordingListener listener = new RecordingListener(true);
+		metrics.setListener(listener);
+
+		assertEquals(1, client.getEngineVersions().size());
+		assertEquals("1", client.scanFile(new ByteArrayInputStream(CONTENT), null));
+		metrics.cacheLookup("verdict", true);
+
+		assertEquals(2, listener.requests.size());
+		assertEquals(1, listener.acceptedBytes.size());
+		assertEquals(1, metrics.getRequestLatency().get("GET /stat/engines").getCount());
+		assertEquals(1, metrics.getRequestLatency().get("POST /file").getCount());
+		assertEquals(0, metrics.getRequestErrors());
+		assertEquals(1, metrics.getAcceptLatency().getCount());
+		// two requests, one acceptance and one cache lookup
+		assertEquals(4, metrics.getListenerErrors());
+	}
+
+	@Test
+	public void throwingListenerDoesNotReplaceTheRequestError() throws Exception {
+		RecordingListener listener = new RecordingListener(true);
+		MetadefenderCoreClient unreachable = failingClient();
+		unreachable.getMetrics().setListener(listener);
+		try {
+			unreachable.getEngineVersions();
+			fail("the server is not reachable");
+		} catch (MetadefenderClientException e) {
+			assertTrue(e.getMessage().startsWith("Connection error"));
+		} finally {
+			unreachable.close();
+		}
+
+		assertEquals(1, listener.requests.size());
+		assertEquals(1, unreachable.getMetrics().getRequestErrors());
+		assertEquals(1, unreachable.getMetrics().getListenerErrors());
+	}
+
+	private void awaitNoScanInFlight() throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while(metrics.getInFlightScans() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertEquals(0, metrics.getInFlightScans());
+	}
+
+	private static MetadefenderCoreClient clientAnswering(final int responseCode) {
+		MetadefenderCoreClient answering = new MetadefenderCoreClient("http://rejecting-core:8008");
+		answering.setHttpConnector(new HttpConnector() {
+			@Override
+			public HttpResponse sendRequest(String url, String method) {
+				return new HttpResponse("{\"err\":\"rejected\"}", responseCode);
+			}
+		});
+		return answering;
+	}
+
+	/**
+	 * @return client whose connector fails every request like HttpConnector on an I/O error
+	 */
+	private static MetadefenderCoreClient failingClient() {
+		MetadefenderCoreClient failing = new MetadefenderCoreClient("http://unreachable-core:8008");
+		failing.setHttpConnector(new HttpConnector() {
+			@Override
+			public HttpResponse sendRequest(String url, String method) throws MetadefenderClientException {
+				throw new MetadefenderClientException("Connection error: connect timed out", 0);
+			}
+		});
+		return failing;
+	}
+
+
+	private static class RecordingListener implements MetricsListener {
+
+		final List<String> requests = new CopyOnWriteArrayList<String>();
+		final List<Long> acceptedBytes = new CopyOnWriteArrayList<Long>();
+		final List<Integer> finishedPolls = new CopyOnWriteArrayList<Integer>();
+		private final boolean failing;
+
+		RecordingListener(boolean failing) {
+			this.failing = failing;
+		}
+
+		@Override
+		public void onRequest(String apiEndPointUrl, String apiPoint, int responseCode, long latencyNanos) {
+			requests.add(apiPoint + " " + responseCode);
+			exportOrThrow();
+		}
+
+		@Override
+		public void onScanAccepted(String apiEndPointUrl, long bytes, long acceptNanos) {
+			acceptedBytes.add(bytes);
+			exportOrThrow();
+		}
+
+		@Override
+		public void onScanFinished(String apiEndPointUrl, int polls, long verdictNanos) {
+			finishedPolls.add(polls);
+			exportOrThrow();
+		}
+
+		@Override
+		public void onCacheLookup(String cacheName, boolean hit) {
+			exportOrThrow();
+		}
+
+		private void exportOrThrow() {
+			if(failing) {
+				throw new IllegalStateException("exporter is down");
+			}
+		}
+	}
+}
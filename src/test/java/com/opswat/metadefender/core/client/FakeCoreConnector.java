@@ -0,0 +1,260 @@
+package com.opswat.metadefender.core.client;
+
+import com.opswat.metadefender.core.client.exceptions.MetadefenderClientException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Answers the Core requests in memory. Uploads are clean unless their content is given another result, a scan is
+ * finished at its pollsUntilFinished-th poll, only the hashes added as known are found. Uploads can be held until
+ * released. /version and /admin/license need the apikey header of a live session, expireSessions ends them all.
+ */
+public class FakeCoreConnector extends HttpConnector {
+
+	public static final String DEF_TIME = "2017-01-01T00:00:00.000Z";
+	// DEF_TIME in millis
+	public static final long DEF_TIME_MILLIS = 1483228800000L;
+
+	private final AtomicInteger uploads = new AtomicInteger(0);
+	private final AtomicInteger polls = new AtomicInteger(0);
+	private final AtomicInteger engineRequests = new AtomicInteger(0);
+	private final AtomicInteger logins = new AtomicInteger(0);
+	private final AtomicInteger logouts = new AtomicInteger(0);
+	private final Semaphore uploadsStarted = new Semaphore(0);
+
+	// def_time of the earlier scan by hash
+	private final ConcurrentMap<String, String> knownHashes = new ConcurrentHashMap<String, String>();
+	// process_info.result by content hash, "Allowed" if none
+	private final ConcurrentMap<String, String> results = new ConcurrentHashMap<String, String>();
+	private final ConcurrentMap<String, String> uploadedHashes = new ConcurrentHashMap<String, String>();
+	private final ConcurrentMap<String, AtomicInteger> pollsByDataId = new ConcurrentHashMap<String, AtomicInteger>();
+	private final ConcurrentMap<String, Boolean> liveSessions = new ConcurrentHashMap<String, Boolean>();
+	private final AtomicInteger authenticatedRequests = new AtomicInteger(0);
+
+	private volatile boolean enginesAvailable = true;
+	private volatile int pollsUntilFinished = 1;
+	private volatile Semaphore uploadReleases = null;
+
+	@Override
+	public HttpResponse sendRequest(String url, String method) throws MetadefenderClientException {
+		String path = url.substring(url.indexOf('/', url.indexOf("://") + 3));
+		if("/logout".equals(path)) {
+			logouts.incrementAndGet();
+			return new HttpResponse("{\"response\":\"Logout Success\"}", 200);
+		}
+		if("/stat/engines".equals(path)) {
+			engineRequests.incrementAndGet();
+			if(!enginesAvailable) {
+				return new HttpResponse("{\"err\":\"engines unavailable\"}", 500);
+			}
+			return new HttpResponse("[{\"eng_id\":\"engine0\",\"eng_name\":\"Engine0\",\"def_time\":\"" + DEF_TIME + "\",\"active\":true}]", 200);
+		}
+		if(path.startsWith("/file/")) {
+			return poll(path.substring("/file/".length()));
+		}
+		if(path.startsWith("/hash/")) {
+			String hash = path.substring("/hash/".length());
+			String defTime = knownHashes.get(hash.toLowerCase());
+			return new HttpResponse(defTime == null ? "{\"" + hash + "\":\"Not Found\"}"
+					: resultJson("known-" + hash, 100, "Allowed", defTime), 200);
+		}
+		return new HttpResponse("{\"err\":\"Not found: " + method + " " + path + "\"}", 404);
+	}
+
+	@Override
+	public HttpResponse sendRequest(String url, String method, byte[] body) throws MetadefenderClientException {
+		if(url.endsWith("/login")) {
+			String sessionId = "session-" + logins.incrementAndGet();
+			liveSessions.put(sessionId, Boolean.TRUE);
+			return new HttpResponse("{\"session_id\":\"" + sessionId + "\"}", 200);
+		}
+		return sendRequest(url, method);
+	}
+
+	@Override
+	public HttpResponse sendRequest(String url, String method, InputStream inputStream, Map<String, String> headers) throws MetadefenderClientException {
+		if(inputStream == null) {
+			if(url.endsWith("/version") || url.endsWith("/admin/license")) {
+				return authenticated(url, headers);
+			}
+			// requests of logged in clients carry their session header
+			return sendRequest(url, method);
+		}
+		String dataId = Integer.toString(uploads.incrementAndGet());
+		uploadsStarted.release();
+		try {
+			uploadedHashes.put(dataId, sha256(inputStream));
+			Semaphore releases = uploadReleases;
+			if(releases != null && !releases.tryAcquire(10, TimeUnit.SECONDS)) {
+				throw new MetadefenderClientException("upload was never released");
+			}
+		} catch (IOException e) {
+			throw new MetadefenderClientException(e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MetadefenderClientException("upload interrupted");
+		}
+		return new HttpResponse("{\"data_id\":\"" + dataId + "\"}", 200);
+	}
+
+	/**
+	 * @param hash SHA-256 the server scanned earlier
+	 * @param defTime def_time of that scan, like 2017-01-01T00:00:00.000Z
+	 */
+	public void addKnownHash(String hash, String defTime) {
+		knownHashes.put(hash.toLowerCase(), defTime);
+	}
+
+	/**
+	 * @param content uploaded content
+	 * @param processResult process_info.result of its scans, like "Blocked" or "Failed"
+	 */
+	public void setResult(byte[] content, String processResult) throws IOException {
+		results.put(sha256(new ByteArrayInputStream(content)), processResult);
+	}
+
+	/**
+	 * End every session, like a restart of the server.
+	 */
+	public void expireSessions() {
+		liveSessions.clear();
+	}
+
+	public void setEnginesAvailable(boolean enginesAvailable) {
+		this.enginesAvailable = enginesAvailable;
+	}
+
+	/**
+	 * @param pollsUntilFinished polls of a scan answered in progress, the last one finished
+	 */
+	public void setPollsUntilFinished(int pollsUntilFinished) {
+		this.pollsUntilFinished = pollsUntilFinished;
+	}
+
+	/**
+	 * Hold every upload from now on until released.
+	 */
+	public void holdUploads() {
+		uploadReleases = new Semaphore(0);
+	}
+
+	public void releaseUploads(int count) {
+		uploadReleases.release(count);
+	}
+
+	public boolean awaitUploads(int count, long timeout) throws InterruptedException {
+		if(!uploadsStarted.tryAcquire(count, timeout, TimeUnit.MILLISECONDS)) {
+			return false;
+		}
+		uploadsStarted.release(count);
+		return true;
+	}
+
+	public int getUploads() {
+		return uploads.get();
+	}
+
+	public int getPolls() {
+		return polls.get();
+	}
+
+	public int getLogins() {
+		return logins.get();
+	}
+
+	public int getLogouts() {
+		return logouts.get();
+	}
+
+	public int getEngineRequests() {
+		return engineRequests.get();
+	}
+
+	/**
+	 * @return requests of /version and /admin/license, answered or not
+	 */
+	public int getAuthenticatedRequests() {
+		return authenticatedRequests.get();
+	}
+
+	/**
+	 * @return body of a /file/{data_id} answer with one engine
+	 */
+	public static String resultJson(String dataId, int progress, String processResult, String defTime) {
+		boolean finished = progress >= 100;
+		boolean blocked = finished && "Blocked".equals(processResult);
+		return "{\"data_id\":\"" + dataId + "\"," +
+				"\"scan_results\":{" +
+				"\"data_id\":\"" + dataId + "\"," +
+				"\"progress_percentage\":" + progress + "," +
+				"\"scan_all_result_a\":\"" + (!finished ? "In Progress" : blocked ? "Infected" : "No Threat Detected") + "\"," +
+				"\"scan_all_result_i\":" + (!finished ? 255 : blocked ? 1 : 0) + "," +
+				"\"start_time\":\"" + DEF_TIME + "\"," +
+				"\"total_avs\":1," +
+				"\"total_time\":" + (finished ? 10 : 0) + "," +
+				"\"scan_details\":{\"Engine0\":{\"def_time\":\"" + defTime + "\",\"location\":\"local\"," +
+				"\"scan_result_i\":" + (blocked ? 1 : 0) + ",\"scan_time\":10,\"threat_found\":\"" + (blocked ? "Test-Virus" : "") + "\"}}}," +
+				"\"process_info\":{" +
+				"\"progress_percentage\":" + progress + "," +
+				"\"result\":\"" + (finished ? processResult : "Processing") + "\"," +
+				"\"blocked_reason\":\"" + (blocked ? "Infected" : "") + "\"}}";
+	}
+
+	private HttpResponse authenticated(String url, Map<String, String> headers) {
+		authenticatedRequests.incrementAndGet();
+		String sessionId = headers == null ? null : headers.get("apikey");
+		if(sessionId == null || !liveSessions.containsKey(sessionId)) {
+			return new HttpResponse("{\"err\":\"Access denied\"}", 401);
+		}
+		if(url.endsWith("/version")) {
+			return new HttpResponse("{\"version\":\"4.0.0\",\"product_id\":\"MSCW\"}", 200);
+		}
+		return new HttpResponse("{\"licensed_to\":\"test\",\"product_id\":\"MSCW\",\"product_name\":\"Metadefender Core\"," +
+				"\"online_activated\":true}", 200);
+	}
+
+	private HttpResponse poll(String dataId) {
+		String hash = uploadedHashes.get(dataId);
+		if(hash == null) {
+			return new HttpResponse("{\"" + dataId + "\":\"Not Found\"}", 200);
+		}
+		polls.incrementAndGet();
+		AtomicInteger count = pollsByDataId.get(dataId);
+		if(count == null) {
+			pollsByDataId.putIfAbsent(dataId, new AtomicInteger(0));
+			count = pollsByDataId.get(dataId);
+		}
+		int progress = count.incrementAndGet() >= pollsUntilFinished ? 100 : 50;
+		String result = results.get(hash);
+		return new HttpResponse(resultJson(dataId, progress, result == null ? "Allowed" : result, DEF_TIME), 200);
+	}
+
+	private static String sha256(InputStream inputStream) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		byte[] buffer = new byte[8192];
+		int read;
+		while((read = inputStream.read(buffer)) != -1) {
+			digest.update(buffer, 0, read);
+		}
+		StringBuilder sb = new StringBuilder();
+		for(byte b : digest.digest()) {
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,76 @@
+package com.opswat.metadefender.core.client;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FileChannelInputStreamTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void readsWholeFileIntoReusedBuffer() throws IOException {
+		byte[] data = new byte[100000];
+		new Random(1).nextBytes(data);
+		Path file = folder.newFile("data.bin").toPath();
+		Files.write(file, data);
+
+		FileChannelInputStream in = new FileChannelInputStream(FileChannel.open(file), true);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[777];
+		int reads = 0;
+		int read;
+		// changing offsets and single byte reads in between, all through the same wrapper
+		while((read = in.read(buffer, reads % 7, buffer.length - reads % 7)) != -1) {
+			out.write(buffer, reads % 7, read);
+			if(++reads % 5 == 0) {
+				int single = in.read();
+				if(single == -1) {
+					break;
+				}
+				out.write(single);
+			}
+		}
+		in.close();
+
+		assertArrayEquals(data, out.toByteArray());
+	}
+
+	@Test
+	public void closesChannelOnlyIfOwned() throws IOException {
+		Path file = folder.newFile("empty.bin").toPath();
+		FileChannel channel = FileChannel.open(file);
+
+		FileChannelInputStream in = new FileChannelInputStream(channel, false);
+		assertEquals(-1, in.read());
+		in.close();
+		assertTrue(channel.isOpen());
+
+		new FileChannelInputStream(channel, true).close();
+		assertFalse(channel.isOpen());
+	}
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void rejectsReadPastBuffer() throws IOException {
+		Path file = folder.newFile("bounds.bin").toPath();
+		FileChannelInputStream in = new FileChannelInputStream(FileChannel.open(file), true);
+		try {
+			in.read(new byte[8], 4, 5);
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package com.opswat.metadefender.core.client;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HistogramTest {
+
+	@Test
+	public void emptyHistogramAnswersZero() {
+		Histogram histogram = new Histogram();
+
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMax());
+		assertEquals(0, histogram.getMean(), 0);
+		assertEquals(0, histogram.getPercentile(0.5));
+		assertEquals(0, histogram.getPercentile(1));
+	}
+
+	@Test
+	public void percentilesAreTheUpperBoundOfTheirBucket() {
+		Histogram histogram = new Histogram();
+		// 1..100: buckets [1], [2,3], [4,7], [8,15], [16,31], [32,63], [64,127]
+		for(int value = 1; value <= 100; value++) {
+			histogram.record(value);
+		}
+
+		assertEquals(100, histogram.getCount());
+		assertEquals(5050, histogram.getSum());
+		assertEquals(50.5, histogram.getMean(), 0.001);
+		assertEquals(1, histogram.getPercentile(0));
+		assertEquals(1, histogram.getPercentile(0.01));
+		assertEquals(3, histogram.getPercentile(0.03));
+		assertEquals(63, histogram.getPercentile(0.5));
+		assertEquals(63, histogram.getPercentile(0.63));
+		// the last bucket is capped at the largest recorded value
+		assertEquals(100, histogram.getPercentile(0.64));
+		assertEquals(100, histogram.getPercentile(0.99));
+		assertEquals(100, histogram.getPercentile(1));
+	}
+
+	@Test
+	public void percentileIsAtMostTwiceTheRealValue() {
+		Histogram histogram = new Histogram();
+		long[] values = {0, 1, 5, 1000, 123456, 1L << 40, Long.MAX_VALUE};
+		for(long value : values) {
+			histogram.record(value);
+		}
+
+		for(int i = 0; i < values.length; i++) {
+			long percentile = histogram.getPercentile((i + 0.5) / values.length);
+			assertTrue(percentile >= values[i]);
+			assertTrue(values[i] > Long.MAX_VALUE / 2 || percentile <= Math.max(2 * values[i], 1));
+		}
+		assertEquals(Long.MAX_VALUE, histogram.getMax());
+	}
+
+	@Test
+	public void negativeValuesAreRecordedAsZero() {
+		Histogram histogram = new Histogram();
+		histogram.record(-5);
+		histogram.record(-1);
+
+		assertEquals(2, histogram.getCount());
+		assertEquals(0, histogram.getSum());
+		assertEquals(0, histogram.getPercentile(1));
+	}
+
+	@Test
+	public void quantilesOutsideZeroAndOneAreClamped() {
+		Histogram histogram = new Histogram();
+		histogram.record(10);
+		histogram.record(1000);
+
+		assertEquals(histogram.getPercentile(0), histogram.getPercentile(-1));
+		assertEquals(1000, histogram.getPercentile(2));
+	}
+
+	@Test
+	public void concurrentRecordsAreAllCounted() throws Exception {
+		final Histogram histogram = new Histogram();
+		final CountDownLatch start = new CountDownLatch(1);
+		ExecutorService recorders = Executors.newFixedThreadPool(4);
+		try {
+			for(int t = 0; t < 4; t++) {
+				recorders.submit(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							start.await();
+						} catch (InterruptedException e) {
+							return;
+						}
+						for(int value = 1; value <= 10000; value++) {
+							histogram.record(value);
+						}
+					}
+				});
+			}
+			start.countDown();
+			recorders.shutdown();
+			assertTrue(recorders.awaitTermination(10, TimeUnit.SECONDS));
+		} finally {
+			recorders.shutdownNow();
+		}
+
+		assertEquals(40000, histogram.getCount());
+		assertEquals(4L * 10000 * 10001 / 2, histogram.getSum());
+		assertEquals(10000, histogram.getMax());
+		assertEquals(8191, histogram.getPercentile(0.5));
+	}
+}
@@ -0,0 +1,238 @@
+package com.opswat.metadefender.core.client;
+
+import com.opswat.metadefender.core.client.exceptions.MetadefenderClientException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LargeFileUploaderTest {
+
+	private static final int FILE_SIZE = 4500;
+	private static final int CHUNK_SIZE = 1000;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private FlakyConnector connector;
+	private MetadefenderCoreClient client;
+	private LargeFileUploader uploader;
+	private RecordingListener listener;
+	private byte[] content;
+	private Path file;
+
+	@Before
+	public void setUp() throws Exception {
+		connector = new FlakyConnector();
+		client = new MetadefenderCoreClient("http://fake-core:8008");
+		client.setHttpConnector(connector);
+		listener = new RecordingListener();
+		uploader = new LargeFileUploader(client);
+		uploader.setChunking(CHUNK_SIZE, 2);
+		uploader.setRetryPolicy(new RetryPolicy(3, 1, 1));
+		uploader.setProgressListener(listener);
+
+		content = new byte[FILE_SIZE];
+		new Random(42).nextBytes(content);
+		file = folder.newFile("large.bin").toPath();
+		Files.write(file, content);
+	}
+
+	@After
+	public void tearDown() {
+		client.close();
+	}
+
+	@Test
+	public void droppedConnectionIsSentAgainFromTheStartOfTheFile() throws Exception {
+		connector.failNextAttempts(FlakyConnector.DROP);
+
+		assertEquals("1", uploader.upload(file, null));
+
+		assertEquals(2, connector.attempts.get());
+		assertEquals(1, connector.getUploads());
+		assertArrayEquals(content, connector.received.get(0));
+		assertEquals(Arrays.asList(1), listener.retries);
+		assertEquals(0, listener.causes.get(0).responseCode);
+	}
+
+	@Test
+	public void serverErrorsAreRetriedUntilTheRetriesAreUsedUp() throws Exception {
+		connector.failNextAttempts(500, 503);
+		assertEquals("1", uploader.upload(file, null));
+		assertEquals(3, connector.attempts.get());
+		assertEquals(Arrays.asList(1, 2), listener.retries);
+
+		connector.failNextAttempts(503, 503, 503, 503);
+		try {
+			uploader.upload(file, null);
+			fail("every attempt failed");
+		} catch (MetadefenderClientException e) {
+			assertEquals(503, e.responseCode);
+		}
+		// first attempt and 3 retries
+		assertEquals(7, connector.attempts.get());
+		assertEquals(Arrays.asList(1, 2, 1, 2, 3), listener.retries);
+	}
+
+	@Test
+	public void progressIsReportedPerChunkAndRestartsOnRetry() throws Exception {
+		connector.failNextAttempts(FlakyConnector.DROP);
+
+		uploader.upload(file, null);
+
+		int retry = listener.events.indexOf("retry 1");
+		assertTrue(retry > 0);
+		// the dropped attempt read half of the file
+		for(String event : listener.events.subList(0, retry)) {
+			assertTrue(event, event.equals("1000/4500") || event.equals("2000/4500"));
+		}
+		assertEquals(Arrays.asList("1000/4500", "2000/4500", "3000/4500", "4000/4500", "4500/4500"),
+				listener.events.subList(retry + 1, listener.events.size()));
+	}
+
+	@Test
+	public void clientErrorsAreNotRetried() throws Exception {
+		connector.failNextAttempts(400);
+		try {
+			uploader.upload(file, null);
+			fail("the server rejected the file");
+		} catch (MetadefenderClientException e) {
+			assertEquals(400, e.responseCode);
+		}
+		assertEquals(1, connector.attempts.get());
+		assertTrue(listener.retries.isEmpty());
+	}
+
+	@Test
+	public void unreadableAnswerToAnAcceptedUploadIsNotRetried() throws Exception {
+		connector.failNextAttempts(FlakyConnector.GARBLED);
+		try {
+			uploader.upload(file, null);
+			fail("the answer has no data_id");
+		} catch (MetadefenderClientException e) {
+			assertEquals(200, e.responseCode);
+		}
+		assertEquals(1, connector.attempts.get());
+		assertTrue(listener.retries.isEmpty());
+	}
+
+	@Test
+	public void closedClientIsNotRetried() throws Exception {
+		client.close();
+		try {
+			uploader.upload(file, null);
+			fail("the client is closed");
+		} catch (MetadefenderClientException e) {
+			assertEquals("Client is closed", e.getMessage());
+		}
+		assertEquals(0, connector.attempts.get());
+		assertTrue(listener.retries.isEmpty());
+	}
+
+	@Test
+	public void streamIsNotRetried() throws Exception {
+		connector.failNextAttempts(FlakyConnector.DROP);
+		try {
+			uploader.upload(new ByteArrayInputStream(content), null, FILE_SIZE);
+			fail("the connection dropped");
+		} catch (MetadefenderClientException e) {
+			assertEquals(0, e.responseCode);
+		}
+		assertEquals(1, connector.attempts.get());
+		assertTrue(listener.retries.isEmpty());
+	}
+
+
+	/**
+	 * Fails the next uploads as queued: a connection dropped after half of the body, an answer with the given
+	 * status, or a 200 answer without data_id. Uploads without a queued failure are accepted.
+	 */
+	private static class FlakyConnector extends FakeCoreConnector {
+
+		static final int DROP = -1;
+		static final int GARBLED = 200;
+
+		final AtomicInteger attempts = new AtomicInteger(0);
+		final List<byte[]> received = new CopyOnWriteArrayList<byte[]>();
+		private final ConcurrentLinkedQueue<Integer> failures = new ConcurrentLinkedQueue<Integer>();
+
+		void failNextAttempts(Integer... responses) {
+			failures.addAll(Arrays.asList(responses));
+		}
+
+		@Override
+		public HttpResponse sendRequest(String url, String method, InputStream inputStream, Map<String, String> headers) throws MetadefenderClientException {
+			if(inputStream == null) {
+				return super.sendRequest(url, method, null, headers);
+			}
+			attempts.incrementAndGet();
+			Integer failure = failures.poll();
+			try {
+				if(failure != null && failure == DROP) {
+					read(inputStream, FILE_SIZE / 2);
+					throw new MetadefenderClientException("Connection error: Connection reset", 0);
+				}
+				byte[] body = read(inputStream, Integer.MAX_VALUE);
+				if(failure == null) {
+					received.add(body);
+					return super.sendRequest(url, method, new ByteArrayInputStream(body), headers);
+				}
+				return failure == GARBLED ? new HttpResponse("<html>Accepted</html>", 200)
+						: new HttpResponse("{\"err\":\"failed with " + failure + "\"}", failure);
+			} catch (IOException e) {
+				throw new MetadefenderClientException("Connection error: " + e.getMessage(), 0);
+			}
+		}
+
+		private static byte[] read(InputStream inputStream, int limit) throws IOException {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[512];
+			int read;
+			while(out.size() < limit && (read = inputStream.read(buffer, 0, Math.min(buffer.length, limit - out.size()))) != -1) {
+				out.write(buffer, 0, read);
+			}
+			return out.toByteArray();
+		}
+	}
+
+	private static class RecordingListener implements UploadProgressListener {
+
+		final List<String> events = new CopyOnWriteArrayList<String>();
+		final List<Integer> retries = new CopyOnWriteArrayList<Integer>();
+		final List<MetadefenderClientException> causes = new CopyOnWriteArrayList<MetadefenderClientException>();
+
+		@Override
+		public void onProgress(long bytesSent, long totalBytes) {
+			events.add(bytesSent + "/" + totalBytes);
+		}
+
+		@Override
+		public void onRetry(int attempt, Exception cause) {
+			events.add("retry " + attempt);
+			retries.add(attempt);
+			causes.add((MetadefenderClientException) cause);
+		}
+	}
+}
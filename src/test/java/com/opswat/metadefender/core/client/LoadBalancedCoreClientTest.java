@@ -0,0 +1,267 @@
+package com.opswat.metadefender.core.client;
+
+import com.opswat.metadefender.core.client.exceptions.MetadefenderClientException;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LoadBalancedCoreClientTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private LoadBalancedCoreClient loadBalancer;
+
+	@After
+	public void tearDown() {
+		if(loadBalancer != null) {
+			loadBalancer.close();
+		}
+	}
+
+	@Test
+	public void ejectsNodeAfterConnectionFailures() throws Exception {
+		FailingConnector first = new FailingConnector(0);
+		FailingConnector second = new FailingConnector(0);
+		loadBalancer = newLoadBalancer(first, second);
+		Path file = newFile();
+
+		// every upload tries both nodes
+		scanExpectingFailure(file);
+		scanExpectingFailure(file);
+
+		assertFalse(loadBalancer.getNodes().get(0).isHealthy());
+		assertFalse(loadBalancer.getNodes().get(1).isHealthy());
+		assertEquals(0, loadBalancer.getNodes().get(0).getInFlight());
+	}
+
+	@Test
+	public void clientErrorsDoNotEject() throws Exception {
+		FailingConnector connector = new FailingConnector(400);
+		loadBalancer = newLoadBalancer(connector);
+		Path file = newFile();
+
+		for(int i = 0; i < 3; i++) {
+			scanExpectingFailure(file);
+		}
+		assertTrue(loadBalancer.getNodes().get(0).isHealthy());
+		assertEquals(3, connector.uploads);
+	}
+
+	@Test
+	public void clientErrorFailsWithoutFailover() throws Exception {
+		FailingConnector first = new FailingConnector(400);
+		FailingConnector second = new FailingConnector(400);
+		loadBalancer = newLoadBalancer(first, second);
+
+		try {
+			loadBalancer.scanFileAsync(newFile(), null, new FixedPollingPolicy(100).newSchedule(null, -1));
+			fail("the upload is rejected");
+		} catch (MetadefenderClientException e) {
+			assertEquals(400, e.responseCode);
+		}
+		assertEquals(1, first.uploads + second.uploads);
+	}
+
+	@Test
+	public void serverErrorFailsOverToTheNextNode() throws Exception {
+		FailingConnector failing = new FailingConnector(503);
+		FakeCoreConnector working = new FakeCoreConnector();
+		loadBalancer = newLoadBalancer(failing, working);
+		// equal scores, the first node is tried first
+
+		loadBalancer.scanFileSync(newFile(), null, new FixedPollingPolicy(5).newSchedule(null, -1), 5000);
+		assertEquals(1, failing.uploads);
+		assertEquals(1, working.getUploads());
+	}
+
+	@Test
+	public void successfulUploadRestoresEjectedNode() throws Exception {
+		FailingConnector failing = new FailingConnector(503);
+		loadBalancer = newLoadBalancer(failing);
+		Path file = newFile();
+		scanExpectingFailure(file);
+		scanExpectingFailure(file);
+		assertFalse(loadBalancer.getNodes().get(0).isHealthy());
+
+		failing.recovered = true;
+		loadBalancer.scanFileAsync(file, null, new FixedPollingPolicy(100).newSchedule(null, -1)).cancel(true);
+
+		assertTrue(loadBalancer.getNodes().get(0).isHealthy());
+	}
+
+	@Test
+	public void unreadableFileIsNotNodeFailure() throws Exception {
+		FailingConnector connector = new FailingConnector(0);
+		loadBalancer = newLoadBalancer(connector);
+		Path missing = folder.getRoot().toPath().resolve("missing.bin");
+
+		for(int i = 0; i < 3; i++) {
+			try {
+				loadBalancer.scanFileAsync(missing, null, new FixedPollingPolicy(100).newSchedule(null, -1));
+				fail("the file does not exist");
+			} catch (MetadefenderClientException e) {
+				assertTrue(e.getMessage().startsWith("Cannot open file"));
+			}
+		}
+		assertTrue(loadBalancer.getNodes().get(0).isHealthy());
+		assertEquals(0, connector.uploads);
+	}
+
+	@Test
+	public void failedReadOfInputIsNotNodeFailure() throws Exception {
+		loadBalancer = newLoadBalancer(new ReadingConnector());
+
+		for(int i = 0; i < 3; i++) {
+			InputStream broken = new InputStream() {
+				@Override
+				public int read() throws IOException {
+					throw new IOException("disk error");
+				}
+			};
+			try {
+				loadBalancer.scanFileAsync(broken, null, new FixedPollingPolicy(100).newSchedule(null, -1));
+				fail("the input cannot be read");
+			} catch (MetadefenderClientException e) {
+				// expected
+			}
+		}
+		assertTrue(loadBalancer.getNodes().get(0).isHealthy());
+	}
+
+	@Test
+	public void closedClientIsNotNodeFailure() throws Exception {
+		loadBalancer = newLoadBalancer(new FailingConnector(0));
+		loadBalancer.getNodes().get(0).getClient().close();
+
+		for(int i = 0; i < 3; i++) {
+			scanExpectingFailure(newFile());
+		}
+		assertTrue(loadBalancer.getNodes().get(0).isHealthy());
+	}
+
+	@Test
+	public void routesToLeastRecentlyFailedNodeWhenAllAreEjected() throws Exception {
+		FailingConnector first = new FailingConnector(503);
+		FailingConnector second = new FailingConnector(503);
+		loadBalancer = newLoadBalancer(first, second);
+		Path file = newFile();
+
+		scanExpectingFailure(file);
+		Thread.sleep(5);
+		scanExpectingFailure(file);
+		assertFalse(loadBalancer.getNodes().get(0).isHealthy());
+		assertFalse(loadBalancer.getNodes().get(1).isHealthy());
+
+		// the first node failed first, it is tried first; failing fast would not reach any node
+		first.uploads = 0;
+		second.uploads = 0;
+		try {
+			loadBalancer.scanFileAsync(new ByteArrayInputStream(new byte[] {1}), null, new FixedPollingPolicy(100).newSchedule(null, -1));
+			fail("both nodes still fail");
+		} catch (MetadefenderClientException e) {
+			assertEquals(503, e.responseCode);
+		}
+		assertEquals(1, first.uploads);
+		assertEquals(0, second.uploads);
+	}
+
+	@Test
+	public void uncheckedFailureReleasesInFlightSlot() throws Exception {
+		loadBalancer = newLoadBalancer(new HttpConnector() {
+			@Override
+			public HttpResponse sendRequest(String url, String method, InputStream inputStream, Map<String, String> headers) {
+				throw new IllegalStateException("connector bug");
+			}
+		});
+
+		try {
+			loadBalancer.scanFileAsync(new ByteArrayInputStream(new byte[] {1}), null, new FixedPollingPolicy(100).newSchedule(null, -1));
+			fail("the connector throws");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		assertEquals(0, loadBalancer.getNodes().get(0).getInFlight());
+	}
+
+	private LoadBalancedCoreClient newLoadBalancer(HttpConnector... connectors) {
+		MetadefenderCoreClient[] clients = new MetadefenderCoreClient[connectors.length];
+		for(int i = 0; i < connectors.length; i++) {
+			clients[i] = new MetadefenderCoreClient("http://node" + i + ":8008");
+			clients[i].setHttpConnector(connectors[i]);
+		}
+		// no background probes during a test
+		return new LoadBalancedCoreClient(Arrays.asList(clients), 60000);
+	}
+
+	private Path newFile() throws IOException {
+		Path file = folder.newFile().toPath();
+		Files.write(file, new byte[] {1, 2, 3});
+		return file;
+	}
+
+	private void scanExpectingFailure(Path file) {
+		try {
+			loadBalancer.scanFileAsync(file, null, new FixedPollingPolicy(100).newSchedule(null, -1));
+			fail("every upload fails");
+		} catch (MetadefenderClientException e) {
+			// expected
+		}
+	}
+
+
+	private static class FailingConnector extends HttpConnector {
+
+		private final int responseCode;
+		private volatile int uploads = 0;
+		// answers like a working node from then on
+		private volatile boolean recovered = false;
+
+		FailingConnector(int responseCode) {
+			this.responseCode = responseCode;
+		}
+
+		@Override
+		public HttpResponse sendRequest(String url, String method, InputStream inputStream, Map<String, String> headers) throws MetadefenderClientException {
+			uploads++;
+			if(recovered) {
+				return new HttpResponse("{\"data_id\":\"" + uploads + "\"}", 200);
+			}
+			throw new MetadefenderClientException("upload failed", responseCode);
+		}
+	}
+
+	/**
+	 * Reads the upload like a real connector and reports a failed read as a connection error.
+	 */
+	private static class ReadingConnector extends HttpConnector {
+
+		@Override
+		public HttpResponse sendRequest(String url, String method, InputStream inputStream, Map<String, String> headers) throws MetadefenderClientException {
+			try {
+				byte[] buffer = new byte[1024];
+				while(inputStream.read(buffer, 0, buffer.length) != -1) {
+					// discard
+				}
+			} catch (IOException e) {
+				throw new MetadefenderClientException("Connection error: " + e.getMessage(), 0);
+			}
+			throw new MetadefenderClientException("unexpected end of upload", 0);
+		}
+	}
+}
@@ -0,0 +1,182 @@
+package com.opswat.metadefender.core.client;
+
+import com.opswat.metadefender.core.client.exceptions.MetadefenderClientException;
+import com.opswat.metadefender.core.client.responses.EngineVersion;
+import com.opswat.metadefender.core.client.responses.ScanRule;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MetadataCacheTest {
+
+	private static final String NEW_DEF_TIME = "2017-02-01T00:00:00.000Z";
+	// NEW_DEF_TIME in millis
+	private static final long NEW_DEF_TIME_MILLIS = 1485907200000L;
+
+	private final EnginesConnector connector = new EnginesConnector();
+	private final MetadefenderCoreClient client = new MetadefenderCoreClient("http://fake-core:8008");
+	private MetadataCache cache;
+
+	@After
+	public void tearDown() {
+		connector.open();
+		if(cache != null) {
+			cache.close();
+		}
+		client.close();
+	}
+
+	@Test
+	public void firstReadDoesNotWaitForTheServer() throws Exception {
+		cache = newCache(60000, 1000);
+		connector.hold();
+
+		long start = System.currentTimeMillis();
+		assertEquals(-1, cache.getLatestDefinitionTime());
+		assertNull(cache.getEngineVersions());
+		assertTrue(System.currentTimeMillis() - start < 1000);
+
+		connector.open();
+		assertTrue(cache.awaitLoaded(5000));
+		assertEquals(FakeCoreConnector.DEF_TIME_MILLIS, cache.getLatestDefinitionTime());
+		assertEquals(1, connector.engineRequests.get());
+	}
+
+	@Test
+	public void failedLoadIsRetriedAfterTheRetryDelayOnly() throws Exception {
+		cache = newCache(60000, 300);
+		connector.setEnginesAvailable(false);
+		connector.hold();
+
+		assertNull(cache.getEngineVersions());
+		connector.open();
+		assertFalse(cache.awaitLoaded(100));
+		for(int i = 0; i < 10; i++) {
+			try {
+				cache.getEngineVersions();
+				fail("the load failed");
+			} catch (MetadefenderClientException e) {
+				assertEquals(500, e.responseCode);
+			}
+		}
+		assertEquals(1, connector.engineRequests.get());
+
+		connector.setEnginesAvailable(true);
+		assertTrue(cache.awaitLoaded(5000));
+		assertEquals(2, connector.engineRequests.get());
+		assertEquals(1, cache.getEngineVersions().size());
+	}
+
+	@Test
+	public void staleValueIsServedWhileRefreshing() throws Exception {
+		cache = newCache(50, 1000);
+		assertTrue(cache.awaitLoaded(5000));
+
+		connector.hold();
+		connector.defTime = NEW_DEF_TIME;
+		Thread.sleep(100);
+
+		// the refresh waits for the server, readers get the last known value at once
+		long start = System.currentTimeMillis();
+		assertEquals(FakeCoreConnector.DEF_TIME_MILLIS, cache.getLatestDefinitionTime());
+		assertTrue(System.currentTimeMillis() - start < 50);
+
+		connector.open();
+		awaitDefinitionTime(NEW_DEF_TIME_MILLIS);
+	}
+
+	@Test
+	public void listenersAreNotifiedOfChangesOnly() throws Exception {
+		cache = newCache(50, 1000);
+		final List<Long> notified = new CopyOnWriteArrayList<Long>();
+		cache.addListener(new MetadataChangeListener() {
+			@Override
+			public void onEngineDefinitionsChanged(List<EngineVersion> engineVersions, long latestDefinitionTime) {
+				notified.add(latestDefinitionTime);
+			}
+
+			@Override
+			public void onScanRulesChanged(List<ScanRule> scanRules) {
+				// not served by the connector
+			}
+		});
+
+		assertTrue(cache.awaitLoaded(5000));
+		// periodic refreshes of the same definitions
+		Thread.sleep(200);
+		assertEquals(1, notified.size());
+		assertTrue(connector.engineRequests.get() > 1);
+
+		connector.defTime = NEW_DEF_TIME;
+		awaitDefinitionTime(NEW_DEF_TIME_MILLIS);
+		assertEquals(2, notified.size());
+		assertEquals(NEW_DEF_TIME_MILLIS, (long) notified.get(1));
+	}
+
+	private MetadataCache newCache(long ttl, long retryDelay) {
+		client.setHttpConnector(connector);
+		return new MetadataCache(client, ttl, retryDelay);
+	}
+
+	private void awaitDefinitionTime(long expected) throws Exception {
+		long deadline = System.currentTimeMillis() + 5000;
+		while(cache.getLatestDefinitionTime() != expected && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertEquals(expected, cache.getLatestDefinitionTime());
+	}
+
+
+	/**
+	 * Answers /stat/engines with a changeable def_time, the answers can be held.
+	 */
+	private static class EnginesConnector extends FakeCoreConnector {
+
+		private final AtomicInteger engineRequests = new AtomicInteger(0);
+		private volatile String defTime = DEF_TIME;
+		private volatile boolean enginesAvailable = true;
+		private volatile CountDownLatch gate = new CountDownLatch(0);
+
+		@Override
+		public HttpResponse sendRequest(String url, String method) throws MetadefenderClientException {
+			if(!url.endsWith("/stat/engines")) {
+				return super.sendRequest(url, method);
+			}
+			engineRequests.incrementAndGet();
+			try {
+				gate.await(5, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				throw new MetadefenderClientException("interrupted");
+			}
+			if(!enginesAvailable) {
+				return new HttpResponse("{\"err\":\"engines unavailable\"}", 500);
+			}
+			return new HttpResponse("[{\"eng_id\":\"engine0\",\"eng_name\":\"Engine0\",\"def_time\":\"" + defTime + "\",\"active\":true}]", 200);
+		}
+
+		@Override
+		public void setEnginesAvailable(boolean enginesAvailable) {
+			this.enginesAvailable = enginesAvailable;
+		}
+
+		void hold() {
+			gate = new CountDownLatch(1);
+		}
+
+		void open() {
+			gate.countDown();
+		}
+	}
+}
@@ -0,0 +1,260 @@
+package com.opswat.metadefender.core.client;
+
+import com.opswat.metadefender.core.client.exceptions.MetadefenderClientException;
+import com.opswat.metadefender.core.client.responses.FileScanResult;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MetadefenderCoreClientTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private FakeCoreConnector connector;
+	private ScanResultPoller poller;
+	private MetadefenderCoreClient client;
+
+	@Before
+	public void setUp() {
+		connector = new FakeCoreConnector();
+		poller = new ScanResultPoller(2, 4, 5);
+		client = new MetadefenderCoreClient("http://fake-core:8008");
+		client.setHttpConnector(connector);
+		client.setScanResultPoller(poller);
+	}
+
+	@After
+	public void tearDown() {
+		client.close();
+		poller.close();
+	}
+
+	@Test
+	public void scanFileAsyncCompletesOnceTheScanFinishes() throws Exception {
+		connector.setPollsUntilFinished(3);
+
+		CompletableFuture<FileScanResult> future = client.scanFileAsync(content(), new FileScanOptions(), 5);
+		FileScanResult result = future.get(5, TimeUnit.SECONDS);
+
+		assertEquals("1", result.data_id);
+		assertEquals(100, result.scan_results.progress_percentage);
+		assertEquals("Allowed", result.process_info.result);
+		assertEquals(3, connector.getPolls());
+		assertEquals(0, client.getPendingScanCount());
+	}
+
+	@Test
+	public void intermediatePollsBuildNoResultObjects() throws Exception {
+		connector.setPollsUntilFinished(3);
+		final AtomicInteger partialResults = new AtomicInteger(0);
+		final AtomicInteger progressPolls = new AtomicInteger(0);
+		PollingSchedule schedule = new PollingSchedule() {
+			@Override
+			public long nextDelay(FileScanResult lastResult, long elapsed) {
+				if(lastResult != null) {
+					partialResults.incrementAndGet();
+				}
+				return 5;
+			}
+
+			@Override
+			public long nextDelayAfter(ScanProgress lastProgress, long elapsed) {
+				progressPolls.incrementAndGet();
+				return 5;
+			}
+
+			@Override
+			public void finished(FileScanResult result, long elapsed) {
+			}
+		};
+
+		client.scanFileAsync(content(), new FileScanOptions(), schedule).get(5, TimeUnit.SECONDS);
+
+		assertEquals(0, partialResults.get());
+		assertEquals(2, progressPolls.get());
+	}
+
+	@Test
+	public void cancellingStopsPolling() throws Exception {
+		connector.setPollsUntilFinished(Integer.MAX_VALUE);
+
+		CompletableFuture<FileScanResult> future = client.scanFileAsync(content(), new FileScanOptions(), 5);
+		Thread.sleep(50);
+		future.cancel(true);
+		awaitNoPendingPolls();
+
+		int polls = connector.getPolls();
+		Thread.sleep(50);
+		assertEquals(polls, connector.getPolls());
+		assertEquals(0, client.getPendingScanCount());
+	}
+
+	@Test
+	public void scanFileSyncWaitsForTheResult() throws Exception {
+		connector.setPollsUntilFinished(2);
+
+		FileScanResult result = client.scanFileSync(content(), new FileScanOptions(), 5, 5000);
+
+		assertEquals(100, result.scan_results.progress_percentage);
+		assertEquals(2, connector.getPolls());
+	}
+
+	@Test
+	public void scanFileSyncStopsPollingOnTimeout() throws Exception {
+		connector.setPollsUntilFinished(Integer.MAX_VALUE);
+		Path file = folder.newFile("sample.txt").toPath();
+		Files.write(file, new byte[] {1, 2, 3});
+
+		try {
+			client.scanFileSync(file, new FileScanOptions(), schedule(), 50);
+			fail("the scan never finishes");
+		} catch (TimeoutException expected) {
+			// the future was cancelled, the poller drops the scan
+		}
+		awaitNoPendingPolls();
+		assertEquals(0, client.getPendingScanCount());
+	}
+
+	@Test
+	public void closeCancelsPendingScansAndRejectsNewOnes() throws Exception {
+		connector.setPollsUntilFinished(Integer.MAX_VALUE);
+		CompletableFuture<FileScanResult> future = client.scanFileAsync(content(), new FileScanOptions(), 5);
+
+		client.close();
+
+		assertTrue(client.isClosed());
+		assertTrue(future.isCancelled());
+		assertEquals(0, client.getPendingScanCount());
+		awaitNoPendingPolls();
+		try {
+			client.scanFile(content(), new FileScanOptions());
+			fail("a closed client must reject scans");
+		} catch (MetadefenderClientException expected) {
+			assertEquals(1, connector.getUploads());
+		}
+	}
+
+	@Test
+	public void closingThePollerCancelsItsScans() throws Exception {
+		connector.setPollsUntilFinished(Integer.MAX_VALUE);
+		CompletableFuture<FileScanResult> future = client.scanFileAsync(content(), new FileScanOptions(), 5);
+
+		poller.close();
+
+		try {
+			future.get(5, TimeUnit.SECONDS);
+			fail("the scan must be cancelled");
+		} catch (CancellationException expected) {
+			// cancelled on the loop thread
+		}
+		assertEquals(0, poller.getPendingCount());
+		assertFalse(client.isClosed());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void sharedPollerCannotBeClosed() {
+		ScanResultPoller.getShared().close();
+	}
+
+	@Test
+	public void sessionIsSharedAndRenewedOnUnauthorized() throws Exception {
+		final MetadefenderCoreClient loggedIn = newLoggedInClient();
+		try {
+			assertEquals("4.0.0", loggedIn.getVersion().version);
+			assertEquals("test", loggedIn.getCurrentLicenseInformation().licensed_to);
+			assertTrue(loggedIn.validateCurrentSession());
+			assertEquals(1, connector.getLogins());
+			assertEquals(2, connector.getAuthenticatedRequests());
+
+			// every thread finds the session expired at once, a single one logs in again
+			connector.expireSessions();
+			ExecutorService threads = Executors.newFixedThreadPool(4);
+			try {
+				List<Future<String>> versions = new ArrayList<Future<String>>();
+				for(int i = 0; i < 8; i++) {
+					versions.add(threads.submit(new Callable<String>() {
+						@Override
+						public String call() throws Exception {
+							return loggedIn.getVersion().version;
+						}
+					}));
+				}
+				for(Future<String> version : versions) {
+					assertEquals("4.0.0", version.get(5, TimeUnit.SECONDS));
+				}
+			} finally {
+				threads.shutdownNow();
+			}
+			assertEquals(2, connector.getLogins());
+			assertEquals("session-2", loggedIn.getSessionId());
+		} finally {
+			loggedIn.close();
+		}
+	}
+
+	@Test
+	public void noReloginAfterLogout() throws Exception {
+		MetadefenderCoreClient loggedIn = newLoggedInClient();
+		try {
+			loggedIn.logout();
+			try {
+				loggedIn.getVersion();
+				fail("the client logged out");
+			} catch (MetadefenderClientException expected) {
+				assertEquals(0, connector.getAuthenticatedRequests());
+			}
+			assertEquals(1, connector.getLogins());
+			assertEquals(1, connector.getLogouts());
+		} finally {
+			loggedIn.close();
+		}
+	}
+
+	private MetadefenderCoreClient newLoggedInClient() throws MetadefenderClientException {
+		MetadefenderCoreClient loggedIn = new MetadefenderCoreClient("http://fake-core:8008");
+		loggedIn.setHttpConnector(connector);
+		loggedIn.login("admin", "admin");
+		return loggedIn;
+	}
+
+	private static PollingSchedule schedule() {
+		return new FixedPollingPolicy(5).newSchedule("sample.txt", 3);
+	}
+
+	private void awaitNoPendingPolls() throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while(poller.getPendingCount() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertEquals(0, poller.getPendingCount());
+	}
+
+	private static InputStream content() {
+		return new ByteArrayInputStream(new byte[] {1, 2, 3});
+	}
+}
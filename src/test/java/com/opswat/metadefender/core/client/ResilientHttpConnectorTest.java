@@ -0,0 +1,170 @@
+package com.opswat.metadefender.core.client;
+
+import com.opswat.metadefender.core.client.exceptions.MetadefenderClientException;
+
+import com.opswat.metadefender.core.client.responses.FileScanResult;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ResilientHttpConnectorTest {
+
+	private final FailingConnector delegate = new FailingConnector();
+	private final ResilientHttpConnector connector = new ResilientHttpConnector(delegate, new RetryPolicy(2, 1, 1), 100, 1000);
+
+	@Test
+	public void retriesIdempotentRequests() {
+		send("http://localhost:8008/hash/abc", "GET");
+		assertEquals(3, delegate.requests);
+	}
+
+	@Test
+	public void retriesDirectScanResultFetchesAndScanRules() {
+		send("http://localhost:8008/file/data-id", "GET");
+		assertEquals(3, delegate.requests);
+		send("http://localhost:8008/file/rules", "GET");
+		assertEquals(6, delegate.requests);
+	}
+
+	@Test
+	public void doesNotRetryPollsOfTheScanResultPoller() throws Exception {
+		MetadefenderCoreClient client = new MetadefenderCoreClient("http://localhost:8008");
+		client.setHttpConnector(connector);
+		ScanResultPoller poller = new ScanResultPoller(1, 1, 5);
+		poller.setRetryPolicy(new RetryPolicy(0, 1, 1));
+		client.setScanResultPoller(poller);
+		try {
+			CompletableFuture<FileScanResult> future = client.pollScanResult("data-id", new FixedPollingPolicy(5).newSchedule(null, -1));
+			try {
+				future.get(5, TimeUnit.SECONDS);
+				fail("the delegate fails every request");
+			} catch (ExecutionException e) {
+				assertEquals(FailingConnector.MESSAGE, e.getCause().getMessage());
+			}
+			assertEquals(1, delegate.requests);
+		} finally {
+			client.close();
+			poller.close();
+		}
+	}
+
+	@Test
+	public void doesNotRetryOtherMethods() {
+		send("http://localhost:8008/file", "POST");
+		assertEquals(1, delegate.requests);
+	}
+
+	@Test
+	public void failsFastWhileOpen() {
+		ResilientHttpConnector breaking = new ResilientHttpConnector(delegate, new RetryPolicy(0, 1, 1), 1, 60000);
+		try {
+			breaking.sendRequest("http://localhost:8008/file/data-id", "GET");
+			fail("the delegate fails every request");
+		} catch (MetadefenderClientException e) {
+			assertEquals(FailingConnector.MESSAGE, e.getMessage());
+		}
+		try {
+			breaking.sendRequest("http://localhost:8008/hash/abc", "GET");
+			fail("the circuit breaker of the end point is open");
+		} catch (MetadefenderClientException e) {
+			assertEquals(ResilientHttpConnector.SERVICE_UNAVAILABLE, e.responseCode);
+		}
+		assertEquals(1, delegate.requests);
+	}
+
+	@Test
+	public void clientErrorsDoNotCount() throws Exception {
+		ResilientHttpConnector breaking = new ResilientHttpConnector(new HttpConnector() {
+			@Override
+			public HttpResponse sendRequest(String url, String method) throws MetadefenderClientException {
+				throw new MetadefenderClientException("not found", 404);
+			}
+		}, new RetryPolicy(2, 1, 1), 1, 60000);
+
+		for(int i = 0; i < 3; i++) {
+			try {
+				breaking.sendRequest("http://localhost:8008/hash/abc", "GET");
+				fail("the delegate rejects every request");
+			} catch (MetadefenderClientException e) {
+				assertEquals(404, e.responseCode);
+			}
+		}
+		assertEquals(CircuitBreaker.State.CLOSED, breaking.getCircuitBreaker("http://localhost:8008").getState());
+	}
+
+	@Test
+	public void localFailuresDoNotCount() throws Exception {
+		ResilientHttpConnector breaking = new ResilientHttpConnector(new HttpConnector() {
+			@Override
+			public HttpResponse sendRequest(String url, String method) {
+				throw new IllegalStateException("connector bug");
+			}
+
+			@Override
+			public HttpResponse sendRequest(String url, String method, InputStream inputStream, Map<String, String> headers) throws MetadefenderClientException {
+				try {
+					inputStream.read(new byte[1024], 0, 1024);
+				} catch (IOException e) {
+					throw new MetadefenderClientException("Connection error: " + e.getMessage(), 0);
+				}
+				return new HttpResponse("{}", 200);
+			}
+		}, new RetryPolicy(2, 1, 1), 1, 60000);
+
+		try {
+			breaking.sendRequest("http://localhost:8008/hash/abc", "GET");
+			fail("the delegate throws");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		try {
+			breaking.sendRequest("http://localhost:8008/file", "POST", new InputStream() {
+				@Override
+				public int read() throws IOException {
+					throw new IOException("disk error");
+				}
+			}, null);
+			fail("the body cannot be read");
+		} catch (MetadefenderClientException e) {
+			assertTrue(e.getMessage().startsWith("Connection error"));
+		}
+		assertEquals(CircuitBreaker.State.CLOSED, breaking.getCircuitBreaker("http://localhost:8008").getState());
+
+		// the breaker still works
+		assertEquals(200, breaking.sendRequest("http://localhost:8008/file", "POST", new ByteArrayInputStream(new byte[] {1}), null).responseCode);
+	}
+
+	private void send(String url, String method) {
+		try {
+			connector.sendRequest(url, method);
+			fail("the delegate fails every request");
+		} catch (MetadefenderClientException e) {
+			assertEquals(FailingConnector.MESSAGE, e.getMessage());
+		}
+	}
+
+
+	private static class FailingConnector extends HttpConnector {
+
+		static final String MESSAGE = "no answer";
+
+		private volatile int requests = 0;
+
+		@Override
+		public HttpResponse sendRequest(String url, String method) throws MetadefenderClientException {
+			requests++;
+			throw new MetadefenderClientException(MESSAGE);
+		}
+	}
+}
@@ -0,0 +1,188 @@
+package com.opswat.metadefender.core.client;
+
+import com.opswat.metadefender.core.client.exceptions.MetadefenderClientException;
+import com.opswat.metadefender.core.client.responses.FileScanResult;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ScanQueueTest {
+
+	private BlockingConnector connector;
+	private MetadefenderCoreClient client;
+	private ScanQueue scanQueue;
+
+	@Before
+	public void setUp() {
+		connector = new BlockingConnector();
+		client = new MetadefenderCoreClient("http://localhost:1");
+		client.setHttpConnector(connector);
+	}
+
+	@After
+	public void tearDown() {
+		connector.release(100);
+		if(scanQueue != null) {
+			scanQueue.close();
+		}
+	}
+
+	@Test
+	public void rejectsAtOnceWhenFull() throws Exception {
+		scanQueue = new ScanQueue(client, 1, 1, ScanQueue.OverflowPolicy.REJECT, 0);
+		submit();
+		connector.awaitUploads(1);
+		submit();
+
+		long start = System.currentTimeMillis();
+		try {
+			submit();
+			fail("the third scan fits neither the uploader nor the queue");
+		} catch (MetadefenderClientException e) {
+			assertTrue(e.getMessage().startsWith("Scan queue is full"));
+		}
+		assertTrue(System.currentTimeMillis() - start < 1000);
+		assertEquals(1, scanQueue.getRejectedCount());
+		assertEquals(1, scanQueue.getQueuedCount());
+	}
+
+	@Test
+	public void blockRejectsAfterTimeout() throws Exception {
+		scanQueue = new ScanQueue(client, 1, 1, ScanQueue.OverflowPolicy.BLOCK, 200);
+		submit();
+		connector.awaitUploads(1);
+		submit();
+
+		long start = System.currentTimeMillis();
+		try {
+			submit();
+			fail("the queue stayed full for the whole block timeout");
+		} catch (MetadefenderClientException e) {
+			assertTrue(e.getMessage().startsWith("Scan queue is full"));
+		}
+		assertTrue(System.currentTimeMillis() - start >= 190);
+		assertEquals(1, scanQueue.getRejectedCount());
+	}
+
+	@Test
+	public void blockWaitsForSpace() throws Exception {
+		scanQueue = new ScanQueue(client, 1, 1, ScanQueue.OverflowPolicy.BLOCK, 5000);
+		CompletableFuture<FileScanResult> first = submit();
+		connector.awaitUploads(1);
+		submit();
+
+		// the first upload finishes in a moment, the uploader takes the queued scan and makes space
+		connector.release(1);
+		CompletableFuture<FileScanResult> third = submit();
+
+		assertUploadFailed(first);
+		assertEquals(0, scanQueue.getRejectedCount());
+		connector.release(2);
+		assertUploadFailed(third);
+	}
+
+	@Test
+	public void dropsScansCancelledWhileQueued() throws Exception {
+		scanQueue = new ScanQueue(client, 2, 1, ScanQueue.OverflowPolicy.REJECT, 0);
+		CompletableFuture<FileScanResult> first = submit();
+		connector.awaitUploads(1);
+		CompletableFuture<FileScanResult> cancelled = submit();
+		CompletableFuture<FileScanResult> last = submit();
+		cancelled.cancel(true);
+
+		connector.release(2);
+		assertUploadFailed(first);
+		assertUploadFailed(last);
+		assertEquals(1, scanQueue.getDroppedCount());
+		assertEquals(2, connector.getUploads());
+	}
+
+	@Test
+	public void closeCancelsQueuedScans() throws Exception {
+		scanQueue = new ScanQueue(client, 1, 1, ScanQueue.OverflowPolicy.REJECT, 0);
+		submit();
+		connector.awaitUploads(1);
+		CompletableFuture<FileScanResult> queued = submit();
+
+		scanQueue.close();
+		assertTrue(queued.isCancelled());
+		try {
+			submit();
+			fail("a closed queue takes no scans");
+		} catch (MetadefenderClientException e) {
+			assertEquals("Scan queue is closed", e.getMessage());
+		}
+	}
+
+	@Test
+	public void uploadsWithItsClient() {
+		scanQueue = new ScanQueue(client, 1, 1, ScanQueue.OverflowPolicy.REJECT, 0);
+		assertSame(client, scanQueue.getClient());
+	}
+
+	private CompletableFuture<FileScanResult> submit() throws MetadefenderClientException, InterruptedException {
+		InputStream content = new ByteArrayInputStream(new byte[] {1, 2, 3});
+		return scanQueue.submit(content, new FileScanOptions(), new FixedPollingPolicy(100).newSchedule(null, -1), ScanQueue.Priority.NORMAL);
+	}
+
+	private static void assertUploadFailed(CompletableFuture<FileScanResult> future) throws Exception {
+		try {
+			future.get(5, TimeUnit.SECONDS);
+			fail("the test connector fails every upload");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof MetadefenderClientException);
+		}
+	}
+
+
+	/**
+	 * Holds every upload until released, then fails it.
+	 */
+	private static class BlockingConnector extends HttpConnector {
+
+		private final Semaphore releases = new Semaphore(0);
+		private final Semaphore started = new Semaphore(0);
+		private volatile int uploads = 0;
+
+		@Override
+		public HttpResponse sendRequest(String url, String method, InputStream inputStream, Map<String, String> headers) throws MetadefenderClientException {
+			uploads++;
+			started.release();
+			try {
+				if(!releases.tryAcquire(10, TimeUnit.SECONDS)) {
+					throw new MetadefenderClientException("upload was never released");
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			throw new MetadefenderClientException("test upload failed");
+		}
+
+		void awaitUploads(int count) throws InterruptedException {
+			assertTrue(started.tryAcquire(count, 5, TimeUnit.SECONDS));
+			started.release(count);
+		}
+
+		void release(int count) {
+			releases.release(count);
+		}
+
+		int getUploads() {
+			return uploads;
+		}
+	}
+}
@@ -0,0 +1,135 @@
+package com.opswat.metadefender.core.client;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.opswat.metadefender.core.client.exceptions.MetadefenderClientException;
+import com.opswat.metadefender.core.client.responses.EngineScanDetail;
+import com.opswat.metadefender.core.client.responses.FileScanResult;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The single-pass parsing of scan results must bind the same values as a plain ObjectMapper, the way the client
+ * parsed them before.
+ */
+public class ScanResultParsingTest {
+
+	private static final ObjectMapper PLAIN_MAPPER = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+	private static final String BLOCKED = FakeCoreConnector.resultJson("data-1", 100, "Blocked", FakeCoreConnector.DEF_TIME);
+
+	// file_info first, unknown fields and engines in another order than the bean
+	private static final String REORDERED = "{\"file_info\":{\"display_name\":\"sample.exe\",\"file_size\":1234," +
+			"\"file_type\":\"application/x-dosexec\",\"sha256\":\"ABCDEF\",\"upload_timestamp\":\"2017-01-01T00:00:00.000Z\"}," +
+			"\"process_info\":{\"blocked_reason\":\"\",\"progress_percentage\":100,\"result\":\"Allowed\",\"post_processing\":{}}," +
+			"\"scan_results\":{\"scan_details\":{\"B\":{\"scan_time\":3,\"threat_found\":\"\",\"scan_result_i\":0," +
+			"\"def_time\":\"2017-01-02T00:00:00.000Z\"},\"A\":{\"location\":\"local\",\"def_time\":\"2017-01-01T00:00:00.000Z\"," +
+			"\"scan_result_i\":0,\"scan_time\":5,\"threat_found\":\"\",\"eng_id\":\"a\"}},\"total_time\":8,\"total_avs\":2," +
+			"\"start_time\":\"2017-01-01T00:00:00.000Z\",\"scan_all_result_i\":0,\"scan_all_result_a\":\"No Threat Detected\"," +
+			"\"progress_percentage\":100,\"data_id\":\"data-2\"},\"data_id\":\"data-2\",\"vulnerability_info\":{}}";
+
+	@Test
+	public void fetchScanResultBindsLikeObjectMapper() throws Exception {
+		assertSameResult(PLAIN_MAPPER.readValue(BLOCKED, FileScanResult.class), clientAnswering(BLOCKED).fetchScanResult("data-1"));
+		assertSameResult(PLAIN_MAPPER.readValue(REORDERED, FileScanResult.class), clientAnswering(REORDERED).fetchScanResult("data-2"));
+	}
+
+	@Test
+	public void finishedScanProgressHoldsTheSameResult() throws Exception {
+		ScanProgress progress = clientAnswering(REORDERED).fetchScanProgress("data-2");
+
+		assertTrue(progress.isFinished());
+		assertEquals(100, progress.getProgressPercentage());
+		assertEquals(0, progress.getScanAllResult());
+		assertSameResult(PLAIN_MAPPER.readValue(REORDERED, FileScanResult.class), progress.getResult());
+	}
+
+	@Test
+	public void runningScanProgressReadsTheProgressFieldsOnly() throws Exception {
+		String running = FakeCoreConnector.resultJson("data-1", 50, "Allowed", FakeCoreConnector.DEF_TIME);
+		FileScanResult plain = PLAIN_MAPPER.readValue(running, FileScanResult.class);
+
+		ScanProgress progress = clientAnswering(running).fetchScanProgress("data-1");
+
+		assertFalse(progress.isFinished());
+		assertNull(progress.getResult());
+		assertEquals(plain.scan_results.progress_percentage, progress.getProgressPercentage());
+		assertEquals(plain.scan_results.scan_all_result_i, progress.getScanAllResult());
+	}
+
+	@Test
+	public void unknownIdIsAnErrorOrNull() throws Exception {
+		MetadefenderCoreClient client = clientAnswering("{\"abc\":\"Not Found\"}");
+		try {
+			client.fetchScanResult("abc");
+			fail("the id is not found");
+		} catch (MetadefenderClientException e) {
+			assertEquals("Not Found", e.getMessage());
+		}
+		try {
+			client.fetchScanProgress("abc");
+			fail("the id is not found");
+		} catch (MetadefenderClientException e) {
+			assertEquals("Not Found", e.getMessage());
+		}
+		assertNull(client.findScanResultByHash("abc"));
+	}
+
+	@Test(expected = MetadefenderClientException.class)
+	public void malformedAnswerIsAnError() throws Exception {
+		clientAnswering("[1, 2]").fetchScanResult("data-1");
+	}
+
+	private static MetadefenderCoreClient clientAnswering(final String body) {
+		MetadefenderCoreClient client = new MetadefenderCoreClient("http://fake-core:8008");
+		client.setHttpConnector(new HttpConnector() {
+			@Override
+			public HttpResponse sendRequest(String url, String method) {
+				return new HttpResponse(body, 200);
+			}
+		});
+		return client;
+	}
+
+	private static void assertSameResult(FileScanResult expected, FileScanResult actual) {
+		assertEquals(expected.data_id, actual.data_id);
+		assertEquals(expected.isScanFinished(), actual.isScanFinished());
+
+		assertEquals(expected.scan_results.data_id, actual.scan_results.data_id);
+		assertEquals(expected.scan_results.progress_percentage, actual.scan_results.progress_percentage);
+		assertEquals(expected.scan_results.scan_all_result_a, actual.scan_results.scan_all_result_a);
+		assertEquals(expected.scan_results.scan_all_result_i, actual.scan_results.scan_all_result_i);
+		assertEquals(expected.scan_results.start_time, actual.scan_results.start_time);
+		assertEquals(expected.scan_results.total_avs, actual.scan_results.total_avs);
+		assertEquals(expected.scan_results.total_time, actual.scan_results.total_time);
+		assertEquals(expected.scan_results.scan_details.keySet(), actual.scan_results.scan_details.keySet());
+		for(String engine : expected.scan_results.scan_details.keySet()) {
+			EngineScanDetail expectedDetail = expected.scan_results.scan_details.get(engine);
+			EngineScanDetail actualDetail = actual.scan_results.scan_details.get(engine);
+			assertEquals(expectedDetail.def_time, actualDetail.def_time);
+			assertEquals(expectedDetail.location, actualDetail.location);
+			assertEquals(expectedDetail.scan_result_i, actualDetail.scan_result_i);
+			assertEquals(expectedDetail.scan_time, actualDetail.scan_time);
+			assertEquals(expectedDetail.threat_found, actualDetail.threat_found);
+		}
+
+		assertEquals(expected.process_info.result, actual.process_info.result);
+		assertEquals(expected.process_info.progress_percentage, actual.process_info.progress_percentage);
+		assertEquals(expected.process_info.blocked_reason, actual.process_info.blocked_reason);
+
+		if(expected.file_info == null) {
+			assertNull(actual.file_info);
+		} else {
+			assertEquals(expected.file_info.display_name, actual.file_info.display_name);
+			assertEquals(expected.file_info.file_size, actual.file_info.file_size);
+			assertEquals(expected.file_info.file_type, actual.file_info.file_type);
+			assertEquals(expected.file_info.sha256, actual.file_info.sha256);
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package com.opswat.metadefender.core.client;
+
+import com.opswat.metadefender.core.client.exceptions.MetadefenderClientException;
+import com.opswat.metadefender.core.client.responses.FileScanResult;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ScanResultPollerTest {
+
+	private final ScanResultPoller poller = new ScanResultPoller(1, 1, 5);
+
+	@After
+	public void tearDown() {
+		poller.close();
+	}
+
+	@Test
+	public void reschedulesFailedPollsUpToMaxRetries() throws Exception {
+		poller.setRetryPolicy(new RetryPolicy(3, 1, 1));
+		FailingConnector connector = new FailingConnector(503);
+
+		assertFailed(poll(connector), 503);
+		assertEquals(4, connector.polls);
+	}
+
+	@Test
+	public void failsAtOnceOnClientErrors() throws Exception {
+		poller.setRetryPolicy(new RetryPolicy(3, 1, 1));
+		FailingConnector connector = new FailingConnector(404);
+
+		assertFailed(poll(connector), 404);
+		assertEquals(1, connector.polls);
+	}
+
+	@Test
+	public void brokenScanDoesNotStopTheLoop() throws Exception {
+		MetadefenderCoreClient broken = new MetadefenderCoreClient("http://localhost:1") {
+			@Override
+			public String getApiEndPointUrl() {
+				throw new IllegalStateException("broken client");
+			}
+		};
+		CompletableFuture<FileScanResult> failing = poller.poll(broken, "data-id", 1);
+		try {
+			failing.get(5, TimeUnit.SECONDS);
+			fail("the scan of the broken client cannot be dispatched");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+
+		// the loop still serves later scans
+		FakeCoreConnector connector = new FakeCoreConnector();
+		MetadefenderCoreClient client = new MetadefenderCoreClient("http://fake-core:8008");
+		client.setHttpConnector(connector);
+		String dataId = client.scanFile(new ByteArrayInputStream(new byte[] {1}), new FileScanOptions());
+		FileScanResult result = poller.poll(client, dataId, 1).get(5, TimeUnit.SECONDS);
+		assertEquals(100, result.scan_results.progress_percentage);
+	}
+
+	private CompletableFuture<FileScanResult> poll(HttpConnector connector) {
+		MetadefenderCoreClient client = new MetadefenderCoreClient("http://localhost:1");
+		client.setHttpConnector(connector);
+		return poller.poll(client, "data-id", 1);
+	}
+
+	private static void assertFailed(CompletableFuture<FileScanResult> future, int responseCode) throws Exception {
+		try {
+			future.get(5, TimeUnit.SECONDS);
+			fail("the test connector fails every poll");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof MetadefenderClientException);
+			assertEquals(responseCode, ((MetadefenderClientException) e.getCause()).responseCode);
+		}
+	}
+
+
+	private static class FailingConnector extends HttpConnector {
+
+		private final int responseCode;
+		private volatile int polls = 0;
+
+		FailingConnector(int responseCode) {
+			this.responseCode = responseCode;
+		}
+
+		@Override
+		public HttpResponse sendRequest(String url, String method) throws MetadefenderClientException {
+			polls++;
+			throw new MetadefenderClientException("poll failed", responseCode);
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package com.opswat.metadefender.core.client;
+
+import org.junit.Test;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeFalse;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * The virtual variants fall back to daemon platform threads on runtimes without virtual threads, like Java 8.
+ * Each case runs on the runtimes it applies to.
+ */
+public class ScanThreadsTest {
+
+	private static final Method IS_VIRTUAL = findIsVirtual();
+
+	@Test
+	public void virtualThreadsAreSupportedFromJava21() {
+		assertEquals(javaVersion() >= 21, ScanThreads.isVirtualThreadSupported());
+	}
+
+	@Test
+	public void factoryFallsBackToNamedDaemonPlatformThreads() throws Exception {
+		assumeFalse(ScanThreads.isVirtualThreadSupported());
+		ThreadFactory threadFactory = ScanThreads.virtualThreadFactory("test-scan-");
+
+		Thread first = threadFactory.newThread(noop());
+		Thread second = threadFactory.newThread(noop());
+
+		assertEquals("test-scan-1", first.getName());
+		assertEquals("test-scan-2", second.getName());
+		assertTrue(first.isDaemon());
+		assertFalse(isVirtual(first));
+	}
+
+	@Test
+	public void executorFallsBackToDaemonPlatformThreads() throws Exception {
+		assumeFalse(ScanThreads.isVirtualThreadSupported());
+		ExecutorService executor = ScanThreads.newVirtualThreadPerTaskExecutor("test-executor-");
+		try {
+			Thread thread = executor.submit(currentThread()).get(5, TimeUnit.SECONDS);
+
+			assertTrue(thread.getName().startsWith("test-executor-"));
+			assertTrue(thread.isDaemon());
+			assertFalse(isVirtual(thread));
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void factoryAndExecutorUseVirtualThreadsWhenSupported() throws Exception {
+		assumeTrue(ScanThreads.isVirtualThreadSupported());
+		Thread thread = ScanThreads.virtualThreadFactory("test-scan-").newThread(noop());
+		assertEquals("test-scan-1", thread.getName());
+		assertTrue(isVirtual(thread));
+
+		ExecutorService executor = ScanThreads.newVirtualThreadPerTaskExecutor("test-executor-");
+		try {
+			assertTrue(isVirtual(executor.submit(currentThread()).get(5, TimeUnit.SECONDS)));
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void platformFactoryIgnoresVirtualThreadSupport() {
+		Thread thread = ScanThreads.platformThreadFactory("test-platform-").newThread(noop());
+		assertEquals("test-platform-1", thread.getName());
+		assertTrue(thread.isDaemon());
+		assertFalse(isVirtual(thread));
+	}
+
+	private static Runnable noop() {
+		return new Runnable() {
+			@Override
+			public void run() {
+			}
+		};
+	}
+
+	private static Callable<Thread> currentThread() {
+		return new Callable<Thread>() {
+			@Override
+			public Thread call() {
+				return Thread.currentThread();
+			}
+		};
+	}
+
+	private static boolean isVirtual(Thread thread) {
+		if(IS_VIRTUAL == null) {
+			return false;
+		}
+		try {
+			return (Boolean) IS_VIRTUAL.invoke(thread);
+		} catch (Exception e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	private static int javaVersion() {
+		String version = System.getProperty("java.specification.version");
+		// 1.8 before Java 9
+		return version.startsWith("1.") ? Integer.parseInt(version.substring(2)) : Integer.parseInt(version);
+	}
+
+	private static Method findIsVirtual() {
+		try {
+			return Thread.class.getMethod("isVirtual");
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,142 @@
+package com.opswat.metadefender.core.service;
+
+import com.opswat.metadefender.core.client.FakeCoreConnector;
+import com.opswat.metadefender.core.client.FixedPollingPolicy;
+import com.opswat.metadefender.core.client.MetadefenderCoreClient;
+import com.opswat.metadefender.core.client.ScanQueue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ArchiveScannerTest {
+
+    // 2017-01-01T00:00:00.000Z, the definitions of the fake server
+    private static final long CURRENT_DEFINITIONS = 1483228800000L;
+
+    private FakeCoreConnector connector;
+    private ScanQueue scanQueue;
+    private Path archive;
+
+    @Before
+    public void setUp() throws Exception {
+        connector = new FakeCoreConnector();
+        MetadefenderCoreClient client = new MetadefenderCoreClient("http://fake-core:8008");
+        client.setHttpConnector(connector);
+        scanQueue = new ScanQueue(client, 10, 2, ScanQueue.OverflowPolicy.REJECT, 0);
+
+        archive = Files.createTempFile("archive-test", ".zip");
+        try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(archive))) {
+            addEntry(zip, "a.txt", "first");
+            addEntry(zip, "dir/b.txt", "second");
+            addEntry(zip, "dir/copy-of-a.txt", "first");
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        scanQueue.close();
+        Files.deleteIfExists(archive);
+    }
+
+    @Test
+    public void uploadsEachUnknownContentOnce() throws Exception {
+        ArchiveVerdict verdict = new ArchiveScanner(scanQueue, new FixedPollingPolicy(10), 5000).scan(archive.toString());
+
+        assertEquals(3, verdict.getEntries().size());
+        assertEquals(2, verdict.getUploadedCount());
+        assertEquals(2, connector.getUploads());
+        assertTrue(verdict.isAllowed());
+    }
+
+    @Test
+    public void reusesScansWithCurrentDefinitions() throws Exception {
+        connector.addKnownHash(sha256("first"), "2017-01-01T00:00:00.000Z");
+
+        ArchiveVerdict verdict = new ArchiveScanner(scanQueue, new FixedPollingPolicy(10), 5000, CURRENT_DEFINITIONS)
+                .scan(archive.toString());
+
+        assertEquals(1, verdict.getUploadedCount());
+        assertEquals(1, connector.getUploads());
+        assertTrue(verdict.getEntries().get(0).isReused());
+        assertFalse(verdict.getEntries().get(1).isReused());
+    }
+
+    @Test
+    public void uploadsAgainScansWithOlderDefinitions() throws Exception {
+        connector.addKnownHash(sha256("first"), "2016-06-01T00:00:00.000Z");
+
+        ArchiveVerdict verdict = new ArchiveScanner(scanQueue, new FixedPollingPolicy(10), 5000, CURRENT_DEFINITIONS)
+                .scan(archive.toString());
+
+        assertEquals(2, verdict.getUploadedCount());
+        assertFalse(verdict.getEntries().get(0).isReused());
+    }
+
+    @Test
+    public void fullQueueBlocksTheCallerAndNotTheSharedLookups() throws Exception {
+        Path large = Files.createTempFile("archive-test-large", ".zip");
+        try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(large))) {
+            for (int i = 0; i < 12; i++) {
+                addEntry(zip, "entry-" + i + ".txt", "content " + i);
+            }
+        }
+        connector.holdUploads();
+        final String largeFile = large.toString();
+        final ScanQueue blocking = new ScanQueue(scanQueue.getClient(), 1, 1, ScanQueue.OverflowPolicy.BLOCK, 10000);
+        ExecutorService caller = Executors.newSingleThreadExecutor();
+        try {
+            Future<ArchiveVerdict> blocked = caller.submit(new Callable<ArchiveVerdict>() {
+                @Override
+                public ArchiveVerdict call() throws Exception {
+                    return new ArchiveScanner(blocking, new FixedPollingPolicy(10), 10000).scan(largeFile);
+                }
+            });
+            // one upload held, one queued, the caller waits for space
+            assertTrue(connector.awaitUploads(1, 5000));
+            long deadline = System.currentTimeMillis() + 5000;
+            while (blocking.getQueuedCount() < 1 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+
+            // an archive of known content only needs the lookup pool
+            connector.addKnownHash(sha256("first"), "2017-01-01T00:00:00.000Z");
+            connector.addKnownHash(sha256("second"), "2017-01-01T00:00:00.000Z");
+            ArchiveVerdict known = new ArchiveScanner(scanQueue, new FixedPollingPolicy(10), 2000, CURRENT_DEFINITIONS)
+                    .scan(archive.toString());
+            assertEquals(0, known.getUploadedCount());
+
+            connector.releaseUploads(12);
+            assertEquals(12, blocked.get(10, TimeUnit.SECONDS).getUploadedCount());
+        } finally {
+            caller.shutdownNow();
+            blocking.close();
+            Files.deleteIfExists(large);
+        }
+    }
+
+    private static void addEntry(ZipOutputStream zip, String name, String content) throws Exception {
+        zip.putNextEntry(new ZipEntry(name));
+        zip.write(content.getBytes("UTF-8"));
+        zip.closeEntry();
+    }
+
+    private static String sha256(String content) throws Exception {
+        return ContentHasher.sha256(new ByteArrayInputStream(content.getBytes("UTF-8")));
+    }
+}
@@ -0,0 +1,161 @@
+package com.opswat.metadefender.core.service;
+
+import com.opswat.metadefender.core.client.FakeCoreConnector;
+import com.opswat.metadefender.core.client.FixedPollingPolicy;
+import com.opswat.metadefender.core.client.MetadefenderCoreClient;
+import com.opswat.metadefender.core.client.ScanResultPoller;
+import com.opswat.metadefender.core.client.responses.FileScanResult;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BulkScannerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FakeCoreConnector connector;
+    private ScanResultPoller poller;
+    private MetadefenderCoreClient client;
+    private BulkScanner scanner;
+    private RecordingListener listener;
+    private ExecutorService caller;
+
+    @Before
+    public void setUp() {
+        connector = new FakeCoreConnector();
+        poller = new ScanResultPoller(2, 4, 5);
+        client = new MetadefenderCoreClient("http://fake-core:8008");
+        client.setHttpConnector(connector);
+        client.setScanResultPoller(poller);
+        scanner = new BulkScanner(client, 2);
+        scanner.setPollingPolicy(new FixedPollingPolicy(5));
+        listener = new RecordingListener();
+        caller = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        caller.shutdownNow();
+        scanner.close();
+        client.close();
+        poller.close();
+    }
+
+    @Test
+    public void scansMatchingFilesOfADirectory() throws Exception {
+        createFiles("a.jar", "b.jar", "c.txt");
+        Files.createDirectory(folder.getRoot().toPath().resolve("lib"));
+        createFiles("lib/d.jar");
+
+        BulkScanner.Summary summary = scanner.scanDirectory(folder.getRoot().toPath(), "**.jar", listener);
+
+        assertEquals(3, summary.getSubmitted());
+        assertEquals(3, summary.getCompleted());
+        assertEquals(0, summary.getFailed());
+        assertEquals(3, listener.results.size());
+        assertEquals(3, connector.getUploads());
+    }
+
+    @Test
+    public void uploadsAreBoundedByMaxInFlight() throws Exception {
+        final List<Path> files = createFiles("1", "2", "3", "4", "5");
+        connector.holdUploads();
+
+        Future<BulkScanner.Summary> summary = caller.submit(new Callable<BulkScanner.Summary>() {
+            @Override
+            public BulkScanner.Summary call() throws Exception {
+                return scanner.scan(files.stream(), listener);
+            }
+        });
+
+        assertTrue(connector.awaitUploads(2, 5000));
+        Thread.sleep(100);
+        assertEquals(2, connector.getUploads());
+
+        connector.releaseUploads(5);
+        assertEquals(5, summary.get(5, TimeUnit.SECONDS).getCompleted());
+        assertEquals(5, connector.getUploads());
+    }
+
+    @Test
+    public void slotIsHeldUntilTheResultAndFreedByTheScanTimeout() throws Exception {
+        List<Path> files = createFiles("1", "2", "3", "4");
+        connector.setPollsUntilFinished(Integer.MAX_VALUE);
+        scanner.setScanTimeout(200);
+
+        long start = System.currentTimeMillis();
+        BulkScanner.Summary summary = scanner.scan(files.stream(), listener);
+
+        // two rounds of two files, each round waits for its scan timeout
+        assertTrue(System.currentTimeMillis() - start >= 400);
+        assertEquals(4, summary.getSubmitted());
+        assertEquals(0, summary.getCompleted());
+        assertEquals(4, summary.getFailed());
+        assertEquals(4, listener.errors.size());
+        for (Throwable error : listener.errors) {
+            assertTrue(error instanceof TimeoutException);
+        }
+        assertEquals(4, connector.getUploads());
+
+        // the timed out scans are no longer polled
+        long deadline = System.currentTimeMillis() + 5000;
+        while (poller.getPendingCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(0, poller.getPendingCount());
+    }
+
+    @Test
+    public void unreadableFileIsReportedAndTheScanGoesOn() throws Exception {
+        List<Path> files = createFiles("1", "2");
+        files.add(1, folder.getRoot().toPath().resolve("missing"));
+
+        BulkScanner.Summary summary = scanner.scan(files.stream(), listener);
+
+        assertEquals(2, summary.getCompleted());
+        assertEquals(1, summary.getFailed());
+        assertEquals(1, listener.errors.size());
+    }
+
+    private List<Path> createFiles(String... names) throws Exception {
+        List<Path> files = new CopyOnWriteArrayList<Path>();
+        for (String name : names) {
+            Path file = folder.getRoot().toPath().resolve(name);
+            Files.write(file, name.getBytes("UTF-8"));
+            files.add(file);
+        }
+        return files;
+    }
+
+    private static class RecordingListener implements BulkScanListener {
+        final List<FileScanResult> results = new CopyOnWriteArrayList<FileScanResult>();
+        final List<Throwable> errors = new CopyOnWriteArrayList<Throwable>();
+
+        @Override
+        public void onResult(Path path, FileScanResult result) {
+            results.add(result);
+        }
+
+        @Override
+        public void onError(Path path, Throwable error) {
+            errors.add(error);
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package com.opswat.metadefender.core.service;
+
+import com.opswat.metadefender.core.client.FakeCoreConnector;
+import com.opswat.metadefender.core.client.MetricsListener;
+import com.opswat.metadefender.core.client.exceptions.MetadefenderClientException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MetaDefenderClientServiceTest {
+
+    private static final AtomicInteger SERVERS = new AtomicInteger(0);
+
+    private FakeCoreConnector connector;
+    private String apiUrl;
+    private VerdictCache cache;
+    private Path file;
+    private Path copy;
+    private final AtomicInteger inFlightLookups = new AtomicInteger(0);
+    private final CountDownLatch inFlightHit = new CountDownLatch(1);
+
+    @Before
+    public void setUp() throws Exception {
+        connector = new FakeCoreConnector();
+        MetaDefenderClientService.getClientPool().setHttpConnector(connector);
+        // a new server per test, the service keeps its queues and metadata per api url
+        apiUrl = "http://fake-core-" + SERVERS.incrementAndGet() + ":8008";
+        cache = new VerdictCache();
+        MetaDefenderClientService.setVerdictCache(cache);
+        file = Files.createTempFile("service-test", ".txt");
+        Files.write(file, "clean content".getBytes("UTF-8"));
+        copy = Files.createTempFile("service-test-copy", ".txt");
+        Files.write(copy, "clean content".getBytes("UTF-8"));
+
+        MetaDefenderClientService.setMetricsListener(new MetricsListener() {
+            @Override
+            public void onCacheLookup(String cacheName, boolean hit) {
+                if ("in-flight".equals(cacheName)) {
+                    inFlightLookups.incrementAndGet();
+                    if (hit) {
+                        inFlightHit.countDown();
+                    }
+                }
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        MetaDefenderClientService.shutdown();
+        MetaDefenderClientService.setVerdictCache(new VerdictCache());
+        MetaDefenderClientService.setMetricsListener(null);
+        MetaDefenderClientService.setHashLookupEnabled(false);
+        MetaDefenderClientService.setRequestCoalescingEnabled(true);
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(copy);
+    }
+
+    @Test
+    public void cachesVerdicts() throws Exception {
+        assertTrue(MetaDefenderClientService.awaitMetadata(apiUrl, 5000));
+        assertTrue(MetaDefenderClientService.isFileAllowed(apiUrl, file.toString()));
+        assertTrue(MetaDefenderClientService.isFileAllowed(apiUrl, file.toString()));
+
+        assertEquals(1, connector.getUploads());
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void scansWithoutCacheWhenEngineMetadataFails() throws Exception {
+        connector.setEnginesAvailable(false);
+
+        assertTrue(MetaDefenderClientService.isFileAllowed(apiUrl, file.toString()));
+        assertFalse(MetaDefenderClientService.awaitMetadata(apiUrl, 200));
+        assertTrue(MetaDefenderClientService.isFileAllowed(apiUrl, file.toString()));
+
+        assertEquals(2, connector.getUploads());
+        assertEquals(0, cache.getHits() + cache.getMisses());
+        // the failed load is not repeated by every call
+        assertEquals(1, connector.getEngineRequests());
+    }
+
+    @Test
+    public void usesCacheOnceEngineMetadataIsBack() throws Exception {
+        connector.setEnginesAvailable(false);
+        assertTrue(MetaDefenderClientService.isFileAllowed(apiUrl, file.toString()));
+
+        connector.setEnginesAvailable(true);
+        // loaded again after the retry delay
+        assertTrue(MetaDefenderClientService.awaitMetadata(apiUrl, 5000));
+        assertTrue(MetaDefenderClientService.isFileAllowed(apiUrl, file.toString()));
+        assertTrue(MetaDefenderClientService.isFileAllowed(apiUrl, file.toString()));
+
+        assertEquals(2, connector.getUploads());
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void releasesMetadataOfReplacedClients() throws Exception {
+        assertTrue(MetaDefenderClientService.isFileAllowed(apiUrl, file.toString()));
+        assertTrue(MetaDefenderClientService.awaitMetadata(apiUrl, 5000));
+        assertEquals(1, connector.getEngineRequests());
+
+        // the pool replaces a closed client, the new client gets its own metadata cache
+        MetaDefenderClientService.getClientPool().getClient(apiUrl).close();
+        assertTrue(MetaDefenderClientService.isFileAllowed(apiUrl, file.toString()));
+        assertTrue(MetaDefenderClientService.awaitMetadata(apiUrl, 5000));
+        assertEquals(2, connector.getEngineRequests());
+        assertEquals(1, MetaDefenderClientService.getMetadataCacheCount());
+    }
+
+    @Test
+    public void checkFileAllowsCleanContent() throws Exception {
+        ScanOutcome outcome = MetaDefenderClientService.checkFile(apiUrl, file.toString());
+
+        assertEquals(ScanOutcome.Status.ALLOW, outcome.getStatus());
+        assertTrue(outcome.isAllowed());
+        assertEquals("Allowed", outcome.getResult());
+        assertEquals("1", outcome.getDataId());
+        assertFalse(outcome.isCached());
+    }
+
+    @Test
+    public void checkFileDeniesBlockedContentWithoutThrowing() throws Exception {
+        connector.setResult("clean content".getBytes("UTF-8"), "Blocked");
+
+        ScanOutcome outcome = MetaDefenderClientService.checkFile(apiUrl, file.toString());
+        assertEquals(ScanOutcome.Status.DENY, outcome.getStatus());
+        assertFalse(outcome.isAllowed());
+        assertArrayEquals(new String[] {"Test-Virus"}, outcome.getVerdict().getThreatNames());
+        assertEquals(outcome.getVerdict().toText(), outcome.getReport());
+
+        // isFileAllowed throws the same report
+        try {
+            MetaDefenderClientService.isFileAllowed(apiUrl, file.toString());
+            fail("the file is blocked");
+        } catch (MetadefenderClientException e) {
+            assertTrue(e.getMessage().contains("scan finished with result: Blocked"));
+        }
+    }
+
+    @Test
+    public void checkFileReportsFailedScansAsErrorsAndDoesNotCacheThem() throws Exception {
+        assertTrue(MetaDefenderClientService.awaitMetadata(apiUrl, 5000));
+        connector.setResult("clean content".getBytes("UTF-8"), "Failed");
+
+        assertEquals(ScanOutcome.Status.ERROR, MetaDefenderClientService.checkFile(apiUrl, file.toString()).getStatus());
+        assertEquals(ScanOutcome.Status.ERROR, MetaDefenderClientService.checkFile(apiUrl, file.toString()).getStatus());
+        assertEquals(2, connector.getUploads());
+        assertEquals(0, cache.getHits());
+    }
+
+    @Test
+    public void checkFileAnswersFromTheVerdictCache() throws Exception {
+        assertTrue(MetaDefenderClientService.awaitMetadata(apiUrl, 5000));
+        connector.setResult("clean content".getBytes("UTF-8"), "Blocked");
+        assertEquals(ScanOutcome.Status.DENY, MetaDefenderClientService.checkFile(apiUrl, file.toString()).getStatus());
+
+        ScanOutcome cached = MetaDefenderClientService.checkFile(apiUrl, copy.toString());
+        assertTrue(cached.isCached());
+        assertEquals(ScanOutcome.Status.DENY, cached.getStatus());
+        assertEquals(copy.toString(), cached.getFile());
+        assertEquals("1", cached.getDataId());
+        assertTrue(cached.getReport().contains("cached verdict of data_id='1'"));
+        assertEquals(1, connector.getUploads());
+    }
+
+    @Test
+    public void checkFileThrowsForAMissingFile() throws Exception {
+        try {
+            MetaDefenderClientService.checkFile(apiUrl, file.toString() + ".missing");
+            fail("the file does not exist");
+        } catch (MetadefenderClientException e) {
+            assertTrue(e.getMessage().startsWith("File not found: "));
+        }
+        // isFileAllowed answers false instead
+        assertFalse(MetaDefenderClientService.isFileAllowed(apiUrl, file.toString() + ".missing"));
+        assertEquals(0, connector.getUploads());
+    }
+
+    @Test
+    public void concurrentChecksOfTheSameContentShareOneUpload() throws Exception {
+        // coalesced before the definitions of the server are known, without the verdict cache
+        connector.holdUploads();
+        ExecutorService callers = Executors.newFixedThreadPool(2);
+        try {
+            Future<Boolean> first = callers.submit(isFileAllowed(file));
+            assertTrue(connector.awaitUploads(1, 5000));
+
+            // same content under another name, waits for the upload of the first call
+            Future<Boolean> second = callers.submit(isFileAllowed(copy));
+            assertTrue(inFlightHit.await(5, TimeUnit.SECONDS));
+
+            connector.releaseUploads(1);
+            assertTrue(first.get(5, TimeUnit.SECONDS));
+            assertTrue(second.get(5, TimeUnit.SECONDS));
+            assertEquals(1, connector.getUploads());
+        } finally {
+            callers.shutdownNow();
+        }
+    }
+
+    @Test
+    public void concurrentScansOfTheSameContentShareOneUpload() throws Exception {
+        connector.holdUploads();
+        ExecutorService callers = Executors.newFixedThreadPool(2);
+        try {
+            Future<ScanVerdict> first = callers.submit(scanFileVerdict(file));
+            assertTrue(connector.awaitUploads(1, 5000));
+
+            Future<ScanVerdict> second = callers.submit(scanFileVerdict(copy));
+            assertTrue(inFlightHit.await(5, TimeUnit.SECONDS));
+
+            connector.releaseUploads(1);
+            assertEquals("1", first.get(5, TimeUnit.SECONDS).getDataId());
+            ScanVerdict shared = second.get(5, TimeUnit.SECONDS);
+            assertEquals("1", shared.getDataId());
+            assertEquals(copy.toString(), shared.getFile());
+            assertEquals(1, connector.getUploads());
+        } finally {
+            callers.shutdownNow();
+        }
+    }
+
+    @Test
+    public void scansAreNotCoalescedWhenDisabled() throws Exception {
+        MetaDefenderClientService.setRequestCoalescingEnabled(false);
+        connector.holdUploads();
+        ExecutorService callers = Executors.newFixedThreadPool(2);
+        try {
+            Future<ScanVerdict> first = callers.submit(scanFileVerdict(file));
+            Future<ScanVerdict> second = callers.submit(scanFileVerdict(copy));
+            assertTrue(connector.awaitUploads(2, 5000));
+
+            connector.releaseUploads(2);
+            assertTrue(first.get(5, TimeUnit.SECONDS).isAllowed());
+            assertTrue(second.get(5, TimeUnit.SECONDS).isAllowed());
+            assertEquals(2, connector.getUploads());
+            assertEquals(0, inFlightLookups.get());
+        } finally {
+            callers.shutdownNow();
+        }
+    }
+
+    private Callable<Boolean> isFileAllowed(final Path path) {
+        return new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws MetadefenderClientException {
+                return MetaDefenderClientService.isFileAllowed(apiUrl, path.toString());
+            }
+        };
+    }
+
+    private Callable<ScanVerdict> scanFileVerdict(final Path path) {
+        return new Callable<ScanVerdict>() {
+            @Override
+            public ScanVerdict call() throws MetadefenderClientException {
+                return MetaDefenderClientService.scanFileVerdict(apiUrl, path.toString());
+            }
+        };
+    }
+
+    @Test
+    public void hashFirstReusesScanWithCurrentDefinitions() throws Exception {
+        MetaDefenderClientService.setHashLookupEnabled(true);
+        assertTrue(MetaDefenderClientService.awaitMetadata(apiUrl, 5000));
+        connector.addKnownHash(ContentHasher.sha256(file.toString()), FakeCoreConnector.DEF_TIME);
+
+        ScanVerdict verdict = MetaDefenderClientService.scanFileVerdict(apiUrl, file.toString());
+        assertTrue(verdict.isAllowed());
+        assertTrue(verdict.getDataId().startsWith("known-"));
+        assertTrue(MetaDefenderClientService.isFileAllowed(apiUrl, copy.toString()));
+        assertEquals(0, connector.getUploads());
+    }
+
+    @Test
+    public void hashFirstUploadsUnknownContent() throws Exception {
+        MetaDefenderClientService.setHashLookupEnabled(true);
+
+        assertTrue(MetaDefenderClientService.scanFileVerdict(apiUrl, file.toString()).isAllowed());
+        assertEquals(1, connector.getUploads());
+    }
+
+    @Test
+    public void hashFirstScansAgainWithOutdatedDefinitions() throws Exception {
+        MetaDefenderClientService.setHashLookupEnabled(true);
+        assertTrue(MetaDefenderClientService.awaitMetadata(apiUrl, 5000));
+        connector.addKnownHash(ContentHasher.sha256(file.toString()), "2016-06-01T00:00:00.000Z");
+
+        ScanVerdict verdict = MetaDefenderClientService.scanFileVerdict(apiUrl, file.toString());
+        assertEquals("1", verdict.getDataId());
+        assertTrue(MetaDefenderClientService.isFileAllowed(apiUrl, copy.toString()));
+        assertEquals(2, connector.getUploads());
+    }
+
+    @Test
+    public void hashFirstDoesNotReuseFinishedScansWhileDefinitionsAreUnknown() throws Exception {
+        MetaDefenderClientService.setHashLookupEnabled(true);
+        connector.setEnginesAvailable(false);
+        connector.addKnownHash(ContentHasher.sha256(file.toString()), FakeCoreConnector.DEF_TIME);
+
+        assertEquals("1", MetaDefenderClientService.scanFileVerdict(apiUrl, file.toString()).getDataId());
+        assertEquals(1, connector.getUploads());
+    }
+}
@@ -0,0 +1,111 @@
+package com.opswat.metadefender.core.service;
+
+import com.opswat.metadefender.core.client.FakeCoreConnector;
+import com.opswat.metadefender.core.client.MetadefenderCoreClient;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MetadefenderClientPoolTest {
+
+    private static final String SERVER = "http://fake-core:8008";
+
+    private FakeCoreConnector connector;
+    private MetadefenderClientPool pool;
+
+    @Before
+    public void setUp() {
+        connector = new FakeCoreConnector();
+        pool = new MetadefenderClientPool();
+        pool.setHttpConnector(connector);
+    }
+
+    @After
+    public void tearDown() {
+        pool.close();
+    }
+
+    @Test
+    public void reusesOneClientPerKey() throws Exception {
+        MetadefenderCoreClient anonymous = pool.getClient(SERVER);
+        assertSame(anonymous, pool.getClient(SERVER));
+
+        MetadefenderCoreClient withApiKey = pool.getClient(SERVER, "key");
+        assertSame(withApiKey, pool.getClient(SERVER, "key"));
+        assertNotSame(anonymous, withApiKey);
+
+        MetadefenderCoreClient loggedIn = pool.getClient(SERVER, "user", "pass");
+        assertSame(loggedIn, pool.getClient(SERVER, "user", "pass"));
+        assertNotSame(loggedIn, pool.getClient(SERVER, "other", "pass"));
+
+        assertEquals(4, pool.size());
+        assertEquals(2, connector.getLogins());
+    }
+
+    @Test
+    public void replacesClosedClient() {
+        MetadefenderCoreClient client = pool.getClient(SERVER);
+        client.close();
+
+        MetadefenderCoreClient replacement = pool.getClient(SERVER);
+        assertNotSame(client, replacement);
+        assertFalse(replacement.isClosed());
+        assertEquals(1, pool.size());
+    }
+
+    @Test
+    public void clearClosesClientsAndEndsSessions() throws Exception {
+        MetadefenderCoreClient anonymous = pool.getClient(SERVER);
+        MetadefenderCoreClient loggedIn = pool.getClient(SERVER, "user", "pass");
+
+        pool.clear();
+
+        assertTrue(anonymous.isClosed());
+        assertTrue(loggedIn.isClosed());
+        assertEquals(1, connector.getLogouts());
+        assertEquals(0, pool.size());
+    }
+
+    @Test
+    public void concurrentFirstCallsLogInOnce() throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService callers = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<MetadefenderCoreClient>> clients = new ArrayList<Future<MetadefenderCoreClient>>();
+            for (int i = 0; i < 8; i++) {
+                clients.add(callers.submit(new Callable<MetadefenderCoreClient>() {
+                    @Override
+                    public MetadefenderCoreClient call() throws Exception {
+                        start.await();
+                        return pool.getClient(SERVER, "user", "pass");
+                    }
+                }));
+            }
+            start.countDown();
+
+            MetadefenderCoreClient first = clients.get(0).get(5, TimeUnit.SECONDS);
+            for (Future<MetadefenderCoreClient> client : clients) {
+                assertSame(first, client.get(5, TimeUnit.SECONDS));
+            }
+            assertEquals(1, connector.getLogins());
+        } finally {
+            callers.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package com.opswat.metadefender.core.service;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PersistentVerdictStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replaysVerdictsAfterReopen() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("verdicts.log");
+        PersistentVerdictStore store = new PersistentVerdictStore(file);
+        store.put("a|server", entry(true, "Allowed", 100));
+        store.put("b|server", entry(false, "Blocked", 100));
+        store.put("a|server", entry(true, "Allowed", 200));
+        store.close();
+
+        store = new PersistentVerdictStore(file);
+        try {
+            assertEquals(2, store.size());
+            assertEquals(200, store.get("a|server").getDefinitionTime());
+            VerdictCache.Entry blocked = store.get("b|server");
+            assertFalse(blocked.isAllowed());
+            assertEquals("Blocked", blocked.getResult());
+            assertNull(blocked.getDataId());
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void truncatesTornTailOnReopen() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("verdicts.log");
+        PersistentVerdictStore store = new PersistentVerdictStore(file);
+        store.put("a", entry(true, "Allowed", 100));
+        store.put("b", entry(true, "Allowed", 100));
+        store.close();
+        long completeLength = Files.size(file);
+
+        // crash in the middle of the next record: length prefix and part of the payload
+        appendBytes(file, new byte[] {0, 0, 0, 40, 1, 2, 3});
+
+        store = new PersistentVerdictStore(file);
+        assertEquals(2, store.size());
+        assertEquals(completeLength, Files.size(file));
+
+        // records appended after the truncation are replayed too
+        store.put("c", entry(false, "Blocked", 100));
+        store.close();
+
+        store = new PersistentVerdictStore(file);
+        try {
+            assertEquals(3, store.size());
+            assertNotNull(store.get("c"));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void dropsRecordWithBadChecksum() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("verdicts.log");
+        PersistentVerdictStore store = new PersistentVerdictStore(file);
+        store.put("a", entry(true, "Allowed", 100));
+        store.close();
+        long firstLength = Files.size(file);
+        store = new PersistentVerdictStore(file);
+        store.put("b", entry(true, "Allowed", 100));
+        store.close();
+
+        // flip the last byte of the checksum of the second record
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            ByteBuffer last = ByteBuffer.allocate(1);
+            channel.read(last, channel.size() - 1);
+            last.put(0, (byte) (last.get(0) ^ 0xFF));
+            last.rewind();
+            channel.write(last, channel.size() - 1);
+        } finally {
+            channel.close();
+        }
+
+        store = new PersistentVerdictStore(file);
+        try {
+            assertEquals(1, store.size());
+            assertNull(store.get("b"));
+            assertEquals(firstLength, Files.size(file));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void compactionKeepsLiveVerdicts() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("verdicts.log");
+        PersistentVerdictStore store = new PersistentVerdictStore(file, 10, 1024);
+        for (int i = 0; i < 200; i++) {
+            store.put("key" + (i % 5), entry(true, "Allowed", i));
+        }
+        assertTrue(Files.size(file) <= 1024 + 128);
+        assertFalse(Files.exists(file.resolveSibling("verdicts.log.compact")));
+        store.close();
+
+        store = new PersistentVerdictStore(file);
+        try {
+            assertEquals(5, store.size());
+            assertEquals(199, store.get("key4").getDefinitionTime());
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void liveVerdictsLargerThanMaxFileSizeDoNotCompactOnEveryWrite() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("verdicts.log");
+        PersistentVerdictStore store = new PersistentVerdictStore(file, 100, 256);
+        try {
+            for (int i = 0; i < 50; i++) {
+                store.put("key" + i, entry(true, "Allowed", 100));
+            }
+            long size = Files.size(file);
+            assertTrue(size > 256);
+
+            // an overwrite is appended, the log is not rewritten
+            store.put("key0", entry(true, "Allowed", 100));
+            assertTrue(Files.size(file) > size);
+
+            for (int i = 0; i < 500; i++) {
+                store.put("key" + (i % 50), entry(true, "Allowed", 100));
+            }
+            assertTrue(Files.size(file) <= 2 * size + 128);
+            assertEquals(50, store.size());
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void removesOutdatedVerdictsOfOneProfile() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("verdicts.log");
+        PersistentVerdictStore store = new PersistentVerdictStore(file);
+        store.put("a|server1", entry(true, "Allowed", 100));
+        store.put("b|server1", entry(true, "Allowed", 300));
+        store.put("a|server2", entry(true, "Allowed", 100));
+        store.put("a", entry(true, "Allowed", 100));
+
+        store.removeOlderThan("server1", 200);
+        store.close();
+
+        store = new PersistentVerdictStore(file);
+        try {
+            assertNull(store.get("a|server1"));
+            assertNotNull(store.get("b|server1"));
+            assertNotNull(store.get("a|server2"));
+            assertNotNull(store.get("a"));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void cacheStartsWarmFromStore() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("verdicts.log");
+        PersistentVerdictStore store = new PersistentVerdictStore(file);
+        new VerdictCache(10, VerdictCache.DEFAULT_TTL, store).put("hash", "server", false, "Blocked", "data-1", 100);
+        store.close();
+
+        store = new PersistentVerdictStore(file);
+        try {
+            VerdictCache cache = new VerdictCache(10, VerdictCache.DEFAULT_TTL, store);
+            VerdictCache.Entry entry = cache.get("hash", "server");
+            assertNotNull(entry);
+            assertEquals("data-1", entry.getDataId());
+
+            cache.updateDefinitionTime("server", 200);
+            assertNull(cache.get("hash", "server"));
+            assertEquals(0, store.size());
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void closedStoreRejectsWrites() throws IOException {
+        PersistentVerdictStore store = new PersistentVerdictStore(folder.getRoot().toPath().resolve("verdicts.log"));
+        store.close();
+        store.put("a", entry(true, "Allowed", 100));
+    }
+
+    private static VerdictCache.Entry entry(boolean allowed, String result, long definitionTime) {
+        return new VerdictCache.Entry(allowed, result, null, definitionTime, System.currentTimeMillis());
+    }
+
+    private static void appendBytes(Path file, byte[] bytes) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        try {
+            channel.write(ByteBuffer.wrap(bytes));
+        } finally {
+            channel.close();
+        }
+    }
+}
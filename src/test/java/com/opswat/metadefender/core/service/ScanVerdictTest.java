@@ -0,0 +1,128 @@
+package com.opswat.metadefender.core.service;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.opswat.metadefender.core.client.FakeCoreConnector;
+import com.opswat.metadefender.core.client.responses.EngineScanDetail;
+import com.opswat.metadefender.core.client.responses.FileScanResult;
+import com.opswat.metadefender.core.client.responses.ScanResults;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ScanVerdictTest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    // two engines finding the same threat, a third without details
+    private static final String INFECTED = "{\"data_id\":\"data-1\",\"process_info\":{\"result\":\"Blocked\",\"progress_percentage\":100," +
+            "\"blocked_reason\":\"Infected\"},\"scan_results\":{\"data_id\":\"data-1\",\"progress_percentage\":100," +
+            "\"scan_all_result_a\":\"Infected\",\"scan_all_result_i\":1,\"start_time\":\"2017-01-01T00:00:00.000Z\"," +
+            "\"total_avs\":3,\"total_time\":42,\"scan_details\":{" +
+            "\"Engine0\":{\"def_time\":\"2017-01-01T00:00:00.000Z\",\"location\":\"local\",\"scan_result_i\":1,\"scan_time\":10,\"threat_found\":\"EICAR\"}," +
+            "\"Engine1\":{\"def_time\":\"2017-01-03T00:00:00.000Z\",\"location\":\"local\",\"scan_result_i\":1,\"scan_time\":12,\"threat_found\":\"EICAR\"}," +
+            "\"Engine2\":{\"location\":\"local\",\"scan_result_i\":0,\"scan_time\":0,\"threat_found\":\"\"}}}}";
+
+    @Test
+    public void textReportMatchesTheLegacyReport() throws Exception {
+        for (String json : new String[] {INFECTED, FakeCoreConnector.resultJson("data-2", 100, "Allowed", FakeCoreConnector.DEF_TIME)}) {
+            FileScanResult result = MAPPER.readValue(json, FileScanResult.class);
+            assertEquals(legacyReport("/tmp/sample.exe", result), ScanVerdict.of("/tmp/sample.exe", result).toText());
+        }
+    }
+
+    @Test
+    public void jsonRenderingHoldsTheVerdictAndEveryEngine() throws Exception {
+        ScanVerdict verdict = ScanVerdict.of("/tmp/sample.exe", MAPPER.readValue(INFECTED, FileScanResult.class));
+
+        JsonNode json = MAPPER.readTree(verdict.toJson());
+        assertEquals("/tmp/sample.exe", json.get("file").asText());
+        assertEquals("data-1", json.get("data_id").asText());
+        assertEquals("BLOCKED", json.get("verdict").asText());
+        assertEquals("Blocked", json.get("result").asText());
+        assertEquals(1, json.get("scan_all_result_i").asInt());
+        assertEquals("Infected", json.get("scan_all_result_a").asText());
+        assertEquals(3, json.get("total_avs").asInt());
+        assertEquals(42, json.get("total_time").asInt());
+        assertEquals(1, json.get("threats").size());
+        assertEquals("EICAR", json.get("threats").get(0).asText());
+        assertEquals(3, json.get("engines").size());
+        JsonNode engine = json.get("engines").get(1);
+        assertEquals("Engine1", engine.get("name").asText());
+        assertEquals(1, engine.get("scan_result_i").asInt());
+        assertEquals(12, engine.get("scan_time").asInt());
+        assertEquals(1483401600000L, engine.get("def_time").asLong());
+        assertEquals(-1, json.get("engines").get(2).get("def_time").asLong());
+    }
+
+    @Test
+    public void verdictOfTheProcessResult() throws Exception {
+        ScanVerdict blocked = ScanVerdict.of("a", MAPPER.readValue(INFECTED, FileScanResult.class));
+        assertEquals(ScanVerdict.Verdict.BLOCKED, blocked.getVerdict());
+        assertFalse(blocked.isAllowed());
+        assertArrayEquals(new String[] {"EICAR"}, blocked.getThreatNames());
+        assertEquals(1483401600000L, blocked.getLatestDefinitionTime());
+        assertEquals(3, blocked.getEngineCount());
+
+        ScanVerdict allowed = ScanVerdict.of("a", MAPPER.readValue(
+                FakeCoreConnector.resultJson("data-2", 100, "Allowed", FakeCoreConnector.DEF_TIME), FileScanResult.class));
+        assertTrue(allowed.isAllowed());
+        assertEquals(0, allowed.getThreatNames().length);
+
+        ScanVerdict failed = ScanVerdict.of("a", MAPPER.readValue(
+                FakeCoreConnector.resultJson("data-3", 100, "Failed", FakeCoreConnector.DEF_TIME), FileScanResult.class));
+        assertEquals(ScanVerdict.Verdict.OTHER, failed.getVerdict());
+
+        ScanVerdict empty = ScanVerdict.of("a", new FileScanResult());
+        assertEquals(ScanVerdict.Verdict.OTHER, empty.getVerdict());
+        assertEquals(-1, empty.getLatestDefinitionTime());
+        assertEquals(0, empty.getEngineCount());
+    }
+
+    @Test
+    public void reportsAreRenderedOnce() throws Exception {
+        ScanVerdict verdict = ScanVerdict.of("a", MAPPER.readValue(INFECTED, FileScanResult.class));
+        assertSame(verdict.toText(), verdict.toText());
+        assertSame(verdict.toJson(), verdict.toJson());
+    }
+
+    /**
+     * The report MetaDefenderClientService.scanFile built before ScanVerdict, without its scan_details part: the
+     * response classes have no toString, that part only printed object identities.
+     */
+    private static String legacyReport(String file, FileScanResult result) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("\nFile (" + file + ") scan finished with result: " + result.process_info.result);
+        ScanResults res = result.scan_results;
+        sb.append("\n\tScanResults{" +
+                "data_id='" + res.data_id + '\'' +
+                ", progress_percentage=" + res.progress_percentage +
+                ", scan_all_result_a='" + res.scan_all_result_a + '\'' +
+                ", scan_all_result_i=" + res.scan_all_result_i +
+                ", start_time=" + res.start_time +
+                ", total_avs=" + res.total_avs +
+                ", total_time=" + res.total_time +
+                '}');
+        Map<String, EngineScanDetail> map = res.scan_details;
+        sb.append("\n\tEngineScanDetail:");
+        for (Map.Entry<String, EngineScanDetail> entry : map.entrySet()) {
+            EngineScanDetail esd = entry.getValue();
+            sb.append("\n\t - Item: " + entry.getKey());
+            sb.append("\t EngineScanDetail{" +
+                    "def_time=" + esd.def_time +
+                    ", location='" + esd.location + '\'' +
+                    ", scan_result_i=" + esd.scan_result_i +
+                    ", scan_time=" + esd.scan_time +
+                    ", threat_found='" + esd.threat_found + '\'' +
+                    '}');
+        }
+        return sb.toString();
+    }
+}
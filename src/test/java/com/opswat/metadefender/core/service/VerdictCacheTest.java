@@ -0,0 +1,106 @@
+package com.opswat.metadefender.core.service;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class VerdictCacheTest {
+
+    private static final String SERVER_A = "http://core-a:8008";
+    private static final String SERVER_B = "http://core-b:8008";
+
+    @Test
+    public void returnsCachedVerdict() {
+        VerdictCache cache = new VerdictCache();
+        cache.put("hash", SERVER_A, true, "Allowed", "data-1", 100);
+
+        VerdictCache.Entry entry = cache.get("hash", SERVER_A);
+        assertNotNull(entry);
+        assertTrue(entry.isAllowed());
+        assertEquals("Allowed", entry.getResult());
+        assertEquals("data-1", entry.getDataId());
+        assertEquals(100, entry.getDefinitionTime());
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void verdictsAreKeptPerProfile() {
+        VerdictCache cache = new VerdictCache();
+        cache.put("hash", SERVER_A, true, "Allowed", null, 100);
+
+        assertNull(cache.get("hash", SERVER_B));
+        assertNull(cache.get("hash", null));
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void newerDefinitionsInvalidateOnlyTheirProfile() {
+        VerdictCache cache = new VerdictCache();
+        cache.put("hash", SERVER_A, true, "Allowed", null, 100);
+        cache.put("hash", SERVER_B, false, "Blocked", null, 100);
+
+        assertTrue(cache.updateDefinitionTime(SERVER_A, 200));
+
+        assertNull(cache.get("hash", SERVER_A));
+        assertNotNull(cache.get("hash", SERVER_B));
+        assertEquals(200, cache.getDefinitionTime(SERVER_A));
+        assertEquals(0, cache.getDefinitionTime(SERVER_B));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void sameOrOlderDefinitionsKeepVerdicts() {
+        VerdictCache cache = new VerdictCache();
+        assertTrue(cache.updateDefinitionTime(SERVER_A, 200));
+        cache.put("hash", SERVER_A, true, "Allowed", null, 200);
+
+        assertFalse(cache.updateDefinitionTime(SERVER_A, 200));
+        assertFalse(cache.updateDefinitionTime(SERVER_A, 150));
+        assertNotNull(cache.get("hash", SERVER_A));
+    }
+
+    @Test
+    public void verdictScannedWithOutdatedDefinitionsIsNotCached() {
+        VerdictCache cache = new VerdictCache();
+        cache.updateDefinitionTime(SERVER_A, 200);
+
+        // the scan started before the definition update was seen
+        cache.put("hash", SERVER_A, true, "Allowed", null, 100);
+
+        assertNull(cache.get("hash", SERVER_A));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void expiredVerdictIsNotReturned() throws InterruptedException {
+        VerdictCache cache = new VerdictCache(10, 1);
+        cache.put("hash", SERVER_A, true, "Allowed", null, 100);
+        Thread.sleep(5);
+
+        assertNull(cache.get("hash", SERVER_A));
+    }
+
+    @Test
+    public void leastRecentlyUsedVerdictIsEvicted() {
+        VerdictCache cache = new VerdictCache(2, VerdictCache.DEFAULT_TTL);
+        cache.put("first", SERVER_A, true, "Allowed", null, 100);
+        cache.put("second", SERVER_A, true, "Allowed", null, 100);
+        cache.get("first", SERVER_A);
+        cache.put("third", SERVER_A, true, "Allowed", null, 100);
+
+        assertNotNull(cache.get("first", SERVER_A));
+        assertNull(cache.get("second", SERVER_A));
+        assertNotNull(cache.get("third", SERVER_A));
+    }
+
+    @Test
+    public void profileOfKey() {
+        assertEquals("", VerdictCache.profileOf("hash"));
+        assertEquals(SERVER_A, VerdictCache.profileOf("hash|" + SERVER_A));
+        assertEquals(SERVER_A + "|rule", VerdictCache.profileOf("hash|" + SERVER_A + "|rule"));
+    }
+}